@@ -1,13 +1,16 @@
 package de.hrw.dsalab.distsys.chat.data;
 
 import com.google.gson.Gson;
+import de.hrw.dsalab.distsys.chat.enumerations.LoadBalancing;
 import de.hrw.dsalab.distsys.chat.enumerations.NetworkTypes;
+import de.hrw.dsalab.distsys.chat.enumerations.OverflowPolicy;
 import de.hrw.dsalab.distsys.chat.utils.GeneralUtils;
 import lombok.Data;
 
 import javax.xml.bind.annotation.XmlAccessType;
 import javax.xml.bind.annotation.XmlAccessorType;
 import javax.xml.bind.annotation.XmlRootElement;
+import javax.xml.bind.annotation.XmlTransient;
 import java.io.Serializable;
 
 /**
@@ -20,7 +23,7 @@ import java.io.Serializable;
  *          <li>equals/hashCode</li>
  * </ul>
  * @author Nils Milewski
- * @version 1.5.3
+ * @version 1.5.5
  * @since 1.0
  */
 @Data
@@ -53,10 +56,180 @@ public class Connection implements Serializable {
     private long shutdownTime = 10 * GeneralUtils.MINUTES;
 
     /**
-     * Specifies the interval when the client cleaner should run
+     * Specifies the interval when the client cleaner should run.<br>
+     * It is neither exported nor imported, the element is still accepted by the DTDs so existing configurations stay valid
+     * @deprecated Since 3.2 the server modules expire dead clients with the {@link de.hrw.dsalab.distsys.chat.utils.LivenessService}, the interval is ignored
      */
+    @Deprecated
+    @XmlTransient
     private long cleanerInterval = 10 * GeneralUtils.MINUTES;
 
+    /**
+     * Specifies how many event loops are used by the socket server, default is the count of available processors
+     */
+    private int eventLoops = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Specifies the {@link LoadBalancing} which assigns new connections to the event loops of the socket server
+     */
+    private LoadBalancing loadBalancing = LoadBalancing.ROUND_ROBIN;
+
+    /**
+     * Specifies how many recent messages the socket server replays to a new client, 0 replays any amount of messages.
+     * The history is disabled iff neither a size nor an age is specified
+     */
+    private int historySize = 0;
+
+    /**
+     * Specifies the maximum age of replayed messages, 0 replays messages of any age
+     */
+    private long historyAge = 0;
+
+    /**
+     * Specifies the file where the socket server stores the history
+     */
+    private String historyFile = "data/history.seg";
+
+    /**
+     * Specifies how many frames can be queued for a single client of the socket server or a single subscriber of the RMI server
+     */
+    private int outboundQueueCapacity = 1024;
+
+    /**
+     * Specifies the {@link OverflowPolicy} when the outbound queue of a client is full, default is {@link OverflowPolicy#DROP_OLDEST}
+     */
+    private OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
+
+    /**
+     * Specifies the delay before a socket client tries to reconnect the first time, 0 disables the reconnect
+     */
+    private long reconnectDelay = GeneralUtils.SECONDS;
+
+    /**
+     * Specifies the upper bound of the exponentially growing reconnect delay
+     */
+    private long maxReconnectDelay = GeneralUtils.MINUTES;
+
+    /**
+     * Specifies how long a socket client collects outbound frames before they are written at once, 0 disables the coalescing
+     */
+    private long coalesceWindow = 0;
+
+    /**
+     * Specifies how many collected bytes cause a socket client to write immediately, even if the window is not over
+     */
+    private int coalesceThreshold = 16 * 1024;
+
+    /**
+     * Enables the negotiation of a compressed socket connection, it is only used if both peers enable it
+     */
+    private boolean compression = false;
+
+    /**
+     * Specifies the maximum size of a sent UDP datagram, larger messages are fragmented
+     */
+    private int datagramSize = 1400;
+
+    /**
+     * Specifies how long a receiver keeps the fragments of an incomplete UDP message
+     */
+    private long reassemblyTimeout = 5 * GeneralUtils.SECONDS;
+
+    /**
+     * Specifies how many bytes a receiver buffers for incomplete UDP messages
+     */
+    private long reassemblyMemory = 4 * 1024 * 1024;
+
+    /**
+     * Specifies if the UDP client and server acknowledge and retransmit their datagrams, both sides must enable it
+     */
+    private boolean reliableDelivery = false;
+
+    /**
+     * Specifies how many reliable UDP datagrams may be unacknowledged per session, it is capped at 64
+     */
+    private int reliableWindow = 64;
+
+    /**
+     * Specifies how many datagrams a UDP listener receives before it handles them
+     */
+    private int receiveBatch = 32;
+
+    /**
+     * Specifies the size of the kernel receive buffer of UDP listeners in bytes, 0 keeps the default size
+     */
+    private int receiveBufferSize = 4 * 1024 * 1024;
+
+    /**
+     * Specifies how many threads relay the data of the UDP server, default is the count of available processors
+     */
+    private int fanOutThreads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Specifies the window in milliseconds in which UDP, broadcast and multicast datagrams are packed into a single datagram,
+     * 0 disables the aggregation
+     */
+    private long aggregationWindow = 0;
+
+    /**
+     * Specifies the rate in bytes per second with which the UDP server relays to a single client, 0 disables the pacing
+     */
+    private long pacingRate = 0;
+
+    /**
+     * Specifies the rate in bytes per second with which the UDP server relays to all clients, 0 disables the limit
+     */
+    private long globalPacingRate = 0;
+
+    /**
+     * Specifies how many bytes the UDP server relays to a client without pacing
+     */
+    private long pacingBurst = 64 * 1024;
+
+    /**
+     * Specifies if multicast receivers request lost datagrams with NAKs, senders without it are still received
+     */
+    private boolean reliableMulticast = false;
+
+    /**
+     * Specifies how many sent multicast datagrams are buffered for retransmissions
+     */
+    private int repairBufferSize = 1024;
+
+    /**
+     * Specifies the comma separated rooms which are joined by broadcast and multicast nodes, the first one receives the sent messages.
+     * Nodes without a room receive every message
+     */
+    private String rooms = "";
+
+    /**
+     * Specifies across how many multicast groups the rooms are hashed, group i uses the configured address and port plus i.
+     * 0 maps every room to the configured group
+     */
+    private int roomGroups = 0;
+
+    /**
+     * Specifies explicit multicast groups of rooms as comma separated <code>room=address:port</code> entries, they take precedence over the hash
+     */
+    private String roomMapping = "";
+
+    /**
+     * Specifies how many threads decode received messages, default is the count of available processors.<br>
+     * 0 decodes a message on the thread which received it
+     */
+    private int decodeLanes = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Specifies the window in milliseconds in which RMI messages are collected into a single remote call,
+     * 0 only collects the messages which are already queued
+     */
+    private long rmiBatchWindow = 5;
+
+    /**
+     * Specifies how many RMI messages are sent with a single remote call at most
+     */
+    private int rmiBatchSize = 64;
+
     /**
      * Utilizes the {@link Gson#toJson} method to create a json representation of the object
      * @return Json String representation
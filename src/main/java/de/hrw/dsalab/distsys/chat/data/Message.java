@@ -21,7 +21,7 @@ import static de.hrw.dsalab.distsys.chat.utils.GeneralUtils.convertMillisTo;
  *          <li>Builder pattern</li>
  * </ul>
  * @author Nils Milewski
- * @version 1.4.1
+ * @version 1.5
  * @since 1.1
  */
 @Data
@@ -38,6 +38,11 @@ public class Message implements Serializable {
      */
     private String chatMessage;
 
+    /**
+     * Specifies the room of the message, null states that the message belongs to every room
+     */
+    private String room;
+
     /**
      * Specifies the amount of seconds which has to pass until the message is considered a new one
      */
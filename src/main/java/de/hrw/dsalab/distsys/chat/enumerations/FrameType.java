@@ -0,0 +1,65 @@
+package de.hrw.dsalab.distsys.chat.enumerations;
+
+/**
+ * Represents the opcode of a frame which is transferred by the {@link de.hrw.dsalab.distsys.chat.network.socket.SocketNetwork socket network}
+ * @author Nils Milewski
+ * @version 1.1
+ * @since 3.2
+ */
+public enum FrameType {
+    /**
+     * Represents a connect frame, it is sent by a client after the connection was established.<br>
+     * The optional payload contains the capability flags of the client, the server replies with a connect frame
+     * which contains the accepted flags. A peer which does not know the flags ignores them
+     */
+    CONNECT((byte) 1),
+
+    /**
+     * Represents a disconnect frame, it is sent by a client before the connection is closed
+     */
+    DISCONNECT((byte) 2),
+
+    /**
+     * Represents a frame which contains an encoded {@link de.hrw.dsalab.distsys.chat.data.Message message}
+     */
+    MESSAGE((byte) 3),
+
+    /**
+     * Represents a {@link FrameType#MESSAGE} frame whose payload is compressed by the compression context
+     * which was negotiated by the connect frames
+     */
+    MESSAGE_DEFLATE((byte) 4);
+
+    /**
+     * Lookup table to resolve an opcode without iterating over all values
+     */
+    private static final FrameType[] LOOKUP = new FrameType[Byte.MAX_VALUE + 1];
+
+    static {
+        for (FrameType type : values()) {
+            LOOKUP[type.opcode] = type;
+        }
+    }
+
+    /**
+     * Opcode which is written on the wire
+     */
+    private final byte opcode;
+
+    FrameType(byte opcode) {
+        this.opcode = opcode;
+    }
+
+    public byte getOpcode() {
+        return opcode;
+    }
+
+    /**
+     * Resolves a {@link FrameType} by its opcode
+     * @param opcode Received opcode
+     * @return {@link FrameType} or null iff the opcode is unknown
+     */
+    public static FrameType fromOpcode(byte opcode) {
+        return opcode < 0 ? null : LOOKUP[opcode];
+    }
+}
@@ -0,0 +1,19 @@
+package de.hrw.dsalab.distsys.chat.enumerations;
+
+/**
+ * Represents the strategy which selects the event loop of the socket server for a new connection
+ * @author Nils Milewski
+ * @version 1.0
+ * @since 3.2
+ */
+public enum LoadBalancing {
+    /**
+     * The event loops are selected one after another
+     */
+    ROUND_ROBIN,
+
+    /**
+     * The event loop which serves the fewest connections is selected
+     */
+    LEAST_LOADED
+}
@@ -0,0 +1,24 @@
+package de.hrw.dsalab.distsys.chat.enumerations;
+
+/**
+ * Represents the behaviour of a bounded outbound queue when a slow client cannot keep up
+ * @author Nils Milewski
+ * @version 1.0
+ * @since 3.2
+ */
+public enum OverflowPolicy {
+    /**
+     * The oldest queued data is dropped to make room for the new one
+     */
+    DROP_OLDEST,
+
+    /**
+     * The new data is dropped, the queued data is kept
+     */
+    DROP_NEWEST,
+
+    /**
+     * The slow client is disconnected
+     */
+    DISCONNECT
+}
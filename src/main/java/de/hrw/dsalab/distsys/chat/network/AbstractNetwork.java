@@ -20,21 +20,67 @@ import de.hrw.dsalab.distsys.chat.utils.decoder.message.JsonMessageDecoder;
 import de.hrw.dsalab.distsys.chat.utils.exceptions.NetworkInitializeException;
 
 
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * This abstract class contains definitions for a software network layer.<br>
  * An {@link IMessageDecoder} and the UI-Interaction logic is also provided by this abstract class.<br>
- * Different network layer are created and accessible via the {@link AbstractNetwork#getNetwork(NetworkTypes)} method.
+ * Different network layer are created and accessible via the {@link AbstractNetwork#getNetwork(NetworkTypes)} method.<br>
+ * Received data can be passed to {@link AbstractNetwork#decodeReceived(int, byte[]) decodeReceived}, it is decoded and
+ * passed to {@link NetworkListener#messageReceived} by a pool of decode lanes. Every lane is a single thread and the data
+ * of a source is always handled by the same lane, so its messages keep their order while different sources are decoded in parallel.
  *
  * @author Nils Milewski
- * @version 1.0
+ * @version 1.3
  * @since 0.4
  */
 public abstract class AbstractNetwork implements NetworkListener {
     public static final Logger logger = Logger.getLogger(AbstractNetwork.class);
 
+    /**
+     * Amount of received messages which can wait in a decode lane, further messages are dropped
+     */
+    private static final int DECODE_QUEUE_CAPACITY = 4096;
+
+    /**
+     * This class represents a decode lane, it counts the messages which are dropped because the lane is full.<br>
+     * The first dropped message is logged immediately, the total is logged as soon as the lane has caught up
+     */
+    private static class DecodeLane extends ThreadPoolExecutor {
+        /**
+         * Amount of messages which were dropped since the lane was full the last time
+         */
+        private final AtomicInteger dropped = new AtomicInteger();
+
+        DecodeLane(String name) {
+            super(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(DECODE_QUEUE_CAPACITY), runnable -> {
+                Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+            setRejectedExecutionHandler((runnable, executor) -> {
+                if (dropped.getAndIncrement() == 0) {
+                    logger.warn("Decode lane " + name + " is full, received messages are dropped");
+                }
+            });
+        }
+
+        @Override
+        protected void afterExecute(Runnable runnable, Throwable throwable) {
+            if (getQueue().isEmpty() && dropped.get() > 0) {
+                logger.warn("Decode lane " + Thread.currentThread().getName() + " dropped " + dropped.getAndSet(0) + " received messages");
+            }
+        }
+    }
+
     /**
      * List of all subscribed {@link INetworkConsumer consumer}
      */
@@ -50,6 +96,16 @@ public abstract class AbstractNetwork implements NetworkListener {
       */
     private Message lastMessage = null;
 
+    /**
+     * Lock of the {@link AbstractNetwork#lastMessage last message}
+     */
+    private final Object lastMessageLock = new Object();
+
+    /**
+     * Single threaded executors which decode received messages, they are created on the first received message
+     */
+    private volatile ExecutorService[] decodeLanes;
+
     /**
      * Represents the used {@link IMessageDecoder decoder}
      */
@@ -60,7 +116,7 @@ public abstract class AbstractNetwork implements NetworkListener {
      * Instantiates this abstract class
      */
     protected AbstractNetwork(){
-        this.networkConsumer = new ArrayList<>();
+        this.networkConsumer = new CopyOnWriteArrayList<>();
     }
 
     /**
@@ -129,18 +185,96 @@ public abstract class AbstractNetwork implements NetworkListener {
         networkConsumer.remove(subscriber);
     }
 
+    /**
+     * Checks if at least one {@link INetworkConsumer} is subscribed.<br>
+     * Networks can use this method to skip decoding received data nobody is interested in
+     * @return True iff a consumer is subscribed
+     */
+    public boolean hasNetworkConsumer(){
+        return !networkConsumer.isEmpty();
+    }
+
     /**
      * This method notifies all subscribed {@link INetworkConsumer} with a provided {@link Message}
      * @param message Message which was received by the network
      */
     protected void notifyNetworkConsumer(Message message){
-        if(null == message || (message.equals(lastMessage) && !User.isSystem(message.getUser()))){
+        if(null == message){
             return;
         }
-        lastMessage = message;
+        synchronized (lastMessageLock) {
+            if(message.equals(lastMessage) && !User.isSystem(message.getUser())){
+                return;
+            }
+            lastMessage = message;
+        }
         networkConsumer.forEach(consumer -> consumer.networkDataReceived(message));
     }
 
+    /**
+     * Decodes received data and passes the {@link Message message} to {@link NetworkListener#messageReceived messageReceived}.<br>
+     * The data is handled by the decode lane of its source, so the calling IO thread returns immediately.
+     * Without decode lanes the data is decoded by the calling thread
+     * @param source Id or hash of the original sender, data of the same source keeps its order
+     * @param data Received data, it is not modified afterwards
+     */
+    public void decodeReceived(int source, byte[] data){
+        ExecutorService[] lanes = decodeLanes();
+        if(lanes.length == 0){
+            decode(data);
+            return;
+        }
+        lanes[Math.floorMod(source, lanes.length)].execute(() -> decode(data));
+    }
+
+    /**
+     * Decodes the remaining bytes of a buffer like {@link AbstractNetwork#decodeReceived(int, byte[])}, the bytes are copied and the buffer is consumed
+     * @param source Id or hash of the original sender, data of the same source keeps its order
+     * @param data Buffer which contains the received data
+     */
+    public void decodeReceived(int source, ByteBuffer data){
+        byte[] copy = new byte[data.remaining()];
+        data.get(copy);
+        decodeReceived(source, copy);
+    }
+
+    /**
+     * Decodes data and passes the message to {@link NetworkListener#messageReceived messageReceived}, an invalid message is logged and dropped
+     * @param data Received data
+     */
+    private void decode(byte[] data){
+        try {
+            messageReceived(decoder.decode(data));
+        } catch (Exception ex) {
+            logger.warn("Cannot decode message", ex);
+        }
+    }
+
+    /**
+     * Access the decode lanes, they are created on the first call with the configured {@link de.hrw.dsalab.distsys.chat.data.Connection#getDecodeLanes() amount}
+     * @return Decode lanes, it is empty iff messages are decoded by the receiving thread
+     */
+    private ExecutorService[] decodeLanes(){
+        ExecutorService[] lanes = decodeLanes;
+        return null == lanes ? createDecodeLanes() : lanes;
+    }
+
+    /**
+     * Creates the decode lanes unless another thread has already created them
+     * @return Decode lanes
+     */
+    private synchronized ExecutorService[] createDecodeLanes(){
+        if(null == decodeLanes){
+            int count = Math.max(0, Configuration.getConfiguration().getConnection().getDecodeLanes());
+            ExecutorService[] lanes = new ExecutorService[count];
+            for (int i = 0; i < count; i++) {
+                lanes[i] = new DecodeLane(getClass().getSimpleName() + " decoder " + i);
+            }
+            decodeLanes = lanes;
+        }
+        return decodeLanes;
+    }
+
     /**
      * This method constructs a new {@link Message#buildSystemMessage system message} and notifies all subscribes {@link INetworkConsumer consumer} that an error occurred
      * @param ex Exception which should be used
@@ -168,6 +302,14 @@ public abstract class AbstractNetwork implements NetworkListener {
         notifyNetworkConsumer(message);
     }
 
+    /**
+     * This method constructs a new {@link Message#buildSystemMessage system message} and notifies all subscribes {@link INetworkConsumer consumer} that the connection was interrupted and is reestablished automatically
+     */
+    public void reconnecting(){
+        Message message = Message.buildSystemMessage("Connection lost. Reconnecting...");
+        notifyNetworkConsumer(message);
+    }
+
     /**
      * This method initiates the shutdown sequence. <br>
      * It will wait until configured shutdown time is reached<br>
@@ -212,6 +354,16 @@ public abstract class AbstractNetwork implements NetworkListener {
      return GeneralUtils.checkCommand(data);
     }
 
+    /**
+     * Checks if the remaining bytes of a buffer are a command, the buffer is not modified.<br>
+     * A command is specified by 2 bytes, first one must be {@link GeneralUtils#CONTROL_CHARACTER CONTROL_CHARACTER}
+     * @param data buffer to validate
+     * @return True iff the buffer contains a command
+     */
+    public CommandSequence checkCommand(ByteBuffer data) {
+     return GeneralUtils.checkCommand(data);
+    }
+
 
 
 
@@ -0,0 +1,171 @@
+package de.hrw.dsalab.distsys.chat.network.rmi;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class coalesces the encoded messages of a remote receiver into batches.<br>
+ * Callers only queue their messages, a single thread delivers them in order and is stopped while the batcher is idle.
+ * Before a batch is taken the thread waits for the batch window unless a full batch is already queued, so a burst of
+ * messages costs one remote call per batch instead of one per message
+ * @author Nils Milewski
+ * @version 1.1
+ * @since 3.2
+ */
+public class MessageBatcher {
+    /**
+     * Seconds after which the idle delivery thread is stopped
+     */
+    private static final long IDLE_TIMEOUT = 60;
+
+    /**
+     * This interface represents the receiver of the batches
+     */
+    public interface Sink {
+        /**
+         * Delivers a batch, it is called by the delivery thread only
+         * @param batch Encoded messages in the order in which they were queued, the list is reused afterwards
+         * @return False iff the delivery should stop, the queued messages are no longer delivered
+         */
+        boolean deliver(List<byte[]> batch);
+    }
+
+    /**
+     * Messages which wait to be delivered
+     */
+    private final BlockingQueue<byte[]> queue;
+
+    /**
+     * Executor which runs the delivery thread
+     */
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * States that a drain of the queue is scheduled or running
+     */
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+    /**
+     * Receiver of the batches
+     */
+    private final Sink sink;
+
+    /**
+     * Length of the batch window in milliseconds
+     */
+    private final long window;
+
+    /**
+     * Maximum amount of messages in a batch
+     */
+    private final int batchSize;
+
+    /**
+     * Batch which is delivered, it is only used by the delivery thread
+     */
+    private final List<byte[]> batch = new ArrayList<>();
+
+    /**
+     * Creates a new batcher, the delivery thread is started on demand
+     * @param name Name of the delivery thread
+     * @param capacity Amount of messages which can be queued
+     * @param window Length of the batch window in milliseconds, 0 only batches the messages which are already queued
+     * @param batchSize Maximum amount of messages in a batch
+     * @param sink Receiver of the batches
+     */
+    public MessageBatcher(String name, int capacity, long window, int batchSize, Sink sink) {
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, capacity));
+        this.window = Math.max(0, window);
+        this.batchSize = Math.max(1, batchSize);
+        this.sink = sink;
+        this.executor = new ThreadPoolExecutor(1, 1, IDLE_TIMEOUT, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Queues a message
+     * @param data Encoded message, it is not modified afterwards
+     * @return False iff the queue is full and the message was not queued
+     */
+    public boolean offer(byte[] data) {
+        if (!queue.offer(data)) {
+            return false;
+        }
+        schedule();
+        return true;
+    }
+
+    /**
+     * Removes the oldest queued message to make room for a new one
+     */
+    public void dropOldest() {
+        queue.poll();
+    }
+
+    /**
+     * Schedules a drain of the queue unless one is already scheduled
+     */
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            try {
+                executor.execute(this::drain);
+            } catch (RejectedExecutionException ex) {
+                // The batcher is already closed
+            }
+        }
+    }
+
+    /**
+     * Delivers batches until the queue is empty or the sink stops the delivery
+     */
+    private void drain() {
+        while (true) {
+            if (window > 0 && queue.size() < batchSize) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(window));
+            }
+            batch.clear();
+            queue.drainTo(batch, batchSize);
+            if (batch.isEmpty()) {
+                break;
+            }
+            if (!sink.deliver(batch)) {
+                return;
+            }
+        }
+        scheduled.set(false);
+        // A message which was queued after the last drain would otherwise wait for the next one
+        if (!queue.isEmpty()) {
+            schedule();
+        }
+    }
+
+    /**
+     * Stops the delivery thread after the queued messages are delivered, further messages are no longer delivered
+     */
+    public void close() {
+        executor.shutdown();
+    }
+
+    /**
+     * Stops the delivery thread like {@link MessageBatcher#close()} and waits until the queued messages are delivered
+     * @param timeout Maximum time to wait in milliseconds
+     * @return True iff the delivery thread finished in time
+     * @throws InterruptedException Thrown if the calling thread is interrupted while it waits
+     */
+    public boolean close(long timeout) throws InterruptedException {
+        close();
+        return executor.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+    }
+}
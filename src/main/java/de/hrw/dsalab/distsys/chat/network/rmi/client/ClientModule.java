@@ -1,7 +1,9 @@
 package de.hrw.dsalab.distsys.chat.network.rmi.client;
 
 import de.hrw.dsalab.distsys.chat.data.Configuration;
+import de.hrw.dsalab.distsys.chat.data.Connection;
 import de.hrw.dsalab.distsys.chat.data.Message;
+import de.hrw.dsalab.distsys.chat.network.rmi.MessageBatcher;
 import de.hrw.dsalab.distsys.chat.network.rmi.RmiNetwork;
 import de.hrw.dsalab.distsys.chat.network.rmi.server.IRmiServer;
 import de.hrw.dsalab.distsys.chat.utils.GeneralUtils;
@@ -14,10 +16,16 @@ import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.Arrays;
+import java.util.List;
 
 public class ClientModule extends UnicastRemoteObject implements IRmiClient {
     private static final Logger logger = Logger.getLogger(ClientModule.class);
 
+    /**
+     * Time in milliseconds a stop waits for the queued messages to be sent
+     */
+    private static final long FLUSH_TIMEOUT = 5000;
+
      public ClientModule(RmiNetwork network) throws RemoteException {
         super();
         this.network = network;
@@ -26,6 +34,11 @@ public class ClientModule extends UnicastRemoteObject implements IRmiClient {
     private transient IRmiServer remoteServerModule;
     private final transient RmiNetwork network;
 
+    /**
+     * Batcher which coalesces the outgoing messages, it is null unless the module is started
+     */
+    private transient volatile MessageBatcher batcher;
+
 
     /**
      * Starts the server module
@@ -45,6 +58,9 @@ public class ClientModule extends UnicastRemoteObject implements IRmiClient {
             logger.info("Found: " + Arrays.toString(registry.list()));
             logger.info("Subscribed to server module");
             remoteServerModule.subscribe(this);
+            Connection connection = Configuration.getConfiguration().getConnection();
+            batcher = new MessageBatcher("RMI client", connection.getOutboundQueueCapacity(),
+                    connection.getRmiBatchWindow(), connection.getRmiBatchSize(), this::send);
             network.connectionEstablished(ip);
 
             logger.info("Module started");
@@ -56,35 +72,74 @@ public class ClientModule extends UnicastRemoteObject implements IRmiClient {
     }
 
     /**
-     * Stops the client module
+     * Stops the client module, the queued messages are sent before the disconnect sequence
      * @throws NetworkException Is thrown when an exception occurred during shutdown
      */
     public void stop() throws NetworkException{
         try {
             logger.info("Stopping module");
+            MessageBatcher pending = batcher;
+            batcher = null;
+            if (null != pending && !pending.close(FLUSH_TIMEOUT)) {
+                logger.warn("Queued messages were not sent within " + FLUSH_TIMEOUT + " ms");
+            }
             remoteServerModule.sendMessage(GeneralUtils.DISCONNECT_SEQUENCE);
             logger.info("Stopped module");
             network.connectionLost();
         } catch (RemoteException ex) {
             logger.critical("Cannot stop module", ex);
             network.exceptionOccurred(ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new NetworkException(ex);
         }
 
     }
 
+    /**
+     * Queues a message for the server, queued messages are coalesced and sent with as few remote calls as possible
+     * @param message Sent {@link Message message}
+     */
     public void sendMessage(Message message){
+        MessageBatcher queue = batcher;
+        if (null == queue) {
+            logger.warn("Module is not started, dropped message");
+            return;
+        }
+        byte[] data = network.getDecoder().encode(message);
+        if (!queue.offer(data)) {
+            logger.warn("Outbound queue is full, dropped message");
+        }
+    }
+
+    /**
+     * Sends a batch of messages to the server, a failed batch is reported and dropped
+     * @param batch Encoded messages
+     * @return Always true, the following messages are still sent
+     */
+    private boolean send(List<byte[]> batch) {
         try {
-            byte[] data = network.getDecoder().encode(message);
-            remoteServerModule.sendMessage(data);
+            if (batch.size() == 1) {
+                remoteServerModule.sendMessage(batch.get(0));
+            } else {
+                remoteServerModule.sendMessages(batch.toArray(new byte[0][]));
+            }
         } catch (RemoteException ex) {
             network.exceptionOccurred(ex);
         }
-
+        return true;
     }
 
     @Override
     public void dataReceivedFromServer(byte[] data) throws RemoteException {
-        Message msg = network.getDecoder().decode(data);
-        network.messageReceived(msg);
+        // All messages are relayed by the same server, they share one decode lane
+        network.decodeReceived(0, data);
+    }
+
+    @Override
+    public void dataReceivedFromServer(byte[][] data) throws RemoteException {
+        for (byte[] message : data) {
+            network.decodeReceived(0, message);
+        }
     }
 }
@@ -5,4 +5,11 @@ import java.rmi.RemoteException;
 
 public interface IRmiClient extends Remote {
     void dataReceivedFromServer(byte[] data) throws RemoteException;
+
+    /**
+     * Receives several encoded messages with a single remote call
+     * @param data Encoded messages in the order in which they were sent
+     * @throws RemoteException Thrown by RMI
+     */
+    void dataReceivedFromServer(byte[][] data) throws RemoteException;
 }
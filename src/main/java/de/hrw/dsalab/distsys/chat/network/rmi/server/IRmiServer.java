@@ -14,4 +14,11 @@ public interface IRmiServer extends Remote {
 
     void sendMessage(byte[] data) throws RemoteException;
 
+    /**
+     * Sends several encoded messages with a single remote call
+     * @param data Encoded messages in the order in which they were sent
+     * @throws RemoteException Thrown by RMI
+     */
+    void sendMessages(byte[][] data) throws RemoteException;
+
 }
@@ -1,52 +1,203 @@
 package de.hrw.dsalab.distsys.chat.network.rmi.server;
 
+import de.hrw.dsalab.distsys.chat.data.Configuration;
+import de.hrw.dsalab.distsys.chat.data.Connection;
 import de.hrw.dsalab.distsys.chat.enumerations.CommandSequence;
-import de.hrw.dsalab.distsys.chat.network.AbstractNetwork;
+import de.hrw.dsalab.distsys.chat.enumerations.OverflowPolicy;
+import de.hrw.dsalab.distsys.chat.network.rmi.MessageBatcher;
 import de.hrw.dsalab.distsys.chat.network.rmi.client.IRmiClient;
 import de.hrw.dsalab.distsys.chat.utils.GeneralUtils;
 import de.hrw.dsalab.distsys.chat.utils.Logger;
 
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 public class RmiServer extends UnicastRemoteObject implements IRmiServer{
     private static final Logger logger = Logger.getLogger(RmiServer.class);
 
-    private final List<IRmiClient> clients = new ArrayList<>();
+    /**
+     * Amount of consecutive failed deliveries after which a subscriber is evicted
+     */
+    private static final int MAX_FAILURES = 3;
+
+    /**
+     * This class delivers the messages of a single subscriber.<br>
+     * The messages are coalesced by its own {@link MessageBatcher}, so a slow or unreachable subscriber only delays itself
+     * and a burst costs one remote call per batch. A subscriber is evicted after {@link RmiServer#MAX_FAILURES} consecutive failed deliveries
+     */
+    private class Subscriber {
+        private final IRmiClient client;
+
+        /**
+         * Batcher which queues and delivers the messages
+         */
+        private final MessageBatcher batcher;
+
+        /**
+         * Amount of consecutive failed deliveries, it is only used by the delivery thread
+         */
+        private int failures = 0;
+
+        Subscriber(IRmiClient client) {
+            this.client = client;
+            this.batcher = new MessageBatcher("RMI subscriber", queueCapacity, batchWindow, batchSize, this::deliver);
+        }
+
+        /**
+         * Queues a message, a full queue is handled according to the {@link OverflowPolicy}
+         * @param data Encoded message
+         */
+        void offer(byte[] data) {
+            while (!batcher.offer(data)) {
+                if (overflowPolicy == OverflowPolicy.DISCONNECT) {
+                    logger.warn("Subscriber cannot keep up and is evicted");
+                    evict(this);
+                    return;
+                }
+                if (overflowPolicy == OverflowPolicy.DROP_NEWEST) {
+                    logger.warn("Delivery queue of a subscriber is full, dropped message");
+                    return;
+                }
+                batcher.dropOldest();
+            }
+        }
+
+        /**
+         * Delivers a batch to the subscriber, a failed batch is dropped
+         * @param batch Encoded messages
+         * @return False iff the subscriber was evicted
+         */
+        private boolean deliver(List<byte[]> batch) {
+            try {
+                if (batch.size() == 1) {
+                    client.dataReceivedFromServer(batch.get(0));
+                } else {
+                    client.dataReceivedFromServer(batch.toArray(new byte[0][]));
+                }
+                failures = 0;
+                return true;
+            } catch (RemoteException ex) {
+                failures++;
+                logger.warn("Cannot deliver to subscriber (" + failures + "/" + MAX_FAILURES + "): " + ex.getMessage());
+                if (failures < MAX_FAILURES) {
+                    return true;
+                }
+                evict(this);
+                return false;
+            }
+        }
+
+        /**
+         * Stops the delivery thread
+         */
+        void close() {
+            batcher.close();
+        }
+    }
+
+    /**
+     * Subscribed clients by their stub
+     */
+    private final ConcurrentMap<IRmiClient, Subscriber> subscribers = new ConcurrentHashMap<>();
+
+    /**
+     * Amount of messages which can be queued for a single subscriber
+     */
+    private final int queueCapacity;
+
+    /**
+     * {@link OverflowPolicy} when the queue of a subscriber is full
+     */
+    private final OverflowPolicy overflowPolicy;
+
+    /**
+     * Length of the batch window of a subscriber in milliseconds
+     */
+    private final long batchWindow;
+
+    /**
+     * Maximum amount of messages which are delivered to a subscriber at once
+     */
+    private final int batchSize;
 
     public RmiServer() throws RemoteException{
         super();
+        Connection connection = Configuration.getConfiguration().getConnection();
+        this.queueCapacity = connection.getOutboundQueueCapacity();
+        this.overflowPolicy = connection.getOverflowPolicy();
+        this.batchWindow = connection.getRmiBatchWindow();
+        this.batchSize = connection.getRmiBatchSize();
     }
 
+    /**
+     * Queues a message for every subscriber, the method returns without waiting for the deliveries
+     * @param data Encoded message
+     */
     private void notifyClients(byte[] data){
         logger.info("Data received, broadcast to clients");
-        for (IRmiClient client : clients) {
-            try {
-                client.dataReceivedFromServer(data);
-            }catch (RemoteException ex){
-                ex.printStackTrace();
-            }
+        for (Subscriber subscriber : subscribers.values()) {
+            subscriber.offer(data);
+        }
+    }
+
+    /**
+     * Removes a subscriber which cannot be reached or cannot keep up
+     * @param subscriber Evicted subscriber
+     */
+    private void evict(Subscriber subscriber) {
+        if (subscribers.remove(subscriber.client, subscriber)) {
+            logger.info("Client evicted");
         }
+        subscriber.close();
     }
 
     @Override
     public void subscribe(IRmiClient subscriber) throws RemoteException {
         logger.info("Client connected");
-        clients.add(subscriber);
+        subscribers.computeIfAbsent(subscriber, Subscriber::new);
     }
 
     @Override
     public void unsubscribe(IRmiClient subscriber) throws RemoteException {
         logger.info("Client disconnected");
-        clients.remove(subscriber);
+        Subscriber removed = subscribers.remove(subscriber);
+        if (null != removed) {
+            removed.close();
+        }
     }
 
+    /**
+     * Accepts a message and queues it for every subscriber, the deliveries are done asynchronously
+     * @param data Encoded message
+     * @throws RemoteException Thrown by RMI
+     */
     @Override
     public void sendMessage(byte[] data) throws RemoteException {
         if(GeneralUtils.checkCommand(data) == CommandSequence.REGULAR) {
             notifyClients(data);
         }
     }
+
+    /**
+     * Accepts a batch of messages and queues every message for every subscriber, the deliveries are done asynchronously
+     * @param data Encoded messages in the order in which they were sent
+     * @throws RemoteException Thrown by RMI
+     */
+    @Override
+    public void sendMessages(byte[][] data) throws RemoteException {
+        for (byte[] message : data) {
+            sendMessage(message);
+        }
+    }
+
+    /**
+     * Removes all subscribers and stops their delivery threads
+     */
+    public void close() {
+        subscribers.values().forEach(Subscriber::close);
+        subscribers.clear();
+    }
 }
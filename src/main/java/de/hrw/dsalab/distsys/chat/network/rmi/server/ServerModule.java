@@ -16,6 +16,7 @@ import java.rmi.registry.Registry;
 public class ServerModule {
     private static final Logger logger = Logger.getLogger(ServerModule.class);
     private Registry registry;
+    private RmiServer rmiServer;
     public ServerModule() {}
 
     /**
@@ -28,7 +29,7 @@ public class ServerModule {
         }
         logger.info("Module starting");
         try {
-            RmiServer rmiServer = new RmiServer();
+            rmiServer = new RmiServer();
 
             logger.info("Search registry");
             registry = LocateRegistry.getRegistry();
@@ -53,6 +54,7 @@ public class ServerModule {
         logger.info("Stopping module");
         try {
             registry.unbind(IRmiServer.EXPORT_NAME);
+            rmiServer.close();
             logger.info("Stopped module");
         } catch (RemoteException | NotBoundException ex) {
             logger.critical("Cannot stop module", ex);
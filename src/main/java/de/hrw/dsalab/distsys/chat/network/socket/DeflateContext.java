@@ -0,0 +1,105 @@
+package de.hrw.dsalab.distsys.chat.network.socket;
+
+import de.hrw.dsalab.distsys.chat.enumerations.FrameType;
+import de.hrw.dsalab.distsys.chat.utils.exceptions.NetworkException;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * This class represents the streaming compression context of a single connection of the {@link SocketNetwork}.<br>
+ * The {@link Deflater} and the {@link Inflater} live as long as the connection, every frame is terminated by a sync flush.
+ * Therefore a frame can be decoded as soon as it is received, while later frames still refer to the history of earlier ones.<br>
+ * The context is negotiated by the capability flags of the {@link FrameType#CONNECT} frame and is used for
+ * {@link FrameType#MESSAGE_DEFLATE} frames. Compression and decompression can run on different threads,
+ * but each of them must only be called by one thread at a time.
+ * @author Nils Milewski
+ * @version 1.0
+ * @since 3.2
+ */
+class DeflateContext {
+    /**
+     * Capability flag which states that a peer supports {@link FrameType#MESSAGE_DEFLATE} frames
+     */
+    static final byte CAPABILITY_DEFLATE = 1;
+
+    /**
+     * Size of the scratch buffer
+     */
+    private static final int SCRATCH_SIZE = 4096;
+
+    /**
+     * Compresses outbound payloads
+     */
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+
+    /**
+     * Decompresses inbound payloads
+     */
+    private final Inflater inflater = new Inflater(true);
+
+    /**
+     * Scratch buffer which is reused by every {@link DeflateContext#deflate} call
+     */
+    private final byte[] deflateScratch = new byte[SCRATCH_SIZE];
+
+    /**
+     * Scratch buffer which is reused by every {@link DeflateContext#inflate} call
+     */
+    private final byte[] inflateScratch = new byte[SCRATCH_SIZE];
+
+    /**
+     * Compresses a payload and flushes the compressed data
+     * @param payload Uncompressed payload, all remaining bytes are consumed
+     * @return Compressed payload
+     */
+    byte[] deflate(ByteBuffer payload) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(payload.remaining() / 2 + 16);
+        deflater.setInput(payload);
+        int length;
+        do {
+            // A sync flush is complete iff the scratch buffer was not filled
+            length = deflater.deflate(deflateScratch, 0, deflateScratch.length, Deflater.SYNC_FLUSH);
+            out.write(deflateScratch, 0, length);
+        } while (length == deflateScratch.length || !deflater.needsInput());
+        return out.toByteArray();
+    }
+
+    /**
+     * Decompresses a payload which was compressed by {@link DeflateContext#deflate} of the remote peer
+     * @param payload Compressed payload, all remaining bytes are consumed
+     * @return Uncompressed payload
+     * @throws NetworkException Thrown if the data is corrupted or exceeds {@link FrameEncoder#MAX_FRAME_SIZE}
+     */
+    byte[] inflate(ByteBuffer payload) throws NetworkException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(payload.remaining() * 2 + 16);
+        inflater.setInput(payload);
+        try {
+            int length;
+            while ((length = inflater.inflate(inflateScratch)) > 0 || !inflater.needsInput()) {
+                if (length == 0) {
+                    // Input is left but nothing can be produced, the stream was finished or requires a dictionary
+                    throw new NetworkException("Unexpected end of compressed stream");
+                }
+                out.write(inflateScratch, 0, length);
+                if (out.size() > FrameEncoder.MAX_FRAME_SIZE) {
+                    throw new NetworkException("Decompressed frame exceeds " + FrameEncoder.MAX_FRAME_SIZE + " bytes");
+                }
+            }
+        } catch (DataFormatException ex) {
+            throw new NetworkException("Corrupted compressed frame", ex);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Releases the native resources, the context must not be used afterwards
+     */
+    void end() {
+        deflater.end();
+        inflater.end();
+    }
+}
@@ -0,0 +1,164 @@
+package de.hrw.dsalab.distsys.chat.network.socket;
+
+import de.hrw.dsalab.distsys.chat.enumerations.FrameType;
+import de.hrw.dsalab.distsys.chat.utils.exceptions.NetworkException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * This class decodes a stream of frames created by the {@link FrameEncoder}.<br>
+ * Received data is accumulated inside an internal buffer, a read can contain a partial frame or several frames.<br>
+ * Every complete frame is handed to a {@link FrameHandler}, incomplete frames stay inside the buffer until the
+ * remaining bytes are received.<br>
+ * <b>NOTE</b> An instance must be used by a single connection and a single thread
+ * @author Nils Milewski
+ * @version 1.1
+ * @since 3.2
+ */
+class FrameDecoder {
+    /**
+     * This interface is called for every decoded frame
+     */
+    interface FrameHandler {
+        /**
+         * Called when a complete frame was decoded
+         * @param type {@link FrameType} of the frame
+         * @param payload Read only view of the payload, it is only valid during this call
+         * @param frame Read only view of the complete frame including its header, it is only valid during this call
+         * @throws IOException Can be thrown to abort the decoding
+         */
+        void frameReceived(FrameType type, ByteBuffer payload, ByteBuffer frame) throws IOException;
+    }
+
+    /**
+     * Accumulated data, the buffer is always in write mode between two calls
+     */
+    private ByteBuffer buffer;
+
+    /**
+     * Constructs a new decoder
+     * @param initialCapacity Initial capacity of the internal buffer
+     */
+    FrameDecoder(int initialCapacity) {
+        buffer = ByteBuffer.allocate(initialCapacity);
+    }
+
+    /**
+     * Access the internal buffer to read received data directly into it.<br>
+     * The buffer is grown iff it is full
+     * @return Internal buffer in write mode
+     */
+    ByteBuffer buffer() {
+        if (!buffer.hasRemaining()) {
+            grow(buffer.capacity() * 2);
+        }
+        return buffer;
+    }
+
+    /**
+     * Discards all buffered data, it is used when the underlying connection is replaced
+     */
+    void reset() {
+        buffer.clear();
+    }
+
+    /**
+     * Appends data to the internal buffer and decodes all complete frames
+     * @param data Received data
+     * @param handler {@link FrameHandler} which is called for every frame
+     * @throws IOException Thrown if the stream is corrupted or thrown by the handler
+     */
+    void decode(byte[] data, FrameHandler handler) throws IOException {
+        int offset = 0;
+        while (offset < data.length) {
+            ByteBuffer target = buffer();
+            int chunk = Math.min(target.remaining(), data.length - offset);
+            target.put(data, offset, chunk);
+            offset += chunk;
+            decode(handler);
+        }
+    }
+
+    /**
+     * Decodes all complete frames which are inside the internal buffer
+     * @param handler {@link FrameHandler} which is called for every frame
+     * @throws IOException Thrown if the stream is corrupted or thrown by the handler
+     */
+    void decode(FrameHandler handler) throws IOException {
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining()) {
+                int start = buffer.position();
+                int length = readLength();
+                if (length == -1 || buffer.remaining() < length) {
+                    // Incomplete frame, wait for more data
+                    buffer.position(start);
+                    break;
+                }
+                FrameType type = FrameType.fromOpcode(buffer.get());
+                if (null == type) {
+                    throw new NetworkException("Unknown frame opcode");
+                }
+                ByteBuffer payload = buffer.slice();
+                payload.limit(length - 1);
+                int end = buffer.position() + length - 1;
+                ByteBuffer frame = buffer.duplicate();
+                frame.position(start).limit(end);
+                buffer.position(end);
+                handler.frameReceived(type, payload.asReadOnlyBuffer(), frame.asReadOnlyBuffer());
+            }
+        } finally {
+            buffer.compact();
+        }
+    }
+
+    /**
+     * Reads the varint length header of the next frame
+     * @return Length of the frame or -1 iff the header is incomplete
+     * @throws NetworkException Thrown if the length is invalid
+     */
+    private int readLength() throws NetworkException {
+        int value = readVarint(buffer);
+        if (value != -1 && (value < 1 || value > FrameEncoder.MAX_FRAME_SIZE)) {
+            throw new NetworkException("Invalid frame length " + value);
+        }
+        return value;
+    }
+
+    /**
+     * Reads an unsigned varint which was written by {@link FrameEncoder#writeVarint}
+     * @param buffer Buffer which is read from its position, the position is moved behind the varint
+     * @return Value of the varint or -1 iff the varint is incomplete
+     * @throws NetworkException Thrown if the varint exceeds {@link FrameEncoder#MAX_VARINT_SIZE} bytes or an int
+     */
+    static int readVarint(ByteBuffer buffer) throws NetworkException {
+        int value = 0;
+        for (int i = 0; i < FrameEncoder.MAX_VARINT_SIZE; i++) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            byte b = buffer.get();
+            value |= (b & 0x7F) << (7 * i);
+            if ((b & 0x80) == 0) {
+                if (value < 0) {
+                    throw new NetworkException("Malformed varint");
+                }
+                return value;
+            }
+        }
+        throw new NetworkException("Malformed varint");
+    }
+
+    /**
+     * Grows the internal buffer
+     * @param capacity Minimum capacity of the new buffer, it is capped by the size of the largest possible frame
+     */
+    private void grow(int capacity) {
+        int limit = FrameEncoder.MAX_FRAME_SIZE + FrameEncoder.MAX_VARINT_SIZE;
+        ByteBuffer grown = ByteBuffer.allocate(Math.min(Math.max(capacity, buffer.capacity()), limit));
+        buffer.flip();
+        grown.put(buffer);
+        buffer = grown;
+    }
+}
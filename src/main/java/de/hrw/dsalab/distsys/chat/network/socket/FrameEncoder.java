@@ -0,0 +1,169 @@
+package de.hrw.dsalab.distsys.chat.network.socket;
+
+import de.hrw.dsalab.distsys.chat.enumerations.FrameType;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+/**
+ * This is a static class which encodes frames for the {@link SocketNetwork}.<br>
+ * A frame is built as follows <code>varint(length) | opcode | payload</code>, the length covers the opcode and the payload.<br>
+ * The payload of a {@link FrameType#MESSAGE} frame starts with the {@link UUID uid} of the sender followed by the encoded message,
+ * this header can be validated without decoding the message
+ * @author Nils Milewski
+ * @version 1.0
+ * @since 3.2
+ */
+final class FrameEncoder {
+    private FrameEncoder() {}
+
+    /**
+     * Maximum size of a frame, larger frames are rejected by the {@link FrameDecoder}
+     */
+    static final int MAX_FRAME_SIZE = 1 << 20;
+
+    /**
+     * Maximum amount of bytes a varint of an int can take
+     */
+    static final int MAX_VARINT_SIZE = 5;
+
+    /**
+     * Size of the sender header of a {@link FrameType#MESSAGE} frame
+     */
+    static final int SENDER_SIZE = 16;
+
+    /**
+     * Represents an empty payload
+     */
+    private static final byte[] EMPTY = new byte[0];
+
+    /**
+     * Encodes a frame without a payload
+     * @param type {@link FrameType} of the frame
+     * @return Encoded frame
+     */
+    static byte[] encode(FrameType type) {
+        return encode(type, EMPTY);
+    }
+
+    /**
+     * Encodes a frame
+     * @param type {@link FrameType} of the frame
+     * @param payload Payload of the frame
+     * @return Encoded frame
+     * @throws IllegalArgumentException Thrown if the payload exceeds {@link FrameEncoder#MAX_FRAME_SIZE}
+     */
+    static byte[] encode(FrameType type, byte[] payload) {
+        int length = frameLength(payload);
+        ByteBuffer buffer = ByteBuffer.allocate(varintSize(length) + length);
+        write(buffer, type, payload);
+        return buffer.array();
+    }
+
+    /**
+     * Builds the payload of a {@link FrameType#MESSAGE} frame
+     * @param sender {@link UUID Uid} of the sending user, null is written as a zero uid
+     * @param message Encoded message
+     * @return Payload of the frame
+     */
+    static byte[] messagePayload(UUID sender, byte[] message) {
+        ByteBuffer buffer = ByteBuffer.allocate(SENDER_SIZE + message.length);
+        buffer.putLong(null == sender ? 0 : sender.getMostSignificantBits());
+        buffer.putLong(null == sender ? 0 : sender.getLeastSignificantBits());
+        buffer.put(message);
+        return buffer.array();
+    }
+
+    /**
+     * Reads the sender of a {@link FrameType#MESSAGE} payload without changing its position
+     * @param payload Payload of the frame, it must contain at least {@link FrameEncoder#SENDER_SIZE} bytes
+     * @return {@link UUID Uid} of the sender
+     */
+    static UUID readSender(ByteBuffer payload) {
+        int position = payload.position();
+        return new UUID(payload.getLong(position), payload.getLong(position + 8));
+    }
+
+    /**
+     * Copies a received frame into a read only direct buffer, the bytes are not modified.<br>
+     * The buffer can be shared like one created by {@link FrameEncoder#encodeShared}
+     * @param frame Complete frame including its header
+     * @return Read only direct buffer which contains the frame
+     */
+    static ByteBuffer share(ByteBuffer frame) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(frame.remaining());
+        buffer.put(frame.duplicate());
+        buffer.flip();
+        return buffer.asReadOnlyBuffer();
+    }
+
+    /**
+     * Encodes a frame into a read only direct buffer.<br>
+     * The buffer is meant to be shared by many connections, every connection must write a {@link ByteBuffer#duplicate() duplicate}
+     * so the position of the shared buffer is never modified
+     * @param type {@link FrameType} of the frame
+     * @param payload Payload of the frame
+     * @return Read only direct buffer which contains the encoded frame
+     * @throws IllegalArgumentException Thrown if the payload exceeds {@link FrameEncoder#MAX_FRAME_SIZE}
+     */
+    static ByteBuffer encodeShared(FrameType type, byte[] payload) {
+        int length = frameLength(payload);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(varintSize(length) + length);
+        write(buffer, type, payload);
+        buffer.flip();
+        return buffer.asReadOnlyBuffer();
+    }
+
+    /**
+     * Calculates the length of a frame which is written into the header
+     * @param payload Payload of the frame
+     * @return Length of the opcode and the payload
+     * @throws IllegalArgumentException Thrown if the payload exceeds {@link FrameEncoder#MAX_FRAME_SIZE}
+     */
+    private static int frameLength(byte[] payload) {
+        int length = payload.length + 1;
+        if (length > MAX_FRAME_SIZE) {
+            throw new IllegalArgumentException("Frame exceeds " + MAX_FRAME_SIZE + " bytes");
+        }
+        return length;
+    }
+
+    /**
+     * Writes a frame into a buffer
+     * @param buffer Target buffer, it must be large enough
+     * @param type {@link FrameType} of the frame
+     * @param payload Payload of the frame
+     */
+    private static void write(ByteBuffer buffer, FrameType type, byte[] payload) {
+        writeVarint(buffer, payload.length + 1);
+        buffer.put(type.getOpcode());
+        buffer.put(payload);
+    }
+
+    /**
+     * Calculates how many bytes are required to write a varint
+     * @param value Value to write
+     * @return Amount of bytes
+     */
+    static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * Writes an unsigned varint, 7 bits per byte with the most significant bit as continuation flag
+     * @param buffer Target buffer
+     * @param value Value to write
+     */
+    static void writeVarint(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+}
@@ -0,0 +1,499 @@
+package de.hrw.dsalab.distsys.chat.network.socket;
+
+import de.hrw.dsalab.distsys.chat.enumerations.FrameType;
+import de.hrw.dsalab.distsys.chat.utils.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * This class stores the recent chat history of the {@link SocketServerModule} in an on-disk segment file.<br>
+ * The segment contains the relayed {@link FrameType#MESSAGE} frames byte by byte, so a region of the file can be sent
+ * to a new client with {@link FileChannel#transferTo} without copying it through the heap.<br>
+ * A sidecar index file stores the offset and the timestamp of every frame, therefore the history survives a restart of the server.
+ * The segment is compacted as soon as most of the file is outside the retained history. The retained frames are copied
+ * by a background thread without holding the lock of the segment, only the frames appended in the meantime are copied
+ * before the files are swapped, so appends on the relay path are not stalled by a compaction.<br>
+ * All methods are thread safe.
+ * @author Nils Milewski
+ * @version 1.1
+ * @since 3.2
+ */
+class HistorySegment {
+    private static final Logger logger = Logger.getLogger(HistorySegment.class);
+
+    /**
+     * Size of an index entry, the offset and the timestamp of a frame
+     */
+    private static final int INDEX_ENTRY_SIZE = 16;
+
+    /**
+     * Amount of dead bytes at the start of the segment which triggers a compaction
+     */
+    private static final long COMPACT_THRESHOLD = 4L * FrameEncoder.MAX_FRAME_SIZE;
+
+    /**
+     * Amount of index entries which are rewritten at once during a compaction
+     */
+    private static final int INDEX_CHUNK = 4096;
+
+    /**
+     * Thread which compacts the segments, it is shared by all segments
+     */
+    private static final ExecutorService compactor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "History compactor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * This class represents a retained frame
+     */
+    private static class Entry {
+        /**
+         * Offset of the frame inside the segment
+         */
+        private long offset;
+
+        /**
+         * Time when the frame was appended
+         */
+        private final long timestamp;
+
+        Entry(long offset, long timestamp) {
+            this.offset = offset;
+            this.timestamp = timestamp;
+        }
+    }
+
+    /**
+     * This class represents a region of the segment which should be replayed to a new client
+     */
+    static class Snapshot {
+        /**
+         * Channel of the segment, it is owned by the receiver of the snapshot and must be closed after the replay.
+         * It is null iff the region is empty
+         */
+        final FileChannel channel;
+
+        /**
+         * Start of the region
+         */
+        final long position;
+
+        /**
+         * End of the region
+         */
+        final long end;
+
+        /**
+         * Sequence of the last frame inside the region, later frames must be sent live
+         */
+        final long sequence;
+
+        Snapshot(FileChannel channel, long position, long end, long sequence) {
+            this.channel = channel;
+            this.position = position;
+            this.end = end;
+            this.sequence = sequence;
+        }
+    }
+
+    /**
+     * Path of the segment file
+     */
+    private final Path dataPath;
+
+    /**
+     * Path of the index file
+     */
+    private final Path indexPath;
+
+    /**
+     * Maximum amount of retained frames, 0 or less means unlimited
+     */
+    private final int maxFrames;
+
+    /**
+     * Maximum age of retained frames in milliseconds, 0 or less means unlimited
+     */
+    private final long maxAge;
+
+    /**
+     * Retained frames, the oldest frame is the first. They are always the last entries of the index file
+     */
+    private final Deque<Entry> entries = new ArrayDeque<>();
+
+    /**
+     * Channel which appends to the segment file
+     */
+    private FileChannel data;
+
+    /**
+     * Channel which appends to the index file
+     */
+    private FileChannel index;
+
+    /**
+     * End of the segment file
+     */
+    private long dataEnd = 0;
+
+    /**
+     * End of the index file
+     */
+    private long indexEnd = 0;
+
+    /**
+     * Sequence of the last appended frame, it is only valid during the lifetime of the instance
+     */
+    private long sequence = 0;
+
+    /**
+     * States that the segment was closed or failed, an inactive segment does not retain any frames
+     */
+    private boolean active = true;
+
+    /**
+     * States that a compaction is scheduled or running
+     */
+    private boolean compacting = false;
+
+    /**
+     * Opens a segment, the frames of an existing segment are recovered
+     * @param file Path of the segment file, the index file uses the same path with the suffix <code>.idx</code>
+     * @param maxFrames Maximum amount of retained frames, 0 or less means unlimited
+     * @param maxAge Maximum age of retained frames in milliseconds, 0 or less means unlimited
+     * @throws IOException Thrown if the files cannot be opened
+     */
+    HistorySegment(String file, int maxFrames, long maxAge) throws IOException {
+        this.dataPath = Paths.get(file).toAbsolutePath();
+        this.indexPath = Paths.get(file + ".idx").toAbsolutePath();
+        this.maxFrames = maxFrames;
+        this.maxAge = maxAge;
+        if (null != dataPath.getParent()) {
+            Files.createDirectories(dataPath.getParent());
+        }
+        open();
+        recover();
+        trim(System.currentTimeMillis());
+        logger.info("Recovered " + entries.size() + " history frames");
+    }
+
+    /**
+     * Appends a frame to the segment
+     * @param frame Shared read only {@link FrameType#MESSAGE} frame, it is not modified
+     * @return Sequence of the frame
+     */
+    synchronized long append(ByteBuffer frame) {
+        sequence++;
+        if (!active) {
+            return sequence;
+        }
+        long now = System.currentTimeMillis();
+        try {
+            writeFully(data, frame.duplicate(), dataEnd);
+            ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+            entry.putLong(dataEnd).putLong(now).flip();
+            writeFully(index, entry, indexEnd);
+            entries.addLast(new Entry(dataEnd, now));
+            dataEnd += frame.remaining();
+            indexEnd += INDEX_ENTRY_SIZE;
+            trim(now);
+            if (!compacting && !entries.isEmpty() && entries.getFirst().offset >= COMPACT_THRESHOLD
+                    && entries.getFirst().offset * 2 >= dataEnd) {
+                compacting = true;
+                compactor.execute(this::compact);
+            }
+        } catch (IOException ex) {
+            logger.warn("History disabled, cannot append frame: " + ex.getMessage());
+            close();
+        }
+        return sequence;
+    }
+
+    /**
+     * Creates a snapshot of the retained history
+     * @return {@link Snapshot} of all retained frames
+     */
+    synchronized Snapshot snapshot() {
+        if (!active) {
+            return new Snapshot(null, 0, 0, sequence);
+        }
+        trim(System.currentTimeMillis());
+        if (entries.isEmpty()) {
+            return new Snapshot(null, 0, 0, sequence);
+        }
+        try {
+            // A new channel keeps the current file even if it is replaced by a compaction
+            FileChannel channel = FileChannel.open(dataPath, StandardOpenOption.READ);
+            return new Snapshot(channel, entries.getFirst().offset, dataEnd, sequence);
+        } catch (IOException ex) {
+            logger.warn("Cannot open history: " + ex.getMessage());
+            return new Snapshot(null, 0, 0, sequence);
+        }
+    }
+
+    /**
+     * States that a compaction is scheduled or running
+     * @return True iff the segment is compacted
+     */
+    synchronized boolean isCompacting() {
+        return compacting;
+    }
+
+    /**
+     * Closes the segment, the files are kept for the next start
+     */
+    synchronized void close() {
+        if (!active) {
+            return;
+        }
+        active = false;
+        entries.clear();
+        closeChannels();
+    }
+
+    /**
+     * Drops all frames which exceed the maximum amount or the maximum age, the files are not modified
+     * @param now Current time
+     */
+    private void trim(long now) {
+        while (maxFrames > 0 && entries.size() > maxFrames) {
+            entries.removeFirst();
+        }
+        while (maxAge > 0 && !entries.isEmpty() && entries.getFirst().timestamp < now - maxAge) {
+            entries.removeFirst();
+        }
+    }
+
+    /**
+     * Opens the channels of the segment and the index file
+     * @throws IOException Thrown if a file cannot be opened
+     */
+    private void open() throws IOException {
+        data = FileChannel.open(dataPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        index = FileChannel.open(indexPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Rebuilds the retained frames out of the index file.<br>
+     * A frame which is not completely written is discarded, both files are truncated after the last complete frame
+     * @throws IOException Thrown if a file cannot be read
+     */
+    private void recover() throws IOException {
+        long dataSize = data.size();
+        ByteBuffer buffer = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+        for (long position = 0; position + INDEX_ENTRY_SIZE <= index.size(); position += INDEX_ENTRY_SIZE) {
+            buffer.clear();
+            readFully(index, buffer, position);
+            buffer.flip();
+            long offset = buffer.getLong();
+            long timestamp = buffer.getLong();
+            long end = frameEnd(offset, dataSize);
+            if (offset != dataEnd || end < 0) {
+                break;
+            }
+            entries.addLast(new Entry(offset, timestamp));
+            sequence++;
+            dataEnd = end;
+        }
+        indexEnd = (long) entries.size() * INDEX_ENTRY_SIZE;
+        data.truncate(dataEnd);
+        index.truncate(indexEnd);
+    }
+
+    /**
+     * Calculates the end of a frame inside the segment file
+     * @param offset Offset of the frame
+     * @param dataSize Size of the segment file
+     * @return End of the frame or -1 iff the frame is incomplete or corrupted
+     * @throws IOException Thrown if the file cannot be read
+     */
+    private long frameEnd(long offset, long dataSize) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(FrameEncoder.MAX_VARINT_SIZE);
+        if (data.read(header, offset) <= 0) {
+            return -1;
+        }
+        header.flip();
+        int length = 0;
+        for (int i = 0; header.hasRemaining(); i++) {
+            byte b = header.get();
+            length |= (b & 0x7F) << (7 * i);
+            if ((b & 0x80) == 0) {
+                long end = offset + header.position() + length;
+                return length < 1 || length > FrameEncoder.MAX_FRAME_SIZE || end > dataSize ? -1 : end;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Rewrites the retained frames into new files and replaces the old ones, it is run by the {@link HistorySegment#compactor}.<br>
+     * The frames which are retained when the compaction starts are copied without the lock, frames which are appended in
+     * the meantime are copied while the files are swapped. A failed compaction disables the history
+     */
+    private void compact() {
+        Path dataTemp = Paths.get(dataPath + ".tmp");
+        Path indexTemp = Paths.get(indexPath + ".tmp");
+        try {
+            long shift;
+            long indexStart;
+            long copiedData;
+            long copiedIndex;
+            synchronized (this) {
+                if (!active || entries.isEmpty()) {
+                    return;
+                }
+                shift = entries.getFirst().offset;
+                indexStart = indexEnd - (long) entries.size() * INDEX_ENTRY_SIZE;
+                copiedData = dataEnd;
+                copiedIndex = indexEnd;
+            }
+            try (FileChannel dataSource = FileChannel.open(dataPath, StandardOpenOption.READ);
+                 FileChannel indexSource = FileChannel.open(indexPath, StandardOpenOption.READ);
+                 FileChannel dataTarget = FileChannel.open(dataTemp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                 FileChannel indexTarget = FileChannel.open(indexTemp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                transfer(dataSource, shift, copiedData, dataTarget);
+                copyIndex(indexSource, indexStart, copiedIndex, indexTarget, shift);
+                synchronized (this) {
+                    if (!active) {
+                        return;
+                    }
+                    // Frames which were appended during the copy
+                    transfer(data, copiedData, dataEnd, dataTarget);
+                    copyIndex(index, copiedIndex, indexEnd, indexTarget, shift);
+                    dataTarget.close();
+                    indexTarget.close();
+                    swap(shift, indexStart);
+                }
+            }
+        } catch (IOException ex) {
+            synchronized (this) {
+                logger.warn("History disabled, cannot compact: " + ex.getMessage());
+                close();
+            }
+        } finally {
+            synchronized (this) {
+                compacting = false;
+            }
+            try {
+                Files.deleteIfExists(dataTemp);
+                Files.deleteIfExists(indexTemp);
+            } catch (IOException ex) {
+                logger.warn("Cannot delete temporary history files", ex);
+            }
+        }
+    }
+
+    /**
+     * Replaces the segment and the index file with their compacted copies, it must be called with the lock held
+     * @param shift Amount of bytes which were removed from the start of the segment file
+     * @param indexStart Amount of bytes which were removed from the start of the index file
+     * @throws IOException Thrown if a file cannot be replaced
+     */
+    private void swap(long shift, long indexStart) throws IOException {
+        closeChannels();
+        // Channels opened by a snapshot keep the replaced file until they are closed
+        Files.move(Paths.get(dataPath + ".tmp"), dataPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.move(Paths.get(indexPath + ".tmp"), indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        open();
+        for (Entry entry : entries) {
+            entry.offset -= shift;
+        }
+        dataEnd -= shift;
+        indexEnd -= indexStart;
+        logger.info("Compacted history by " + shift + " bytes");
+    }
+
+    /**
+     * Appends a region of a file to another file
+     * @param source Source channel
+     * @param position Start of the region
+     * @param end End of the region
+     * @param target Target channel, the region is written at its current position
+     * @throws IOException Thrown if the region cannot be copied
+     */
+    private static void transfer(FileChannel source, long position, long end, FileChannel target) throws IOException {
+        while (position < end) {
+            position += source.transferTo(position, end - position, target);
+        }
+    }
+
+    /**
+     * Appends a region of an index file to another index file and moves the offsets of its entries
+     * @param source Source channel
+     * @param position Start of the region
+     * @param end End of the region
+     * @param target Target channel, the region is written at its current position
+     * @param shift Amount of bytes which is subtracted from every offset
+     * @throws IOException Thrown if the region cannot be copied
+     */
+    private static void copyIndex(FileChannel source, long position, long end, FileChannel target, long shift) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(INDEX_CHUNK * INDEX_ENTRY_SIZE);
+        while (position < end) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), end - position));
+            readFully(source, buffer, position);
+            position += buffer.limit();
+            for (int i = 0; i < buffer.limit(); i += INDEX_ENTRY_SIZE) {
+                buffer.putLong(i, buffer.getLong(i) - shift);
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                target.write(buffer);
+            }
+        }
+    }
+
+    /**
+     * Closes the channels of the segment and the index file
+     */
+    private void closeChannels() {
+        try {
+            data.close();
+            index.close();
+        } catch (IOException ex) {
+            logger.warn("Cannot close history", ex);
+        }
+    }
+
+    /**
+     * Writes the complete buffer at a position of a file
+     * @param channel Target channel
+     * @param buffer Data to write
+     * @param position Position inside the file
+     * @throws IOException Thrown if the data cannot be written
+     */
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * Fills the buffer with data at a position of a file
+     * @param channel Source channel
+     * @param buffer Target buffer
+     * @param position Position inside the file
+     * @throws IOException Thrown if the file ends before the buffer is full
+     */
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of history index");
+            }
+            position += read;
+        }
+    }
+}
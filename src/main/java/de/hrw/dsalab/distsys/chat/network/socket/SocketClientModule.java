@@ -1,38 +1,68 @@
 package de.hrw.dsalab.distsys.chat.network.socket;
 
 import de.hrw.dsalab.distsys.chat.data.Configuration;
+import de.hrw.dsalab.distsys.chat.data.Connection;
 import de.hrw.dsalab.distsys.chat.data.Message;
 
-import de.hrw.dsalab.distsys.chat.utils.GeneralUtils;
+import de.hrw.dsalab.distsys.chat.enumerations.FrameType;
 import de.hrw.dsalab.distsys.chat.utils.Logger;
+import de.hrw.dsalab.distsys.chat.utils.exceptions.NetworkException;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.InetAddress;
-import java.net.Socket;
-import java.net.UnknownHostException;
-import java.util.Arrays;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
- * This class is used by {@link SocketNetwork network} as a client module to handle traffic to a {@link SocketServerModule server} on a machine
+ * This class is used by {@link SocketNetwork network} as a client module to handle traffic to a {@link SocketServerModule server} on a machine.<br>
+ * The client thread blocks inside the read of a {@link SocketChannel} and decodes the frames out of a reusable buffer.<br>
+ * If the connection is lost the client reconnects automatically, the delay between two attempts grows exponentially
+ * and is randomized so many clients do not reconnect at the same time.<br>
+ * If a coalesce window is configured, outbound frames are collected by a {@link WriteCoalescer} and written at once.<br>
+ * If compression is enabled the client offers it with the connect frame, messages are only compressed after the server accepted it
  * @author Nils Milewski
- * @version 1.2
+ * @version 1.7
  * @since 1.2
  */
 class SocketClientModule {
     public static final Logger logger = Logger.getLogger(SocketClientModule.class);
 
+    /**
+     * Size of the read buffer
+     */
+    private static final int READ_BUFFER_SIZE = 8192;
+
     /**
      * States that the client is connected to the targeted {@link SocketServerModule}
      */
     private final AtomicBoolean connected = new AtomicBoolean(false);
 
+    /**
+     * States that the client should stay connected, it is set by {@link SocketClientModule#connect()}
+     * and cleared by {@link SocketClientModule#disconnect()}
+     */
+    private final AtomicBoolean running = new AtomicBoolean(false);
+
     /**
      * The underlying {@link SocketNetwork}
      */
     private final SocketNetwork network;
 
+    /**
+     * Lock which serializes writes of different threads, so frames are never interleaved
+     */
+    private final Object writeLock = new Object();
+
+    /**
+     * {@link FrameDecoder} for frames received from the {@link SocketServerModule}, its buffer is reused for every read
+     */
+    private final FrameDecoder frameDecoder = new FrameDecoder(READ_BUFFER_SIZE);
+
     /**
      * Ip address of the {@link SocketServerModule}
      */
@@ -44,9 +74,49 @@ class SocketClientModule {
     private int port;
 
     /**
-     * {@link Socket} to communicate with {@link SocketServerModule}
+     * Delay before the first reconnect attempt, a value of 0 or less disables the reconnect
+     */
+    private long reconnectDelay;
+
+    /**
+     * Upper bound of the reconnect delay
+     */
+    private long maxReconnectDelay;
+
+    /**
+     * Collects outbound frames, it is null if the coalescing is disabled
+     */
+    private volatile WriteCoalescer coalescer;
+
+    /**
+     * States that the client offers compression to the {@link SocketServerModule}
+     */
+    private boolean compressionEnabled;
+
+    /**
+     * Lock which keeps the order of compressed frames equal to the order they are sent
+     */
+    private final Object compressionLock = new Object();
+
+    /**
+     * {@link DeflateContext Compression context} of the current connection, it is null if compression is not offered
+     */
+    private volatile DeflateContext compression;
+
+    /**
+     * States that the {@link SocketServerModule} accepted the compression of the current connection
+     */
+    private volatile boolean compressionAccepted = false;
+
+    /**
+     * {@link SocketChannel} to communicate with {@link SocketServerModule}
+     */
+    private volatile SocketChannel socket;
+
+    /**
+     * Client thread which reads and reconnects
      */
-    private Socket socket;
+    private volatile Thread thread;
 
     SocketClientModule(SocketNetwork network){
         this.network = network;
@@ -54,86 +124,310 @@ class SocketClientModule {
 
     /**
      * Initializes the module
-     * @throws UnknownHostException Thrown if the ip address is invalid
+     * @throws IOException Thrown if the ip address is invalid
      */
-    void init() throws UnknownHostException {
-        var connection = Configuration.getConfiguration().getConnection();
+    void init() throws IOException {
+        Connection connection = Configuration.getConfiguration().getConnection();
         ip = InetAddress.getByName(connection.getIp());
         port = connection.getServerPort();
+        reconnectDelay = connection.getReconnectDelay();
+        maxReconnectDelay = Math.max(reconnectDelay, connection.getMaxReconnectDelay());
+        coalescer = connection.getCoalesceWindow() > 0
+                ? new WriteCoalescer(this::write, connection.getCoalesceWindow(), connection.getCoalesceThreshold())
+                : null;
+        compressionEnabled = connection.isCompression();
     }
 
     /**
-     * Sends a connect sequence to the {@link SocketServerModule}
+     * Starts the client thread which connects to the {@link SocketServerModule} and keeps the connection alive
      */
     void connect() {
-        try {
-            if(connected.get()){
-                throw new IOException("Not connected to server");
-            }
-            init();
-            socket = new Socket(ip, port);
-            Thread listener = new Thread(this::listen, "Client thread");
-            listener.setDaemon(true);
-            listener.start();
-            connected.set(true);
-
-            logger.info("Sending connect sequence " + Arrays.toString(GeneralUtils.CONNECT_SEQUENCE));
-            send(GeneralUtils.CONNECT_SEQUENCE);
-            network.connectionEstablished(ip.getCanonicalHostName());
-        } catch (IOException ex) {
-            logger.critical(ex.getMessage(), ex);
-            network.connectionLost();
+        if(!running.compareAndSet(false, true)){
+            logger.info("Client is already running");
+            return;
         }
+        thread = new Thread(this::run, "Client thread");
+        thread.setDaemon(true);
+        thread.start();
     }
 
     /**
-     * Sends a disconnect sequence to the {@link SocketServerModule}
+     * Sends a disconnect frame to the {@link SocketServerModule} and stops the client thread
      */
     void disconnect(){
-        if(!connected.get()) {
+        if(!running.compareAndSet(true, false)) {
             return;
         }
-        try {
-            send(GeneralUtils.DISCONNECT_SEQUENCE);
-        } catch (IOException ex){
-            logger.info("Disconnect error occurred");
+        if (connected.get()) {
+            try {
+                send(FrameType.DISCONNECT, new byte[0]);
+            } catch (IOException ex){
+                logger.info("Disconnect error occurred");
+            }
         }
-        connected.set(false);
+        closeChannel();
+        // Wakes the client thread if it waits for the next reconnect attempt
+        thread.interrupt();
         network.connectionLost();
     }
 
     /**
-     * Sends a byte array to the targeted {@link SocketServerModule}
-     * @param data Data which should be sent
+     * Sends an encoded {@link Message message} to the targeted {@link SocketServerModule}
+     * @param sender {@link UUID Uid} of the sending user
+     * @param data Encoded message which should be sent
      * @throws IOException Thrown if the data cannot be sent
      */
-    void send(byte[] data) throws IOException {
+    void send(UUID sender, byte[] data) throws IOException {
+        send(FrameType.MESSAGE, FrameEncoder.messagePayload(sender, data));
+    }
+
+    /**
+     * Sends a frame to the targeted {@link SocketServerModule}
+     * @param type {@link FrameType} of the frame
+     * @param payload Payload of the frame
+     * @throws IOException Thrown if the frame cannot be sent
+     */
+    private void send(FrameType type, byte[] payload) throws IOException {
         if (!connected.get()) {
             throw new IOException("Client not connected");
         }
-        socket.getOutputStream().write(data);
+        if (type == FrameType.MESSAGE && compressionAccepted) {
+            synchronized (compressionLock) {
+                DeflateContext context = compression;
+                if (null != context) {
+                    dispatch(FrameEncoder.encode(FrameType.MESSAGE_DEFLATE, context.deflate(ByteBuffer.wrap(payload))), type);
+                    return;
+                }
+            }
+        }
+        dispatch(FrameEncoder.encode(type, payload), type);
+    }
+
+    /**
+     * Hands an encoded frame to the {@link SocketClientModule#coalescer} or writes it directly
+     * @param frame Encoded frame
+     * @param type {@link FrameType} of the frame before compression
+     * @throws IOException Thrown if the frame cannot be sent
+     */
+    private void dispatch(byte[] frame, FrameType type) throws IOException {
+        WriteCoalescer pipeline = coalescer;
+        if (null == pipeline) {
+            write(ByteBuffer.wrap(frame));
+            return;
+        }
+        pipeline.submit(frame);
+        if (type != FrameType.MESSAGE) {
+            // Control frames are never delayed
+            pipeline.flush();
+        }
+    }
+
+    /**
+     * Writes the complete buffer to the {@link SocketClientModule#socket channel}
+     * @param data Data to write
+     * @throws IOException Thrown if the data cannot be written
+     */
+    private void write(ByteBuffer data) throws IOException {
+        synchronized (writeLock) {
+            while (data.hasRemaining()) {
+                socket.write(data);
+            }
+        }
     }
 
     /**
-     * Listener thread
+     * Handles a frame received from the {@link SocketServerModule}
+     * @param type {@link FrameType} of the frame
+     * @param payload Payload of the frame
+     * @param frame Complete frame including its header
+     * @throws IOException Thrown if a compressed frame cannot be decompressed
      */
-    @SuppressWarnings("StatementWithEmptyBody")
-    void listen(){
-        try{
-            InputStream is = socket.getInputStream();
-            while(connected.get()){
-                while(is.available() <= 0 && connected.get());
-                int length = is.available();
-                if(length > 0){
-                    byte[] data = is.readNBytes(length);
-                    Message msg = network.getDecoder().decode(data);
-                    network.messageReceived(msg);
+    private void frameReceived(FrameType type, ByteBuffer payload, ByteBuffer frame) throws IOException {
+        switch (type) {
+            case MESSAGE:
+                messageReceived(payload);
+                break;
+
+            case MESSAGE_DEFLATE:
+                DeflateContext context = compression;
+                if (null == context) {
+                    throw new NetworkException("Compression was not negotiated");
                 }
+                // Every frame is decompressed to keep the compression history in sync
+                messageReceived(ByteBuffer.wrap(context.inflate(payload)));
+                break;
+
+            case CONNECT:
+                if (null != compression && payload.hasRemaining() && (payload.get() & DeflateContext.CAPABILITY_DEFLATE) != 0) {
+                    compressionAccepted = true;
+                    logger.info("Compression accepted by server");
+                }
+                break;
+
+            default:
+        }
+    }
+
+    /**
+     * Handles the payload of a {@link FrameType#MESSAGE} frame<br>
+     * The message is only decoded iff a consumer is subscribed to the network, it is decoded by the decode lane of its sender
+     * @param payload Payload of the frame
+     */
+    private void messageReceived(ByteBuffer payload) {
+        if (payload.remaining() <= FrameEncoder.SENDER_SIZE || !network.hasNetworkConsumer()) {
+            return;
+        }
+        int sender = FrameEncoder.readSender(payload).hashCode();
+        payload.position(payload.position() + FrameEncoder.SENDER_SIZE);
+        network.decodeReceived(sender, payload);
+    }
+
+    /**
+     * Opens a new connection to the {@link SocketServerModule} and sends the connect frame
+     * @throws IOException Thrown if the connection cannot be established
+     */
+    private void open() throws IOException {
+        init();
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+            channel.connect(new InetSocketAddress(ip, port));
+        } catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+        socket = channel;
+        frameDecoder.reset();
+        compressionAccepted = false;
+        compression = compressionEnabled ? new DeflateContext() : null;
+        connected.set(true);
+
+        logger.info("Sending connect frame");
+        send(FrameType.CONNECT, compressionEnabled ? new byte[]{DeflateContext.CAPABILITY_DEFLATE} : new byte[0]);
+        network.connectionEstablished(ip.getCanonicalHostName());
+    }
+
+    /**
+     * Closes the current connection
+     */
+    private void closeChannel() {
+        connected.set(false);
+        WriteCoalescer pipeline = coalescer;
+        if (null != pipeline) {
+            pipeline.reset();
+        }
+        SocketChannel channel = socket;
+        if (null == channel) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            logger.warn("Cannot close connection", ex);
+        }
+    }
+
+    /**
+     * Releases the {@link SocketClientModule#compression} of the last connection, it is only called by the client thread
+     */
+    private void releaseCompression() {
+        synchronized (compressionLock) {
+            compressionAccepted = false;
+            if (null != compression) {
+                compression.end();
+                compression = null;
+            }
+        }
+    }
+
+    /**
+     * Calculates the delay of the next reconnect attempt.<br>
+     * The upper bound doubles with every attempt up to {@link SocketClientModule#maxReconnectDelay}, the actual delay
+     * is a random value between half and the full upper bound
+     * @param attempt Count of failed attempts
+     * @return Delay in milliseconds
+     */
+    private long backoff(int attempt) {
+        long bound = reconnectDelay << Math.min(attempt, 20);
+        bound = Math.min(bound, maxReconnectDelay);
+        return bound / 2 + ThreadLocalRandom.current().nextLong(bound / 2 + 1);
+    }
+
+    /**
+     * Checks if the client should stay connected, this includes the backoff between the reconnect attempts
+     * @return True iff the client is neither disconnected nor stopped
+     */
+    boolean isRunning() {
+        return running.get();
+    }
+
+    /**
+     * Checks if the calling thread is the current client thread and the client should stay connected.<br>
+     * A client thread of a previous {@link SocketClientModule#connect()} stops as soon as this method returns false
+     * @return True iff the calling thread should keep running
+     */
+    private boolean isActive() {
+        return running.get() && thread == Thread.currentThread();
+    }
+
+    /**
+     * Client thread<br>
+     * Connects to the server, blocks inside {@link SocketClientModule#listen()} until the connection is lost and reconnects
+     */
+    private void run() {
+        int attempt = 0;
+        while (isActive()) {
+            try {
+                open();
+                attempt = 0;
+                listen();
+            } catch (IOException ex) {
+                if (isActive()) {
+                    logger.warn("Connection failed: " + ex.getMessage());
+                }
+            }
+            if (!isActive()) {
+                break;
+            }
+            boolean wasConnected = connected.get();
+            closeChannel();
+            releaseCompression();
+            if (reconnectDelay <= 0) {
+                running.set(false);
+                network.connectionLost();
+                break;
+            }
+            if (wasConnected || attempt == 0) {
+                network.reconnecting();
+            }
+            long delay = backoff(attempt++);
+            logger.info("Reconnect in " + delay + " ms");
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        if (thread == Thread.currentThread()) {
+            // A client thread of a later connect owns the compression context
+            releaseCompression();
+        }
+        logger.info("Client thread stopped");
+    }
+
+    /**
+     * Blocks inside the read of the {@link SocketClientModule#socket channel} and handles all received frames
+     * @throws IOException Thrown if the connection is lost
+     */
+    private void listen() throws IOException {
+        while (isActive()) {
+            int length = socket.read(frameDecoder.buffer());
+            if (length < 0) {
+                throw new IOException("Connection closed by server");
             }
-            socket.close();
-        }catch (Exception ex){
-            logger.critical(ex.getMessage(), ex);
-            disconnect();
+            frameDecoder.decode(this::frameReceived);
         }
     }
 }
@@ -0,0 +1,190 @@
+package de.hrw.dsalab.distsys.chat.network.socket;
+
+import de.hrw.dsalab.distsys.chat.utils.Logger;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * This class represents a single event loop of the {@link SocketServerModule}.<br>
+ * Every loop owns one {@link Selector} and one thread, all channels registered on this loop are served by this thread.<br>
+ * Other threads can hand over work via {@link SocketEventLoop#execute}, the selector is woken up to run it.
+ * @author Nils Milewski
+ * @version 1.0
+ * @since 3.2
+ */
+class SocketEventLoop {
+    private static final Logger logger = Logger.getLogger(SocketEventLoop.class);
+
+    /**
+     * This interface is implemented by every object which is attached to a {@link SelectionKey} of this loop
+     */
+    interface Handler {
+        /**
+         * Called by the loop thread when the key is ready
+         * @param key Ready {@link SelectionKey key}
+         * @throws IOException Thrown if the channel failed, the key will be cancelled
+         */
+        void handle(SelectionKey key) throws IOException;
+
+        /**
+         * Called by the loop thread when {@link Handler#handle} failed
+         * @param ex Occurred exception
+         */
+        void failed(Exception ex);
+
+        /**
+         * Called by the loop thread after the channel was registered
+         * @param key {@link SelectionKey} of the registered channel
+         */
+        default void registered(SelectionKey key) {}
+    }
+
+    /**
+     * The {@link Selector} which is used by this loop
+     */
+    private final Selector selector;
+
+    /**
+     * Tasks which should be executed by the loop thread
+     */
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    /**
+     * States that the loop is running
+     */
+    private final AtomicBoolean alive = new AtomicBoolean(false);
+
+    /**
+     * Name of the loop thread
+     */
+    private final String name;
+
+    /**
+     * The loop thread
+     */
+    private Thread thread;
+
+    /**
+     * Constructs a new event loop
+     * @param name Name of the loop thread
+     * @throws IOException Thrown if the {@link Selector} cannot be opened
+     */
+    SocketEventLoop(String name) throws IOException {
+        this.name = name;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Starts the loop thread
+     */
+    void start() {
+        if (alive.getAndSet(true)) {
+            return;
+        }
+        thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops the loop thread and closes the {@link Selector}
+     */
+    void stop() {
+        if (!alive.getAndSet(false)) {
+            return;
+        }
+        selector.wakeup();
+    }
+
+    /**
+     * Queues a task which is executed by the loop thread
+     * @param task Task to execute
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        if (Thread.currentThread() != thread) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Registers a channel on this loop, the registration itself is done by the loop thread
+     * @param channel Non-blocking {@link SelectableChannel channel}
+     * @param ops Interest set
+     * @param handler {@link Handler} which is called when the channel is ready
+     */
+    void register(SelectableChannel channel, int ops, Handler handler) {
+        execute(() -> {
+            try {
+                handler.registered(channel.register(selector, ops, handler));
+            } catch (ClosedChannelException ex) {
+                handler.failed(ex);
+            }
+        });
+    }
+
+    /**
+     * Executes all queued tasks
+     */
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Exception ex) {
+                logger.critical(ex.getMessage(), ex);
+            }
+        }
+    }
+
+    /**
+     * Method which is executed by {@link SocketEventLoop#thread}<br>
+     * Blocks inside {@link Selector#select()} until a channel is ready or a task is queued
+     */
+    private void run() {
+        logger.info("Event loop " + name + " started");
+        while (alive.get()) {
+            try {
+                // Tasks queued by the loop thread itself must not wait for the next ready channel
+                if (tasks.isEmpty()) {
+                    selector.select();
+                } else {
+                    selector.selectNow();
+                }
+                runTasks();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Handler handler = (Handler) key.attachment();
+                    try {
+                        if (key.isValid()) {
+                            handler.handle(key);
+                        }
+                    } catch (IOException | CancelledKeyException ex) {
+                        key.cancel();
+                        handler.failed(ex);
+                    }
+                }
+            } catch (Exception ex) {
+                logger.critical(ex.getMessage(), ex);
+            }
+        }
+        runTasks();
+        try {
+            selector.close();
+        } catch (IOException ex) {
+            logger.warn("Cannot close selector", ex);
+        }
+        logger.info("Event loop " + name + " stopped");
+    }
+}
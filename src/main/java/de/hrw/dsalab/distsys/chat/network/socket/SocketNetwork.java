@@ -5,12 +5,14 @@ import de.hrw.dsalab.distsys.chat.data.Message;
 import de.hrw.dsalab.distsys.chat.data.User;
 
 import java.io.IOException;
+import java.net.SocketAddress;
+import java.util.Map;
 
 
 /**
  * This class implements an {@link AbstractNetwork} using {@link java.net.Socket Sockets}
  * @author Nils Milewski
- * @version 1.1
+ * @version 1.2
  * @since 1.0
  */
 public class SocketNetwork extends AbstractNetwork {
@@ -45,13 +47,27 @@ public class SocketNetwork extends AbstractNetwork {
     public void sendNetworkData(User user, byte[] data) {
         Message message = Message.builder().user(user).chatMessage(new String(data)).build();
         try {
-            clientModule.send(super.getDecoder().encode(message));
+            clientModule.send(user.getUid(), super.getDecoder().encode(message));
         } catch (IOException ex) {
-            logger.critical(ex.getMessage(), ex);
-            connectionLost();
+            logger.warn("Cannot send message: " + ex.getMessage());
+            if (clientModule.isRunning()) {
+                // The client module reconnects on its own, the message is not queued until then
+                reconnecting();
+            } else {
+                connectionLost();
+            }
         }
     }
 
+    /**
+     * Access the outbound queue depth of every client which is connected to the server module.<br>
+     * The map is empty iff the server module is disabled
+     * @return Queued frames associated by the address of the client
+     */
+    public Map<SocketAddress, Integer> getClientQueueDepths() {
+        return serverModule.getQueueDepths();
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -3,53 +3,102 @@ package de.hrw.dsalab.distsys.chat.network.socket;
 import de.hrw.dsalab.distsys.chat.data.Configuration;
 import de.hrw.dsalab.distsys.chat.data.Connection;
 import de.hrw.dsalab.distsys.chat.data.Message;
+import de.hrw.dsalab.distsys.chat.data.User;
+import de.hrw.dsalab.distsys.chat.enumerations.FrameType;
+import de.hrw.dsalab.distsys.chat.enumerations.LoadBalancing;
+import de.hrw.dsalab.distsys.chat.enumerations.OverflowPolicy;
 import de.hrw.dsalab.distsys.chat.network.AbstractNetwork;
 import de.hrw.dsalab.distsys.chat.utils.ClientTimestampContainer;
-import de.hrw.dsalab.distsys.chat.utils.GeneralUtils;
+import de.hrw.dsalab.distsys.chat.utils.LivenessService;
 import de.hrw.dsalab.distsys.chat.utils.Logger;
 import de.hrw.dsalab.distsys.chat.utils.decoder.message.IMessageDecoder;
+import de.hrw.dsalab.distsys.chat.utils.exceptions.NetworkException;
 
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.*;
-import java.nio.charset.StandardCharsets;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicBoolean;
-
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This class is used by {@link SocketNetwork network} as a server module to handle incoming connection.<br>
+ * A dedicated acceptor loop hands new connections to a configurable amount of {@link Reactor reactors}, every reactor owns
+ * one {@link SocketEventLoop event loop} which serves the reads and writes of its clients. Idle clients do not consume any cpu time.<br>
+ * A broadcast is handed to every reactor through a lock free queue, each reactor fans the shared frame out to its own clients.<br>
+ * If a history size or a history age is configured, every relayed frame is appended to a {@link HistorySegment} which is streamed to a new client
+ * before its live frames.<br>
+ * Chat messages are relayed without decoding them, only the frame header and the sender are validated.<br>
+ * A client can negotiate a {@link DeflateContext compressed} connection during connect, the frames of such a client
+ * are compressed by its own event loop because the compression history is bound to the connection.<br>
+ * Inactive clients are disconnected by the shared {@link LivenessService} as soon as they expire.<br>
  * This module is disabled if the configuration states that the server should be disabled
  * @author Nils Milewski
- * @version 1.2
+ * @version 1.9
  * @since 1.2
  */
 class SocketServerModule {
     public static final Logger logger = Logger.getLogger(SocketServerModule.class);
 
+    /**
+     * Size of the read buffer of a {@link Client}
+     */
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    /**
+     * {@link UUID Uid} of the {@link User#getSystemUser() system user}, clients must not send in its name
+     */
+    private static final UUID SYSTEM_UID = UUID.fromString(User.getSystemUid());
+
+    /**
+     * Maximum amount of frames which are written by a single gathering write
+     */
+    private static final int MAX_GATHER = 64;
+
     /**
      * This is the underlying {@link SocketNetwork network}, which is communicated with
      */
     private final SocketNetwork network;
 
     /**
-     * This is the {@link ServerSocket socket} which is used to communicate over
+     * This is the {@link ServerSocketChannel channel} which accepts new connections
+     */
+    private ServerSocketChannel socket;
+
+    /**
+     * This is the {@link SocketEventLoop event loop} which only accepts new connections
      */
-    private ServerSocket socket;
+    private SocketEventLoop acceptorLoop;
 
     /**
-     * This is the timer which cleans dead clients
+     * These are the {@link Reactor reactors} which serve the connected clients
      */
-    private final Timer disconnectedClientCleaner = new Timer();
+    private Reactor[] reactors = new Reactor[0];
 
     /**
-     * This is the interval when the next clean should occur
+     * {@link HistorySegment} which is replayed to new clients, it is null if the history is disabled
      */
-    private final AtomicLong cleanerInterval = new AtomicLong(5);
+    private volatile HistorySegment history;
+
+    /**
+     * Index of the next {@link Reactor} which receives a new client iff {@link LoadBalancing#ROUND_ROBIN} is used
+     */
+    private final AtomicInteger nextReactor = new AtomicInteger(0);
 
     /**
      * This {@link CopyOnWriteArrayList array list} is used to store all connected connections.
@@ -93,14 +142,12 @@ class SocketServerModule {
         logger.info("Initialize Server");
         connection = Configuration.getConfiguration().getConnection();
         serverEnabled.set(connection.isServer());
-        cleanerInterval.set(connection.getCleanerInterval());
     }
 
     /**
      * Starts the module, if an exception occurs or the server is active this method will abort<br>
-     * The {@link SocketServerModule#socket socket} will be created<br>
-     * The listener is initialized to run {@link SocketServerModule#listen listen} and started<br>
-     * The dead client cleaner is initialized with a 5 minute and started<br>
+     * The {@link SocketServerModule#socket socket} will be created and registered on the {@link SocketServerModule#acceptorLoop acceptor loop}<br>
+     * The {@link Reactor reactors} are initialized and started<br>
      */
     void start() {
         try {
@@ -109,70 +156,61 @@ class SocketServerModule {
             }
             logger.info("Startup Server");
             init();
-            socket = new ServerSocket(connection.getServerPort());
-
-            socket.setReuseAddress(true);
+            socket = ServerSocketChannel.open();
+            socket.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            socket.bind(new InetSocketAddress(connection.getServerPort()));
+            socket.configureBlocking(false);
+            history = openHistory();
+
+            int loops = Math.max(1, connection.getEventLoops());
+            reactors = new Reactor[loops];
+            for (int i = 0; i < loops; i++) {
+                reactors[i] = new Reactor(new SocketEventLoop("Server loop #" + i));
+                reactors[i].eventLoop.start();
+            }
+            acceptorLoop = new SocketEventLoop("Server acceptor");
+            acceptorLoop.start();
             alive.set(true);
-            Thread listener = new Thread(this::listen, "Server");
-            listener.setDaemon(true);
-            listener.start();
-
-            // This task disconnects all dead client.
-            // A client is dead when no new message was received in a specific interval
-            disconnectedClientCleaner.scheduleAtFixedRate(new TimerTask() {
-                @Override
-                public void run() {
-                    Thread.currentThread().setName("Client Cleaner");
-                    cleanDeadClients();
-                }
-            }, 5 * GeneralUtils.MINUTES, cleanerInterval.get());
-            logger.info("Server Online");
+            acceptorLoop.register(socket, SelectionKey.OP_ACCEPT, new Acceptor());
+
+            logger.info("Server Online with " + loops + " event loops");
         } catch (IOException ex) {
             logger.critical("Cannot start the server", ex);
         }
     }
 
     /**
-     * Iterates over the {@link SocketServerModule#connectedClients clients} to possible disconnect them.
+     * Opens the {@link HistorySegment} iff a history size or a history age is configured, a history which is only limited
+     * by its age retains any amount of frames
+     * @return {@link HistorySegment} or null iff it is disabled or cannot be opened
      */
-    void cleanDeadClients() {
-        int cleaned = 0;
-        logger.info("Disconnect dead clients");
-        for (Client client : connectedClients) {
-            if (client.isInactive()) {
-                // The client is no longer active therefore its considered dead.
-                // To save resource the dead client is disconnected and removed from active client list
-                client.disconnect();
-                synchronized (connectedClients) {
-                    connectedClients.remove(client);
-                }
-                cleaned++;
-            }
+    private HistorySegment openHistory() {
+        if (connection.getHistorySize() <= 0 && connection.getHistoryAge() <= 0) {
+            return null;
+        }
+        try {
+            return new HistorySegment(connection.getHistoryFile(), connection.getHistorySize(), connection.getHistoryAge());
+        } catch (IOException ex) {
+            logger.warn("History disabled, cannot open " + connection.getHistoryFile() + ": " + ex.getMessage());
+            return null;
         }
-        logger.info("Disconnected " + cleaned + " clients");
     }
 
     /**
-     * Listens for incoming connections and start a new {@link Client client} object
+     * Selects the {@link Reactor} for a new client as specified by the configured {@link LoadBalancing}
+     * @return {@link Reactor} which should serve the next client
      */
-    private void listen() {
-        if(!serverEnabled.get()){
-            return;
-        }
-        logger.info("Server loop started");
-        while(alive.get()){
-            try{
-                Socket client = socket.accept();
-                logger.info("Client connected");
-                client.setKeepAlive(true);
-                Client cl = new Client(client, this, decoder);
-                cl.connect();
-                connectedClients.add(cl);
-            } catch (IOException e) {
-                logger.critical(e.getMessage());
+    private Reactor nextReactor() {
+        if (connection.getLoadBalancing() != LoadBalancing.LEAST_LOADED) {
+            return reactors[Math.floorMod(nextReactor.getAndIncrement(), reactors.length)];
+        }
+        Reactor selected = reactors[0];
+        for (Reactor reactor : reactors) {
+            if (reactor.load.get() < selected.load.get()) {
+                selected = reactor;
             }
         }
-        logger.info("Server loop stopped");
+        return selected;
     }
 
     /**
@@ -200,185 +238,703 @@ class SocketServerModule {
     private void shutdown() {
         try{
         if (network.shutdownSequence()) {
+            logger.info("Disconnect all clients");
             for (Client client : connectedClients) {
-                logger.info("Disconnect all clients");
                 client.disconnect();
-                synchronized (connectedClients) {
-                    connectedClients.remove(client);
-                }
             }
             alive.set(false);
             socket.close();
+            acceptorLoop.stop();
+            for (Reactor reactor : reactors) {
+                reactor.eventLoop.stop();
+            }
+            if (null != history) {
+                history.close();
+            }
         }
         }catch (Exception ex){
             logger.info("An error occurred during shutdown");
         }
         finally {
-            disconnectedClientCleaner.purge();
             logger.info("Server Offline");
         }
     }
 
     /**
-     * Broadcasts a received message to all open connections
+     * Access the outbound queue depth of every connected client
+     * @return Queued frames associated by the address of the client
+     */
+    Map<SocketAddress, Integer> getQueueDepths() {
+        Map<SocketAddress, Integer> depths = new HashMap<>();
+        connectedClients.forEach(client -> depths.put(client.address, client.getQueueDepth()));
+        return depths;
+    }
+
+    /**
+     * Broadcasts a message to all open connections<br>
+     * The frame is encoded once into a shared read only buffer, every client only queues a reference to it
      * @param msg {@link Message message} to broadcast
      */
     public void broadcast(Message msg) {
+        byte[] payload = FrameEncoder.messagePayload(msg.getUser().getUid(), decoder.encode(msg));
+        relay(FrameEncoder.encodeShared(FrameType.MESSAGE, payload));
+    }
+
+    /**
+     * Relays an encoded frame to all open connections, the frame is appended to the {@link HistorySegment}
+     * and handed to every {@link Reactor}
+     * @param frame Shared read only frame, it is not modified
+     */
+    void relay(ByteBuffer frame) {
         logger.info("Broadcast message");
+        HistorySegment segment = history;
+        long sequence = null == segment ? 0 : segment.append(frame);
+        for (Reactor reactor : reactors) {
+            reactor.broadcast(frame, sequence);
+        }
+    }
 
-        byte[] b = decoder.encode(msg);
-        connectedClients.forEach(client -> {
-            try {
-                client.send(b);
-            } catch (IOException e) {
-                // Client cannot be reached => Disconnect and remove from connected clients
-                e.printStackTrace();
-                connectedClients.remove(client);
-                client.disconnect();
+    /**
+     * This internal class accepts new connections on the {@link SocketServerModule#socket server channel}
+     */
+    private class Acceptor implements SocketEventLoop.Handler {
+        /**
+         * Accepts all pending connections and hands them to a {@link Reactor}
+         * @param key Ready {@link SelectionKey key}
+         * @throws IOException Thrown if the server channel failed
+         */
+        @Override
+        public void handle(SelectionKey key) throws IOException {
+            SocketChannel channel;
+            while ((channel = socket.accept()) != null) {
+                logger.info("Client connected");
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                Reactor reactor = nextReactor();
+                reactor.load.incrementAndGet();
+                Client client = new Client(channel, SocketServerModule.this, reactor, connection);
+                connectedClients.add(client);
+                client.connect();
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void failed(Exception ex) {
+            if (alive.get()) {
+                logger.critical("Server channel failed", ex);
             }
-        });
+        }
     }
 
     /**
-     * This internal class represents a connected client.
+     * This internal class represents a connected client.<br>
+     * Every client owns a bounded outbound queue which is only accessed by the {@link SocketEventLoop event loop} of its {@link Reactor},
+     * a slow client is handled as specified by the configured {@link OverflowPolicy}
      */
-    private static class Client {
+    private static class Client implements SocketEventLoop.Handler {
         /**
          * {@link ClientTimestampContainer}
          */
         private final ClientTimestampContainer timestampContainer;
 
         /**
-         * Socket where the client is connected to
+         * {@link LivenessService.Registration} which disconnects the client when it expires
+         */
+        private final LivenessService.Registration liveness;
+
+        /**
+         * Channel where the client is connected to
          */
-        private final Socket socket;
+        private final SocketChannel socket;
 
         /**
          * Underlying {@link SocketServerModule server module}
          */
         private final SocketServerModule server;
 
+        /**
+         * {@link Reactor} which serves this client
+         */
+        private final Reactor reactor;
+
+        /**
+         * {@link SocketEventLoop Event loop} of the {@link Client#reactor}
+         */
+        private final SocketEventLoop eventLoop;
+
         /**
          * Connection state
          */
         private final AtomicBoolean connected = new AtomicBoolean(false);
 
         /**
-         * {@link IMessageDecoder}
+         * {@link UUID Uid} of the first message sent by the client, every later message must use the same sender
          */
-        private final IMessageDecoder decoder;
+        private UUID sender;
+
+        /**
+         * {@link FrameDecoder} for incoming data, its buffer is reused for every read
+         */
+        private final FrameDecoder frameDecoder = new FrameDecoder(READ_BUFFER_SIZE);
+
+        /**
+         * Frames which are not yet written to the client, it is only accessed by the {@link Client#eventLoop} thread
+         */
+        private final Queue<ByteBuffer> outbound = new ArrayDeque<>();
+
+        /**
+         * Maximum amount of frames inside the {@link Client#outbound} queue
+         */
+        private final int outboundCapacity;
+
+        /**
+         * Size of the {@link Client#outbound} queue, it is published for other threads
+         */
+        private volatile int queueDepth = 0;
+
+        /**
+         * {@link OverflowPolicy} which is applied when the {@link Client#outbound} queue is full
+         */
+        private final OverflowPolicy overflowPolicy;
+
+        /**
+         * Count of frames which were dropped due to the {@link Client#overflowPolicy}
+         */
+        private final AtomicLong droppedFrames = new AtomicLong(0);
+
+        /**
+         * Frames which are currently written by a gathering write, it is only accessed by the {@link Client#eventLoop} thread.<br>
+         * The frames are kept outside the {@link Client#outbound} queue so a partially written frame is never dropped
+         */
+        private final ByteBuffer[] writeBatch = new ByteBuffer[MAX_GATHER];
+
+        /**
+         * Index of the first frame inside {@link Client#writeBatch} which is not completely written
+         */
+        private int batchStart = 0;
+
+        /**
+         * Index after the last frame inside {@link Client#writeBatch}
+         */
+        private int batchEnd = 0;
+
+        /**
+         * Remote address of the client
+         */
+        private final InetSocketAddress address;
+
+        /**
+         * {@link DeflateContext Compression context} of the connection, it is null if no compression was negotiated.<br>
+         * It is only accessed by the {@link Client#eventLoop} thread
+         */
+        private DeflateContext compression;
+
+        /**
+         * Channel of the history which is replayed before the {@link Client#outbound} queue, it is null if nothing is left to replay
+         */
+        private FileChannel replay;
+
+        /**
+         * Position of the next byte of the {@link Client#replay}
+         */
+        private long replayPosition;
+
+        /**
+         * End of the {@link Client#replay}
+         */
+        private long replayEnd;
+
+        /**
+         * Sequence of the last replayed frame, broadcasts up to this sequence are already part of the replay
+         */
+        private long replayedSequence = 0;
+
+        /**
+         * {@link SelectionKey} of the client, it is set by the {@link Client#eventLoop} thread
+         */
+        private SelectionKey key;
 
         /**
          * Construct a new Client
-         * @param socket {@link Socket Client socket} of the server
+         * @param socket {@link SocketChannel Client channel} of the server
          * @param server Underlying {@link SocketServerModule server module}
-         * @param decoder Used {@link IMessageDecoder decoder} described by the {@link SocketNetwork#getDecoder()}
+         * @param reactor {@link Reactor} which serves the client
+         * @param connection {@link Connection} configuration which specifies the outbound queue
+         * @throws IOException Thrown if the remote address cannot be determined
          */
-        public Client(Socket socket, SocketServerModule server, IMessageDecoder decoder){
+        public Client(SocketChannel socket, SocketServerModule server, Reactor reactor, Connection connection) throws IOException {
             this.socket = socket;
             this.server = server;
-            this.decoder = decoder;
-            timestampContainer = new ClientTimestampContainer(new InetSocketAddress(socket.getInetAddress(), socket.getPort()));
+            this.reactor = reactor;
+            this.eventLoop = reactor.eventLoop;
+            this.outboundCapacity = Math.max(1, connection.getOutboundQueueCapacity());
+            this.overflowPolicy = connection.getOverflowPolicy();
+            this.address = (InetSocketAddress) socket.getRemoteAddress();
+            timestampContainer = new ClientTimestampContainer(address);
+            liveness = LivenessService.getLivenessService().track(timestampContainer, this::disconnect);
         }
 
         /**
-         * Calls {@link ClientTimestampContainer#isDead()}
-         * @return {@link ClientTimestampContainer#isDead()}
+         * Access the count of frames which are waiting to be written
+         * @return Outbound queue depth
          */
-        public boolean isInactive(){
-            return timestampContainer.isDead();
+        public int getQueueDepth() {
+            return queueDepth;
         }
 
         /**
-         * Sends data to the client<br>
-         * <p><b>NOTE</b> The operation will immediately abort if the client is not connected</p>
-         * @param data Data to be sent
-         * @throws IOException Can be thrown by {@link Socket#getOutputStream()}
+         * Sends an encoded frame to the client and writes it immediately if the channel is writable<br>
+         * This method must only be called by the {@link Client#eventLoop} thread
+         * @param frame Encoded frame to be sent, it can be shared with other clients and is never modified
          */
-        public void send(byte[] data) throws IOException {
-            if(!connected.get()){
+        private void send(ByteBuffer frame) {
+            enqueue(frame, 0);
+            flush();
+        }
+
+        /**
+         * Queues an encoded frame, it is written by the next {@link Client#flush()}<br>
+         * <p><b>NOTE</b> The operation will immediately abort if the client is not connected
+         * or the frame is already part of the replayed history</p>
+         * This method must only be called by the {@link Client#eventLoop} thread
+         * @param frame Encoded frame to be sent, it can be shared with other clients and is never modified
+         * @param sequence Sequence of the frame inside the {@link HistorySegment}, 0 if the frame is not part of the history
+         */
+        private void enqueue(ByteBuffer frame, long sequence) {
+            if(!connected.get() || (sequence > 0 && sequence <= replayedSequence)){
                 return;
             }
-            socket.getOutputStream().write(data);
+            if (outbound.size() < outboundCapacity || handleOverflow()) {
+                outbound.add(frame);
+                queueDepth = outbound.size();
+            }
         }
 
         /**
-         * Handles a command sequence
-         * @param command possible command sequence
+         * Applies the {@link Client#overflowPolicy} when the {@link Client#outbound} queue is full
+         * @return True iff the new frame should be queued
          */
-        private void handleCommand(byte[] command){
-            if(command.length > 1){
-                switch(command[1]){
-                    case GeneralUtils.DISCONNECT_CHARACTER:
-                        connected.set(false);
-                        break;
+        private boolean handleOverflow() {
+            switch (overflowPolicy) {
+                case DROP_NEWEST:
+                    droppedFrames.incrementAndGet();
+                    return false;
+
+                case DISCONNECT:
+                    logger.warn("Client " + address + " cannot keep up, disconnect");
+                    // The client is closed later, the reactor could iterate over its clients
+                    disconnect();
+                    return false;
+
+                case DROP_OLDEST:
+                default:
+                    outbound.poll();
+                    droppedFrames.incrementAndGet();
+                    return true;
+            }
+        }
 
-                    case GeneralUtils.CONNECT_CHARACTER:
-                    default:
+        /**
+         * Writes as much queued data as the channel accepts.<br>
+         * The {@link Client#replay} is transferred from the file into the channel before any queued frame.<br>
+         * Up to {@link SocketServerModule#MAX_GATHER} queued frames are written with a single gathering write,
+         * every frame is written through its own {@link ByteBuffer#duplicate() view}.<br>
+         * If the channel is full the client waits for {@link SelectionKey#OP_WRITE}.<br>
+         * This method must only be called by the {@link Client#eventLoop} thread
+         */
+        private void flush() {
+            if (null == key || !key.isValid()) {
+                return;
+            }
+            try {
+                if (!transferReplay()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                while (fillWriteBatch()) {
+                    socket.write(writeBatch, batchStart, batchEnd - batchStart);
+                    while (batchStart < batchEnd && !writeBatch[batchStart].hasRemaining()) {
+                        writeBatch[batchStart++] = null;
+                    }
+                    if (batchStart < batchEnd) {
+                        // The socket buffer is full, wait until the channel is writable again
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
                 }
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            } catch (IOException ex) {
+                // Client cannot be reached => Disconnect and remove from connected clients
+                failed(ex);
             }
         }
 
         /**
-         * Method which is executed by {@link Thread thread}<br>
-         * This method handles the received data
+         * Transfers the {@link Client#replay} into the channel without copying it through the heap
+         * @return True iff the replay is complete
+         * @throws IOException Thrown if the channel or the file failed
          */
-        public void run() {
-            InetAddress ip = socket.getInetAddress();
-            while(connected.get()){
-                try {
-                    InputStream is = socket.getInputStream();
-                    // This while loop waits till data is available or the client shall disconnect
-                    //noinspection StatementWithEmptyBody
-                    while(is.available() < 1 && connected.get());
-                    int length = is.available();
-
-                    // When data is received this if statement should be executed otherwise the client shall disconnect
-                    if(length > 0) {
-                        timestampContainer.updateActivity();
-                        String in = new String(is.readNBytes(length));
-                        if(in.startsWith("" + (char)GeneralUtils.CONTROL_CHARACTER)){
-                            handleCommand(in.getBytes(StandardCharsets.UTF_8));
-                        }else{
-                            Message msg = decoder.decode(in.getBytes(StandardCharsets.UTF_8));
-                            server.broadcast(msg);
-                        }
-                    }
-                }catch (Exception ex){
-                    ex.printStackTrace();
+        private boolean transferReplay() throws IOException {
+            if (null == replay) {
+                return true;
+            }
+            while (replayPosition < replayEnd) {
+                long transferred = replay.transferTo(replayPosition, replayEnd - replayPosition, socket);
+                if (transferred <= 0) {
+                    return false;
                 }
+                replayPosition += transferred;
+            }
+            closeReplay();
+            return true;
+        }
+
+        /**
+         * Closes the {@link Client#replay}
+         */
+        private void closeReplay() {
+            if (null == replay) {
+                return;
             }
-            server.network.messageReceived(Message.buildSystemMessage("Client " + ip.getCanonicalHostName() + "(" + ip.getHostAddress() + ") disconnected"));
             try {
-                // Close the connection
-                socket.close();
-            } catch (IOException e) {
-                e.printStackTrace();
+                replay.close();
+            } catch (IOException ex) {
+                logger.warn("Cannot close history of " + address, ex);
+            }
+            replay = null;
+        }
+
+        /**
+         * Fills the {@link Client#writeBatch} with queued frames iff it is completely written
+         * @return True iff the batch contains frames to write
+         */
+        private boolean fillWriteBatch() {
+            if (batchStart < batchEnd) {
+                return true;
+            }
+            batchStart = 0;
+            batchEnd = 0;
+            ByteBuffer frame;
+            while (batchEnd < writeBatch.length && (frame = outbound.poll()) != null) {
+                writeBatch[batchEnd++] = null == compression ? frame.duplicate() : compress(frame);
+            }
+            queueDepth = outbound.size();
+            return batchEnd > 0;
+        }
+
+        /**
+         * Compresses a shared {@link FrameType#MESSAGE} frame into a {@link FrameType#MESSAGE_DEFLATE} frame of this connection,
+         * other frames are not compressed
+         * @param frame Shared frame, it is not modified
+         * @return Frame which can be written to the client
+         */
+        private ByteBuffer compress(ByteBuffer frame) {
+            ByteBuffer view = frame.duplicate();
+            try {
+                FrameDecoder.readVarint(view);
+            } catch (NetworkException ex) {
+                // Shared frames are built by the FrameEncoder, the header is always valid
+                return frame.duplicate();
+            }
+            if (view.get() != FrameType.MESSAGE.getOpcode()) {
+                return frame.duplicate();
+            }
+            return ByteBuffer.wrap(FrameEncoder.encode(FrameType.MESSAGE_DEFLATE, compression.deflate(view)));
+        }
+
+        /**
+         * Handles the capability flags of a {@link FrameType#CONNECT} frame and replies with the accepted flags.<br>
+         * A client which sends no flags does not receive a reply
+         * @param payload Payload of the frame
+         */
+        private void negotiate(ByteBuffer payload) {
+            if (!payload.hasRemaining()) {
+                return;
+            }
+            byte accepted = 0;
+            if ((payload.get() & DeflateContext.CAPABILITY_DEFLATE) != 0 && server.connection.isCompression() && null == compression) {
+                compression = new DeflateContext();
+                accepted |= DeflateContext.CAPABILITY_DEFLATE;
+                logger.info("Client " + address + " uses compression");
+            }
+            send(ByteBuffer.wrap(FrameEncoder.encode(FrameType.CONNECT, new byte[]{accepted})));
+        }
+
+        /**
+         * Validates the header of a {@link FrameType#MESSAGE} frame.<br>
+         * The payload must contain a sender and a message, the sender must not be the system user
+         * and must not change during the lifetime of the connection
+         * @param payload Payload of the frame
+         * @return True iff the frame can be relayed
+         */
+        private boolean isValidMessage(ByteBuffer payload) {
+            if (payload.remaining() <= FrameEncoder.SENDER_SIZE) {
+                return false;
+            }
+            UUID uid = FrameEncoder.readSender(payload);
+            if (SYSTEM_UID.equals(uid)) {
+                return false;
             }
+            if (null == sender) {
+                sender = uid;
+            }
+            return sender.equals(uid);
+        }
 
+        /**
+         * Handles a decoded frame<br>
+         * A valid {@link FrameType#MESSAGE} frame is relayed byte by byte without decoding the message
+         * @param type {@link FrameType} of the frame
+         * @param payload Payload of the frame
+         * @param frame Complete frame including its header
+         * @throws IOException Thrown if a compressed frame cannot be decompressed
+         */
+        private void frameReceived(FrameType type, ByteBuffer payload, ByteBuffer frame) throws IOException {
+            switch (type) {
+                case MESSAGE:
+                    if (isValidMessage(payload)) {
+                        server.relay(FrameEncoder.share(frame));
+                    } else {
+                        logger.warn("Dropped invalid message of " + address);
+                    }
+                    break;
+
+                case MESSAGE_DEFLATE:
+                    if (null == compression) {
+                        throw new NetworkException("Compression was not negotiated");
+                    }
+                    // The message is decompressed to be relayed to clients without compression
+                    byte[] data = compression.inflate(payload);
+                    if (isValidMessage(ByteBuffer.wrap(data))) {
+                        server.relay(FrameEncoder.encodeShared(FrameType.MESSAGE, data));
+                    } else {
+                        logger.warn("Dropped invalid message of " + address);
+                    }
+                    break;
+
+                case CONNECT:
+                    negotiate(payload);
+                    break;
+
+                case DISCONNECT:
+                    close();
+                    break;
+
+                default:
+            }
         }
 
         /**
-         * This client sets {@link Client#connected} to true and starts a {@link Client#run listen} thread
+         * Method which is executed by the {@link Client#eventLoop} when the channel is readable or writable<br>
+         * This method handles the received data
+         * @param key Ready {@link SelectionKey key}
+         * @throws IOException Thrown if the channel failed
+         */
+        @Override
+        public void handle(SelectionKey key) throws IOException {
+            if (key.isWritable()) {
+                flush();
+            }
+            if (!key.isValid() || !key.isReadable()) {
+                return;
+            }
+            int length = socket.read(frameDecoder.buffer());
+            if (length < 0) {
+                close();
+                return;
+            }
+            // When data is received all complete frames are handled, a partial frame stays inside the decoder
+            if (length > 0) {
+                timestampContainer.updateActivity();
+                frameDecoder.decode(this::frameReceived);
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void failed(Exception ex) {
+            logger.warn("Client " + address + " failed: " + ex.getMessage());
+            close();
+        }
+
+        /**
+         * This client sets {@link Client#connected} to true and registers the channel on its {@link Client#eventLoop}
          */
         public void connect(){
             if(connected.get()){
                 return;
             }
             connected.set(true);
-            Thread thread = new Thread(this::run, socket.getInetAddress().getHostAddress());
-            thread.setDaemon(true);
-            thread.start();
+            eventLoop.register(socket, SelectionKey.OP_READ, this);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void registered(SelectionKey key) {
+            this.key = key;
+            HistorySegment segment = server.history;
+            if (null != segment) {
+                // The snapshot and the registration happen on the loop thread, broadcasts which are
+                // not yet drained are skipped iff they are part of the snapshot
+                HistorySegment.Snapshot snapshot = segment.snapshot();
+                replay = snapshot.channel;
+                replayPosition = snapshot.position;
+                replayEnd = snapshot.end;
+                replayedSequence = snapshot.sequence;
+            }
+            reactor.clients.add(this);
+            if (null != replay) {
+                flush();
+            }
         }
 
         /**
-         * Disconnect the client by setting {@link Client#connected} to false
+         * Disconnect the client, the channel is closed by its {@link Client#eventLoop}
          */
         public void disconnect(){
             if(!connected.get()){
                 return;
             }
-            connected.set(false);
+            eventLoop.execute(this::close);
+        }
+
+        /**
+         * Closes the channel and removes the client from the {@link SocketServerModule#connectedClients}<br>
+         * This method must only be called by the {@link Client#eventLoop} thread
+         */
+        private void close() {
+            if (!connected.getAndSet(false)) {
+                return;
+            }
+            liveness.cancel();
+            server.connectedClients.remove(this);
+            reactor.clients.remove(this);
+            reactor.load.decrementAndGet();
+            outbound.clear();
+            queueDepth = 0;
+            closeReplay();
+            Arrays.fill(writeBatch, null);
+            batchStart = 0;
+            batchEnd = 0;
+            if (null != compression) {
+                compression.end();
+                compression = null;
+            }
+            if (droppedFrames.get() > 0) {
+                logger.info("Client " + address + " dropped " + droppedFrames.get() + " frames");
+            }
+            // The host string is used to avoid a blocking reverse lookup on the event loop thread
+            server.network.messageReceived(Message.buildSystemMessage("Client " + address.getHostString() + "(" + address.getAddress().getHostAddress() + ") disconnected"));
+            try {
+                // Close the connection
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * This internal class represents a reactor which serves a part of the connected clients with its own {@link SocketEventLoop event loop}.<br>
+     * Other threads hand broadcasts over through a lock free queue, the loop thread drains it and fans every frame out to its clients.
+     * Several broadcasts which arrive between two wakeups are written with a single flush per client
+     */
+    private static class Reactor {
+        /**
+         * {@link SocketEventLoop Event loop} which serves the clients of this reactor
+         */
+        private final SocketEventLoop eventLoop;
+
+        /**
+         * Clients which are served by this reactor, it is only accessed by the {@link Reactor#eventLoop} thread
+         */
+        private final List<Client> clients = new ArrayList<>();
+
+        /**
+         * Frames which should be broadcast to the {@link Reactor#clients}
+         */
+        private final Queue<Broadcast> broadcasts = new ConcurrentLinkedQueue<>();
+
+        /**
+         * States that a drain of the {@link Reactor#broadcasts} is already scheduled
+         */
+        private final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+
+        /**
+         * Count of clients which are assigned to this reactor, it is used by {@link LoadBalancing#LEAST_LOADED}
+         */
+        private final AtomicInteger load = new AtomicInteger(0);
+
+        /**
+         * Constructs a new reactor
+         * @param eventLoop {@link SocketEventLoop Event loop} which serves the clients
+         */
+        Reactor(SocketEventLoop eventLoop) {
+            this.eventLoop = eventLoop;
+        }
+
+        /**
+         * Hands a frame over to this reactor, it can be called by any thread
+         * @param frame Shared read only frame, it is not modified
+         * @param sequence Sequence of the frame inside the {@link HistorySegment}, 0 if the history is disabled
+         */
+        void broadcast(ByteBuffer frame, long sequence) {
+            broadcasts.add(new Broadcast(frame, sequence));
+            if (drainScheduled.compareAndSet(false, true)) {
+                eventLoop.execute(this::drain);
+            }
+        }
+
+        /**
+         * Queues all pending broadcasts for every client and flushes the clients once<br>
+         * This method must only be called by the {@link Reactor#eventLoop} thread
+         */
+        private void drain() {
+            // Frames added after the reset schedule another drain
+            drainScheduled.set(false);
+            Broadcast broadcast;
+            boolean drained = false;
+            while ((broadcast = broadcasts.poll()) != null) {
+                for (Client client : clients) {
+                    client.enqueue(broadcast.frame, broadcast.sequence);
+                }
+                drained = true;
+            }
+            if (!drained) {
+                return;
+            }
+            // A failed flush removes the client from the list, therefore iterate backwards
+            for (int i = clients.size() - 1; i >= 0; i--) {
+                clients.get(i).flush();
+            }
+        }
+    }
+
+    /**
+     * This internal class represents a frame which is handed to a {@link Reactor}
+     */
+    private static class Broadcast {
+        /**
+         * Shared read only frame
+         */
+        private final ByteBuffer frame;
+
+        /**
+         * Sequence of the frame inside the {@link HistorySegment}, 0 if the history is disabled
+         */
+        private final long sequence;
+
+        Broadcast(ByteBuffer frame, long sequence) {
+            this.frame = frame;
+            this.sequence = sequence;
         }
     }
 }
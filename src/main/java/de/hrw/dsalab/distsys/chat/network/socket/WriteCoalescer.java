@@ -0,0 +1,174 @@
+package de.hrw.dsalab.distsys.chat.network.socket;
+
+import de.hrw.dsalab.distsys.chat.utils.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class collects outbound frames of the {@link SocketClientModule} and writes them with a single write.<br>
+ * A frame which is submitted while the pipeline is idle is written immediately, so a single interactive message
+ * is not delayed. Every frame which follows within the configured window is buffered and flushed when the window
+ * ends or the buffered bytes reach the threshold.
+ * @author Nils Milewski
+ * @version 1.0
+ * @since 3.2
+ */
+class WriteCoalescer {
+    private static final Logger logger = Logger.getLogger(WriteCoalescer.class);
+
+    /**
+     * Scheduler which flushes the buffered frames at the end of a window, it is shared by all instances
+     */
+    private static final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "Write coalescer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * This interface represents the target of the coalesced data
+     */
+    interface Sink {
+        /**
+         * Writes the complete buffer
+         * @param data Data to write
+         * @throws IOException Thrown if the data cannot be written
+         */
+        void write(ByteBuffer data) throws IOException;
+    }
+
+    /**
+     * Target of the coalesced data
+     */
+    private final Sink sink;
+
+    /**
+     * Length of a window in nanoseconds
+     */
+    private final long window;
+
+    /**
+     * Amount of buffered bytes which triggers an immediate flush
+     */
+    private final int threshold;
+
+    /**
+     * Lock which guards the buffer and serializes all writes
+     */
+    private final Object lock = new Object();
+
+    /**
+     * Buffered frames, the buffer is in write mode
+     */
+    private final ByteBuffer buffer;
+
+    /**
+     * {@link System#nanoTime() Timestamp} when the current window ends
+     */
+    private long windowEnd;
+
+    /**
+     * States that a flush is scheduled
+     */
+    private boolean flushScheduled = false;
+
+    /**
+     * Constructs a new coalescer
+     * @param sink Target of the coalesced data
+     * @param window Length of a window in milliseconds
+     * @param threshold Amount of buffered bytes which triggers an immediate flush
+     */
+    WriteCoalescer(Sink sink, long window, int threshold) {
+        this.sink = sink;
+        this.window = TimeUnit.MILLISECONDS.toNanos(window);
+        this.threshold = Math.max(1, threshold);
+        this.buffer = ByteBuffer.allocate(this.threshold);
+        this.windowEnd = System.nanoTime();
+    }
+
+    /**
+     * Submits an encoded frame
+     * @param frame Encoded frame
+     * @throws IOException Thrown if a write which is caused by this frame failed
+     */
+    void submit(byte[] frame) throws IOException {
+        synchronized (lock) {
+            long now = System.nanoTime();
+            if (!flushScheduled && buffer.position() == 0 && now - windowEnd >= 0) {
+                // The pipeline is idle, the frame is written without delay and a new window is started
+                windowEnd = now + window;
+                sink.write(ByteBuffer.wrap(frame));
+                return;
+            }
+            if (frame.length > buffer.remaining()) {
+                flushLocked();
+            }
+            if (frame.length > buffer.remaining()) {
+                // The frame is larger than the threshold, it cannot be buffered
+                sink.write(ByteBuffer.wrap(frame));
+                return;
+            }
+            buffer.put(frame);
+            if (buffer.position() >= threshold) {
+                flushLocked();
+            } else if (!flushScheduled) {
+                flushScheduled = true;
+                flusher.schedule(this::scheduledFlush, Math.max(0, windowEnd - now), TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+
+    /**
+     * Writes all buffered frames immediately
+     * @throws IOException Thrown if the data cannot be written
+     */
+    void flush() throws IOException {
+        synchronized (lock) {
+            flushLocked();
+        }
+    }
+
+    /**
+     * Discards all buffered frames, it is used when the underlying connection is closed
+     */
+    void reset() {
+        synchronized (lock) {
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Flush which is executed at the end of a window
+     */
+    private void scheduledFlush() {
+        synchronized (lock) {
+            flushScheduled = false;
+            try {
+                flushLocked();
+            } catch (IOException ex) {
+                logger.warn("Cannot flush buffered frames: " + ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Writes all buffered frames and starts a new window, the caller must hold the {@link WriteCoalescer#lock}
+     * @throws IOException Thrown if the data cannot be written
+     */
+    private void flushLocked() throws IOException {
+        if (buffer.position() == 0) {
+            return;
+        }
+        buffer.flip();
+        try {
+            sink.write(buffer);
+        } finally {
+            buffer.clear();
+            windowEnd = System.nanoTime() + window;
+        }
+    }
+}
@@ -10,21 +10,30 @@ import de.hrw.dsalab.distsys.chat.utils.exceptions.NetworkInitializeException;
 
 import java.io.IOException;
 import java.net.*;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
- * This class implements an {@link AbstractNetwork} using {@link DatagramSocket Broadcast}
+ * This class implements an {@link AbstractNetwork} using {@link DatagramSocket Broadcast}.<br>
+ * Messages which exceed the configured datagram size are fragmented, received fragments are joined by a {@link DatagramReassembler}.<br>
+ * Datagrams are received by a {@link DatagramEndpoint} and decoded straight out of its pooled buffers.<br>
+ * If aggregation is enabled small datagrams are packed into batches by a {@link DatagramAggregator}.<br>
+ * Datagrams are sent by a {@link DatagramSender} over one long-lived channel, so the sending thread never waits for the network.<br>
+ * Subclasses can add a protocol layer by overriding {@link BroadcastNetwork#transmit} and {@link BroadcastNetwork#received},
+ * or route the datagrams of a message by overriding {@link BroadcastNetwork#dispatch}.<br>
+ * A message is tagged with the active room, received messages of rooms which are not joined are dropped.
+ * A network without any room receives every message.<br>
+ * Every encoded message is preceded by a {@link MessageHeader}, own echoes, duplicates and messages of other rooms are
+ * dropped before they are decoded. A sent message is passed to the consumers directly
  * @author Nils Milewski
- * @version 1.2
+ * @version 1.10
  * @since 2.1
  */
 public class BroadcastNetwork extends AbstractNetwork {
-    /**
-     * Define the size for a UDP packet
-     */
-    private static final int BUFFER_SIZE = 1024;
-
     /**
      * Defines the destination port of a packet
      */
@@ -36,14 +45,55 @@ public class BroadcastNetwork extends AbstractNetwork {
     protected InetAddress ip;
 
     /**
-     * This is the {@link DatagramSocket} which is used to interact with the physical network
+     * This is the {@link DatagramEndpoint} which is used to receive from the physical network
+     */
+    protected DatagramEndpoint endpoint = null;
+
+    /**
+     * This is the {@link DatagramSender} which is used to send to the physical network
+     */
+    protected DatagramSender sender = null;
+
+    /**
+     * Maximum amount of datagrams which are received before they are handled
+     */
+    protected int receiveBatch;
+
+    /**
+     * Size of the kernel receive buffer
+     */
+    protected int receiveBufferSize;
+
+    /**
+     * Names of the joined rooms
+     */
+    protected final Set<String> rooms = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Room of the sent messages, it is null iff no room is joined
+     */
+    protected volatile String room = null;
+
+    /**
+     * Maximum size of a sent datagram
+     */
+    protected int datagramSize;
+
+    /**
+     * {@link DatagramReassembler} for received fragments, it is guarded by itself
+     */
+    private DatagramReassembler reassembler;
+
+    /**
+     * {@link MessageHeader} of the sent and received messages, it is guarded by the {@link BroadcastNetwork#reassembler}
+     * while receiving
      */
-    protected DatagramSocket serverSocket = null;
+    private MessageHeader header;
 
     /**
-     * Buffer for outgoing data
+     * {@link DatagramAggregator} of the sent datagrams, it is null iff aggregation is disabled
      */
-    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private DatagramAggregator aggregator;
 
     /**
      * States that the module is active
@@ -56,45 +106,142 @@ public class BroadcastNetwork extends AbstractNetwork {
      */
     private void listen(){
         try {
-            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-            while (alive.get()) {
-                serverSocket.receive(packet);
-                if(packet.getLength() > 0) {
-                    byte[] received = Arrays.copyOf(packet.getData(), packet.getLength());
-                    Message msg = getDecoder().decode(received);
-                    messageReceived(msg);
-                }
-            }
+            endpoint.listen(this::received);
         }catch (Exception ex){
             logger.warn("An exception occurred while listening", ex);
             exceptionOccurred(ex);
         }
     }
 
+    /**
+     * Handles a datagram which is received by the {@link BroadcastNetwork#endpoint}
+     * @param sender Address of the sender
+     * @param datagram Pooled buffer which contains the datagram
+     */
+    protected void received(SocketAddress sender, ByteBuffer datagram) {
+        deliver(sender, datagram);
+    }
+
+    /**
+     * Unpacks and reassembles a datagram, the messages are decoded by the decode lane of the sender and passed to {@link BroadcastNetwork#messageReceived}.<br>
+     * A message is only decoded iff its {@link MessageHeader} is accepted<br>
+     * This method is thread safe
+     * @param sender Address of the sender
+     * @param datagram Buffer which contains the datagram
+     */
+    protected void deliver(SocketAddress sender, ByteBuffer datagram) {
+        synchronized (reassembler) {
+            for (ByteBuffer unpacked : DatagramAggregator.unpack(datagram)) {
+                if (unpacked.hasRemaining()) {
+                    ByteBuffer received = reassembler.accept(sender, unpacked);
+                    if (null != received && header.accept(received)) {
+                        decodeReceived(sender.hashCode(), received);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks if a received message belongs to a joined room
+     * @param msg Received {@link Message message}
+     * @return True iff the message has no room, no room is joined or its room is joined
+     */
+    protected boolean accepts(Message msg) {
+        return null == msg.getRoom() || rooms.isEmpty() || rooms.contains(msg.getRoom());
+    }
+
     /**
      * This method is inherited by {@link de.hrw.dsalab.distsys.chat.interfaces.NetworkListener} and calls the {@link AbstractNetwork#notifyNetworkConsumer notifyNetworkConsumer} method
+     * iff the message {@link BroadcastNetwork#accepts belongs to a joined room}
      * @param msg Used {@link Message message}
      */
     @Override
     public void messageReceived(Message msg) {
-        super.notifyNetworkConsumer(msg);
+        if (null != msg && accepts(msg)) {
+            super.notifyNetworkConsumer(msg);
+        }
     }
 
     /**
      * This method constructs a new {@link Message message} based on {@link User user} and {@link Byte data}.<br>
-     * The newly created message is send over the provided {@link DatagramSocket socket}
-     * @param socket {@link DatagramSocket socket} where the message should be used to sent
+     * The newly created message belongs to the active {@link BroadcastNetwork#room}, it is encoded behind a {@link MessageHeader},
+     * fragmented if necessary and passed to {@link BroadcastNetwork#dispatch}.<br>
+     * The echo of the message is dropped by the receiver, therefore the message is passed to the consumers directly
      * @param user {@link User user} who is sending
      * @param data {@link Byte data} array
-     * @throws IOException Thrown iff the data cannot be sent
+     * @throws IOException Thrown iff the data cannot be queued
      */
-    protected void internalSend(DatagramSocket socket, User user, byte[] data) throws IOException{
+    protected void internalSend(User user, byte[] data) throws IOException{
         if(!alive.get()){
             throw new NetworkException();
         }
-        Message message = Message.builder().user(user).chatMessage(new String(data)).build();
-        byte[] dataOut = super.getDecoder().encode(message);
-        socket.send(new DatagramPacket(dataOut, dataOut.length, ip, port));
+        String target = room;
+        Message message = Message.builder().user(user).chatMessage(new String(data)).room(target).build();
+        byte[] dataOut = header.write(target, super.getDecoder().encode(message));
+        dispatch(message, DatagramFragmenter.fragment(dataOut, datagramSize));
+        messageReceived(message);
+    }
+
+    /**
+     * Queues the datagrams of a message directly or through the {@link BroadcastNetwork#aggregator} on the {@link BroadcastNetwork#sender}
+     * @param message Sent {@link Message message}
+     * @param datagrams Datagrams of the message
+     * @throws IOException Thrown iff the datagrams cannot be queued
+     */
+    protected void dispatch(Message message, List<byte[]> datagrams) throws IOException {
+        for (byte[] datagram : datagrams) {
+            if (null == aggregator) {
+                transmit(datagram);
+            } else {
+                aggregator.submit(datagram);
+            }
+        }
+    }
+
+    /**
+     * Queues a datagram on the {@link BroadcastNetwork#sender}
+     * @param datagram Datagram to send, it is not modified afterwards
+     */
+    protected void transmit(byte[] datagram) {
+        sender.submit(datagram);
+    }
+
+    /**
+     * Opens the channel which is used to send, the channel is able to send broadcasts
+     * @return {@link DatagramChannel} in blocking mode
+     * @throws IOException Thrown iff the channel cannot be opened
+     */
+    protected DatagramChannel openSendChannel() throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        channel.setOption(StandardSocketOptions.SO_BROADCAST, true);
+        return channel;
+    }
+
+    /**
+     * Handles a datagram which cannot be sent by the {@link BroadcastNetwork#sender}
+     * @param ex Occurred exception
+     */
+    private void sendFailed(IOException ex) {
+        logger.warn("An Exception occurred during sending. ", ex);
+        connectionLost();
+    }
+
+    /**
+     * Access the room of the sent messages
+     * @return Name of the room or null iff no room is joined
+     */
+    public String getRoom() {
+        return room;
+    }
+
+    /**
+     * Joins a room and sends the following messages to it
+     * @param room Name of the room
+     */
+    public void setRoom(String room) {
+        rooms.add(room);
+        this.room = room;
     }
 
     /**
@@ -102,8 +249,8 @@ public class BroadcastNetwork extends AbstractNetwork {
      */
     @Override
     public void sendNetworkData(User user, byte[] data) {
-        try(DatagramSocket socket = new DatagramSocket()) {
-            internalSend(socket, user, data);
+        try {
+            internalSend(user, data);
         } catch (Exception ex) {
             logger.warn("An Exception occurred during sending. ", ex);
             connectionLost();
@@ -120,6 +267,22 @@ public class BroadcastNetwork extends AbstractNetwork {
         try {
             ip = InetAddress.getByName(connection.getIp());
             port = connection.getServerPort();
+            datagramSize = connection.getDatagramSize();
+            reassembler = new DatagramReassembler(connection.getReassemblyTimeout(), connection.getReassemblyMemory());
+            header = new MessageHeader(rooms);
+            receiveBatch = connection.getReceiveBatch();
+            receiveBufferSize = connection.getReceiveBufferSize();
+            rooms.clear();
+            room = null;
+            for (String name : connection.getRooms().split(",")) {
+                if (!name.isBlank()) {
+                    rooms.add(name.trim());
+                    room = null == room ? name.trim() : room;
+                }
+            }
+            aggregator = connection.getAggregationWindow() > 0
+                    ? new DatagramAggregator(this::transmit, datagramSize, connection.getAggregationWindow())
+                    : null;
         } catch (UnknownHostException ex) {
             logger.critical("A critical exception occurred during initialization", ex);
             throw new NetworkInitializeException(ex);
@@ -127,12 +290,32 @@ public class BroadcastNetwork extends AbstractNetwork {
     }
 
     /**
-     * Initializes the {@link BroadcastNetwork#serverSocket}
-     * @throws IOException Thrown iff the {@link BroadcastNetwork#serverSocket} cannot be created
+     * Initializes the {@link BroadcastNetwork#endpoint} with the channel of {@link BroadcastNetwork#openChannel} and
+     * the {@link BroadcastNetwork#sender} with the channel of {@link BroadcastNetwork#openSendChannel}
+     * @throws IOException Thrown iff the {@link BroadcastNetwork#endpoint} or the {@link BroadcastNetwork#sender} cannot be created
      */
     protected void initSocket() throws IOException {
-        serverSocket = new DatagramSocket(port);
-        serverSocket.setReuseAddress(true);
+        endpoint = new DatagramEndpoint(openChannel(), receiveBatch, receiveBufferSize);
+        initSender();
+    }
+
+    /**
+     * Initializes the {@link BroadcastNetwork#sender} with the channel of {@link BroadcastNetwork#openSendChannel}
+     * @throws IOException Thrown iff the {@link BroadcastNetwork#sender} cannot be created
+     */
+    protected void initSender() throws IOException {
+        sender = new DatagramSender(openSendChannel(), new InetSocketAddress(ip, port), getClass().getSimpleName() + " sender", this::sendFailed);
+    }
+
+    /**
+     * Opens the channel which receives the datagrams
+     * @return Bound {@link DatagramChannel}
+     * @throws IOException Thrown iff the channel cannot be opened
+     */
+    protected DatagramChannel openChannel() throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        return channel.bind(new InetSocketAddress(port));
     }
 
     /**
@@ -174,6 +357,15 @@ public class BroadcastNetwork extends AbstractNetwork {
             return;
         }
         alive.set(false);
+        closeSocket();
         connectionLost();
     }
+
+    /**
+     * Closes the {@link BroadcastNetwork#endpoint} and the {@link BroadcastNetwork#sender}
+     */
+    protected void closeSocket() {
+        endpoint.close();
+        sender.close();
+    }
 }
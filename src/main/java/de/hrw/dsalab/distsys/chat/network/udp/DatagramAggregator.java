@@ -0,0 +1,278 @@
+package de.hrw.dsalab.distsys.chat.network.udp;
+
+import de.hrw.dsalab.distsys.chat.utils.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class packs several small datagrams into a single datagram.<br>
+ * A batch is built as follows <code>{@link DatagramAggregator#BATCH_MARKER marker} | (length (2 bytes) | datagram)*</code>,
+ * it never exceeds the configured datagram size. A datagram which is submitted while the sender is idle is sent
+ * immediately, so a single interactive message is not delayed. Every datagram which follows within the configured
+ * window is buffered and sent when the window ends or the batch is full.<br>
+ * Encoded messages, command sequences and fragments never start with the marker, so a receiver can unpack a batch with
+ * {@link DatagramAggregator#unpack}
+ * @author Nils Milewski
+ * @version 1.0
+ * @since 3.2
+ */
+public class DatagramAggregator {
+    private static final Logger logger = Logger.getLogger(DatagramAggregator.class);
+
+    /**
+     * First byte of a batch
+     */
+    public static final byte BATCH_MARKER = 31;
+
+    /**
+     * Size of the length prefix of a packed datagram
+     */
+    private static final int LENGTH_SIZE = 2;
+
+    /**
+     * Scheduler which sends the buffered datagrams at the end of a window, it is shared by all instances
+     */
+    private static final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "Datagram aggregator");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * This interface represents the target of the aggregated datagrams
+     */
+    public interface Sink {
+        /**
+         * Sends a datagram
+         * @param datagram Datagram to send, it is not modified afterwards
+         * @throws IOException Thrown if the datagram cannot be sent
+         */
+        void send(byte[] datagram) throws IOException;
+    }
+
+    /**
+     * Target of the aggregated datagrams
+     */
+    private final Sink sink;
+
+    /**
+     * Length of a window in nanoseconds
+     */
+    private final long window;
+
+    /**
+     * Lock which guards the batch and serializes all sends
+     */
+    private final Object lock = new Object();
+
+    /**
+     * Current batch, it is in write mode and empty or starts with the marker
+     */
+    private final ByteBuffer batch;
+
+    /**
+     * Amount of datagrams inside the current batch
+     */
+    private int count = 0;
+
+    /**
+     * {@link System#nanoTime() Timestamp} when the current window ends
+     */
+    private long windowEnd;
+
+    /**
+     * States that a flush is scheduled
+     */
+    private boolean flushScheduled = false;
+
+    /**
+     * Constructs a new aggregator
+     * @param sink Target of the aggregated datagrams
+     * @param datagramSize Maximum size of a batch
+     * @param window Length of a window in milliseconds
+     */
+    public DatagramAggregator(Sink sink, int datagramSize, long window) {
+        this.sink = sink;
+        this.window = TimeUnit.MILLISECONDS.toNanos(window);
+        this.batch = ByteBuffer.allocate(Math.max(1 + LENGTH_SIZE + 1, datagramSize));
+        this.windowEnd = System.nanoTime();
+    }
+
+    /**
+     * Submits a datagram
+     * @param datagram Datagram to send, it is not modified afterwards
+     * @throws IOException Thrown if a send which is caused by this datagram failed
+     */
+    public void submit(byte[] datagram) throws IOException {
+        synchronized (lock) {
+            long now = System.nanoTime();
+            if (!flushScheduled && count == 0 && now - windowEnd >= 0) {
+                // The sender is idle, the datagram is sent without delay and a new window is started
+                windowEnd = now + window;
+                sink.send(datagram);
+                return;
+            }
+            if (1 + LENGTH_SIZE + datagram.length > batch.capacity()) {
+                // The datagram does not fit into a batch, the buffered datagrams are sent first to keep the order
+                flushLocked();
+                sink.send(datagram);
+                return;
+            }
+            if (LENGTH_SIZE + datagram.length > batch.remaining()) {
+                flushLocked();
+            }
+            if (count == 0) {
+                batch.put(BATCH_MARKER);
+            }
+            batch.putShort((short) datagram.length).put(datagram);
+            count++;
+            if (batch.remaining() <= LENGTH_SIZE) {
+                flushLocked();
+            } else if (!flushScheduled) {
+                flushScheduled = true;
+                flusher.schedule(this::scheduledFlush, Math.max(0, windowEnd - now), TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+
+    /**
+     * Sends all buffered datagrams immediately
+     * @throws IOException Thrown if the batch cannot be sent
+     */
+    public void flush() throws IOException {
+        synchronized (lock) {
+            flushLocked();
+        }
+    }
+
+    /**
+     * Flush which is executed at the end of a window
+     */
+    private void scheduledFlush() {
+        synchronized (lock) {
+            flushScheduled = false;
+            try {
+                flushLocked();
+            } catch (IOException ex) {
+                logger.warn("Cannot send buffered datagrams: " + ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Sends the current batch and starts a new window, the caller must hold the {@link DatagramAggregator#lock}.<br>
+     * A batch with a single datagram is sent as the plain datagram
+     * @throws IOException Thrown if the batch cannot be sent
+     */
+    private void flushLocked() throws IOException {
+        if (count == 0) {
+            return;
+        }
+        byte[] datagram = count == 1
+                ? Arrays.copyOfRange(batch.array(), 1 + LENGTH_SIZE, batch.position())
+                : Arrays.copyOf(batch.array(), batch.position());
+        batch.clear();
+        count = 0;
+        windowEnd = System.nanoTime() + window;
+        sink.send(datagram);
+    }
+
+    /**
+     * Packs datagrams in their order into as few batches as possible, packed batches are flattened
+     * @param datagrams Datagrams to pack
+     * @param datagramSize Maximum size of a batch
+     * @return Datagrams which should be sent, datagrams which do not fit into a batch are returned unchanged
+     */
+    public static List<byte[]> pack(List<byte[]> datagrams, int datagramSize) {
+        if (datagrams.size() == 1) {
+            return datagrams;
+        }
+        List<byte[]> packed = new ArrayList<>();
+        ByteBuffer current = ByteBuffer.allocate(datagramSize);
+        int packedCount = 0;
+        for (byte[] datagram : datagrams) {
+            boolean isBatch = datagram.length > 0 && datagram[0] == BATCH_MARKER;
+            int size = isBatch ? datagram.length - 1 : LENGTH_SIZE + datagram.length;
+            if (1 + size > datagramSize) {
+                packedCount = finish(current, packedCount, packed);
+                packed.add(datagram);
+                continue;
+            }
+            if (size > current.remaining()) {
+                packedCount = finish(current, packedCount, packed);
+            }
+            if (current.position() == 0) {
+                current.put(BATCH_MARKER);
+            }
+            if (isBatch) {
+                current.put(datagram, 1, datagram.length - 1);
+                packedCount += 2;
+            } else {
+                current.putShort((short) datagram.length).put(datagram);
+                packedCount++;
+            }
+        }
+        finish(current, packedCount, packed);
+        return packed;
+    }
+
+    /**
+     * Adds the current batch of {@link DatagramAggregator#pack} to the result and clears it
+     * @param current Current batch
+     * @param packedCount Amount of datagrams inside the batch, a flattened batch counts as several datagrams
+     * @param packed Result
+     * @return Amount of datagrams inside the cleared batch
+     */
+    private static int finish(ByteBuffer current, int packedCount, List<byte[]> packed) {
+        if (packedCount == 1) {
+            packed.add(Arrays.copyOfRange(current.array(), 1 + LENGTH_SIZE, current.position()));
+        } else if (packedCount > 1) {
+            packed.add(Arrays.copyOf(current.array(), current.position()));
+        }
+        current.clear();
+        return 0;
+    }
+
+    /**
+     * Checks if the remaining bytes of a buffer are a batch, the buffer is not modified
+     * @param datagram Received datagram
+     * @return True iff the datagram is a batch
+     */
+    public static boolean isBatch(ByteBuffer datagram) {
+        return datagram.hasRemaining() && datagram.get(datagram.position()) == BATCH_MARKER;
+    }
+
+    /**
+     * Unpacks a received datagram
+     * @param datagram Received datagram, it is consumed
+     * @return Packed datagrams as views of the buffer, a datagram which is not a batch is returned unchanged.
+     * A malformed batch is truncated after the last complete datagram
+     */
+    public static List<ByteBuffer> unpack(ByteBuffer datagram) {
+        if (!isBatch(datagram)) {
+            return Collections.singletonList(datagram);
+        }
+        datagram.get();
+        List<ByteBuffer> unpacked = new ArrayList<>();
+        while (datagram.remaining() >= LENGTH_SIZE) {
+            int length = datagram.getShort() & 0xFFFF;
+            if (length > datagram.remaining()) {
+                logger.warn("Dropped malformed batch");
+                break;
+            }
+            ByteBuffer entry = datagram.slice();
+            entry.limit(length);
+            unpacked.add(entry);
+            datagram.position(datagram.position() + length);
+        }
+        return unpacked;
+    }
+}
@@ -0,0 +1,175 @@
+package de.hrw.dsalab.distsys.chat.network.udp;
+
+import de.hrw.dsalab.distsys.chat.utils.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+/**
+ * This class wraps a non blocking {@link DatagramChannel} which is used to send and receive datagrams.<br>
+ * The receiver drains all pending datagrams per wakeup in batches. Every datagram of a batch is received into its own
+ * slice of a pooled direct buffer, so the steady state does not allocate per datagram and the kernel receive queue is
+ * emptied as fast as possible.<br>
+ * Sending is thread safe, receiving is done by a single listener thread
+ * @author Nils Milewski
+ * @version 1.0
+ * @since 3.2
+ */
+public class DatagramEndpoint implements Closeable {
+    private static final Logger logger = Logger.getLogger(DatagramEndpoint.class);
+
+    /**
+     * Maximum time in milliseconds a sender waits for space in the send buffer before it checks the channel again
+     */
+    private static final long SEND_WAIT = 100;
+
+    /**
+     * This interface is called for every received datagram
+     */
+    public interface Handler {
+        /**
+         * Handles a received datagram
+         * @param sender Address of the sender
+         * @param datagram Pooled buffer which contains the datagram between its position and its limit.
+         *                 It is reused after the call and must not be referenced afterwards
+         * @throws Exception Thrown if the datagram cannot be handled, it stops the listener
+         */
+        void received(SocketAddress sender, ByteBuffer datagram) throws Exception;
+    }
+
+    /**
+     * Underlying channel
+     */
+    private final DatagramChannel channel;
+
+    /**
+     * Selector which wakes up the listener
+     */
+    private final Selector readSelector;
+
+    /**
+     * Selector which waits until a full send buffer has space again
+     */
+    private final Selector writeSelector;
+
+    /**
+     * Pooled receive buffers, every buffer is a slice of a single direct buffer
+     */
+    private final ByteBuffer[] buffers;
+
+    /**
+     * Senders of the datagrams inside the {@link DatagramEndpoint#buffers}
+     */
+    private final SocketAddress[] senders;
+
+    /**
+     * Creates a new endpoint, the channel is switched into the non blocking mode
+     * @param channel Opened channel, it is owned by the endpoint
+     * @param batchSize Maximum amount of datagrams which are received before they are handled
+     * @param receiveBufferSize Size of the kernel receive buffer, 0 or less keeps the default size
+     * @throws IOException Thrown if the channel cannot be configured
+     */
+    public DatagramEndpoint(DatagramChannel channel, int batchSize, int receiveBufferSize) throws IOException {
+        this.channel = channel;
+        if (receiveBufferSize > 0) {
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+        }
+        channel.configureBlocking(false);
+        this.readSelector = Selector.open();
+        this.writeSelector = Selector.open();
+        channel.register(readSelector, SelectionKey.OP_READ);
+        channel.register(writeSelector, SelectionKey.OP_WRITE);
+        int batch = Math.max(1, batchSize);
+        ByteBuffer pool = ByteBuffer.allocateDirect(batch * DatagramFragmenter.MAX_DATAGRAM_SIZE);
+        this.buffers = new ByteBuffer[batch];
+        this.senders = new SocketAddress[batch];
+        for (int i = 0; i < batch; i++) {
+            pool.limit((i + 1) * DatagramFragmenter.MAX_DATAGRAM_SIZE).position(i * DatagramFragmenter.MAX_DATAGRAM_SIZE);
+            buffers[i] = pool.slice();
+        }
+    }
+
+    /**
+     * Receives datagrams until the endpoint is closed.<br>
+     * After a wakeup the channel is drained in batches, a batch is handled after it is received completely
+     * @param handler Handler of the received datagrams
+     * @throws Exception Thrown if the channel fails or the handler throws an exception
+     */
+    public void listen(Handler handler) throws Exception {
+        try {
+            while (channel.isOpen()) {
+                readSelector.select();
+                readSelector.selectedKeys().clear();
+                int count;
+                do {
+                    count = 0;
+                    while (count < buffers.length) {
+                        ByteBuffer buffer = buffers[count];
+                        buffer.clear();
+                        SocketAddress sender = channel.receive(buffer);
+                        if (null == sender) {
+                            break;
+                        }
+                        buffer.flip();
+                        senders[count++] = sender;
+                    }
+                    for (int i = 0; i < count; i++) {
+                        handler.received(senders[i], buffers[i]);
+                        senders[i] = null;
+                    }
+                } while (count == buffers.length);
+            }
+        } catch (ClosedChannelException | ClosedSelectorException ex) {
+            logger.info("Endpoint closed");
+        }
+    }
+
+    /**
+     * Sends a datagram, if the send buffer is full the caller waits until it has space again
+     * @param datagram Datagram between the position and the limit of the buffer, the buffer is consumed
+     * @param target Address of the receiver
+     * @throws IOException Thrown if the datagram cannot be sent
+     */
+    public void send(ByteBuffer datagram, SocketAddress target) throws IOException {
+        if (channel.send(datagram, target) > 0 || !datagram.hasRemaining()) {
+            return;
+        }
+        synchronized (writeSelector) {
+            while (channel.send(datagram, target) == 0 && datagram.hasRemaining()) {
+                writeSelector.select(SEND_WAIT);
+                writeSelector.selectedKeys().clear();
+            }
+        }
+    }
+
+    /**
+     * Access the underlying channel
+     * @return {@link DatagramChannel}
+     */
+    public DatagramChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Closes the channel and stops the listener
+     */
+    @Override
+    public void close() {
+        try {
+            // Closing the selectors wakes up the listener and deregisters the channel
+            readSelector.close();
+            writeSelector.close();
+            channel.close();
+        } catch (IOException ex) {
+            logger.warn("Cannot close endpoint", ex);
+        }
+    }
+}
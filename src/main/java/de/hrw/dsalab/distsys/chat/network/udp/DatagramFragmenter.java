@@ -0,0 +1,88 @@
+package de.hrw.dsalab.distsys.chat.network.udp;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * This is a static class which splits data into datagrams of a maximum size.<br>
+ * Data which fits into a single datagram is sent unchanged. Larger data is split into fragments which are built as follows
+ * <code>{@link DatagramFragmenter#FRAGMENT_MARKER marker} | message id (8 bytes) | index (2 bytes) | count (2 bytes) | part</code>.<br>
+ * The fragments are joined by a {@link DatagramReassembler}
+ * @author Nils Milewski
+ * @version 1.1
+ * @since 3.2
+ */
+public final class DatagramFragmenter {
+    private DatagramFragmenter() {}
+
+    /**
+     * First byte of a fragment, neither an encoded message nor a command sequence starts with it
+     */
+    public static final byte FRAGMENT_MARKER = 30;
+
+    /**
+     * Size of the fragment header
+     */
+    public static final int HEADER_SIZE = 13;
+
+    /**
+     * Maximum amount of fragments of a single message
+     */
+    public static final int MAX_FRAGMENTS = 0xFFFF;
+
+    /**
+     * Largest payload of a UDP datagram, receive buffers of this size never truncate a datagram
+     */
+    public static final int MAX_DATAGRAM_SIZE = 65507;
+
+    /**
+     * Splits data into datagrams
+     * @param data Data to send
+     * @param datagramSize Maximum size of a datagram
+     * @return Datagrams which should be sent, a single datagram is the unchanged data
+     * @throws IllegalArgumentException Thrown if the data needs more than {@link DatagramFragmenter#MAX_FRAGMENTS} fragments
+     */
+    public static List<byte[]> fragment(byte[] data, int datagramSize) {
+        // A datagram which starts with the marker is fragmented, otherwise it would be mistaken for a fragment
+        if (data.length <= datagramSize && (data.length == 0 || data[0] != FRAGMENT_MARKER)) {
+            return Collections.singletonList(data);
+        }
+        int partSize = Math.max(1, datagramSize - HEADER_SIZE);
+        int count = Math.max(1, (data.length + partSize - 1) / partSize);
+        if (count > MAX_FRAGMENTS) {
+            throw new IllegalArgumentException("Data exceeds " + MAX_FRAGMENTS + " fragments");
+        }
+        long id = ThreadLocalRandom.current().nextLong();
+        List<byte[]> fragments = new ArrayList<>(count);
+        for (int index = 0; index < count; index++) {
+            int offset = index * partSize;
+            int length = Math.min(partSize, data.length - offset);
+            ByteBuffer fragment = ByteBuffer.allocate(HEADER_SIZE + length);
+            fragment.put(FRAGMENT_MARKER).putLong(id).putShort((short) index).putShort((short) count).put(data, offset, length);
+            fragments.add(fragment.array());
+        }
+        return fragments;
+    }
+
+    /**
+     * Checks if a datagram is a fragment
+     * @param data Received data
+     * @param length Length of the datagram
+     * @return True iff the datagram is a fragment
+     */
+    public static boolean isFragment(byte[] data, int length) {
+        return length >= HEADER_SIZE && data[0] == FRAGMENT_MARKER;
+    }
+
+    /**
+     * Checks if the remaining bytes of a buffer are a fragment, the buffer is not modified
+     * @param datagram Received datagram
+     * @return True iff the datagram is a fragment
+     */
+    public static boolean isFragment(ByteBuffer datagram) {
+        return datagram.remaining() >= HEADER_SIZE && datagram.get(datagram.position()) == FRAGMENT_MARKER;
+    }
+}
@@ -0,0 +1,233 @@
+package de.hrw.dsalab.distsys.chat.network.udp;
+
+import de.hrw.dsalab.distsys.chat.utils.Logger;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * This class joins the fragments created by the {@link DatagramFragmenter}.<br>
+ * Incomplete messages are kept in a reassembly table, they are dropped when they exceed the timeout or when the table
+ * exceeds its memory limit. The oldest message is dropped first. The limit accounts for the bookkeeping of a message as
+ * well as its payload, so a flood of tiny fragments which announce many parts cannot bypass it.<br>
+ * An instance is meant to be used by a single listener thread and is not thread safe
+ * @author Nils Milewski
+ * @version 1.2
+ * @since 3.2
+ */
+public class DatagramReassembler {
+    private static final Logger logger = Logger.getLogger(DatagramReassembler.class);
+
+    /**
+     * Estimated bytes of the table entry, the key and the pending message without their parts
+     */
+    private static final int ENTRY_OVERHEAD = 128;
+
+    /**
+     * Estimated bytes of a slot in the parts array
+     */
+    private static final int REFERENCE_SIZE = 8;
+
+    /**
+     * Estimated bytes of the header of a part array
+     */
+    private static final int ARRAY_OVERHEAD = 16;
+
+    /**
+     * Key of an incomplete message, the id is only unique per sender
+     */
+    private static class Key {
+        private final SocketAddress sender;
+        private final long id;
+
+        Key(SocketAddress sender, long id) {
+            this.sender = sender;
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(Object another) {
+            if (!(another instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) another;
+            return id == key.id && Objects.equals(sender, key.sender);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(sender, id);
+        }
+    }
+
+    /**
+     * Incomplete message
+     */
+    private static class Pending {
+        private final byte[][] parts;
+        private final long created = System.currentTimeMillis();
+        private int received = 0;
+        private int size = 0;
+
+        /**
+         * Estimated bytes which are held by the message, it is counted against the memory limit
+         */
+        private long footprint;
+
+        Pending(int count) {
+            parts = new byte[count][];
+            footprint = ENTRY_OVERHEAD + (long) count * REFERENCE_SIZE;
+        }
+    }
+
+    /**
+     * Time in milliseconds until an incomplete message is dropped
+     */
+    private final long timeout;
+
+    /**
+     * Maximum amount of bytes which are buffered by incomplete messages
+     */
+    private final long memoryLimit;
+
+    /**
+     * Incomplete messages in the order they were started
+     */
+    private final LinkedHashMap<Key, Pending> pending = new LinkedHashMap<>();
+
+    /**
+     * Estimated amount of bytes which are currently held by incomplete messages
+     */
+    private long buffered = 0;
+
+    /**
+     * Constructs a new reassembler
+     * @param timeout Time in milliseconds until an incomplete message is dropped
+     * @param memoryLimit Maximum amount of bytes which are buffered by incomplete messages
+     */
+    public DatagramReassembler(long timeout, long memoryLimit) {
+        this.timeout = timeout;
+        this.memoryLimit = memoryLimit;
+    }
+
+    /**
+     * Handles a received datagram
+     * @param sender Address of the sender
+     * @param datagram Buffer which contains the datagram, it is consumed and not referenced after the call
+     * @return Complete data or null iff the message is not complete yet or the fragment is invalid.
+     * A datagram which is not a fragment is returned without copying it
+     */
+    public ByteBuffer accept(SocketAddress sender, ByteBuffer datagram) {
+        if (!DatagramFragmenter.isFragment(datagram)) {
+            // Fast path, the datagram contains the complete data
+            return datagram;
+        }
+        expire(System.currentTimeMillis());
+        datagram.get();
+        long id = datagram.getLong();
+        int index = datagram.getShort() & 0xFFFF;
+        int count = datagram.getShort() & 0xFFFF;
+        if (count == 0 || index >= count) {
+            logger.warn("Dropped invalid fragment of " + sender);
+            return null;
+        }
+        Key key = new Key(sender, id);
+        Pending message = pending.get(key);
+        if (null == message) {
+            if (minimumFootprint(count) > memoryLimit) {
+                // The message could never be complete without exceeding the limit
+                logger.warn("Dropped fragment of " + sender + ", " + count + " fragments exceed the reassembly memory");
+                return null;
+            }
+            message = new Pending(count);
+            pending.put(key, message);
+            buffered += message.footprint;
+        } else if (message.parts.length != count) {
+            logger.warn("Dropped inconsistent fragment of " + sender);
+            return null;
+        }
+        if (null != message.parts[index]) {
+            return null;
+        }
+        message.parts[index] = new byte[datagram.remaining()];
+        datagram.get(message.parts[index]);
+        message.received++;
+        message.size += message.parts[index].length;
+        message.footprint += ARRAY_OVERHEAD + message.parts[index].length;
+        buffered += ARRAY_OVERHEAD + message.parts[index].length;
+        if (message.received == count) {
+            remove(key, message);
+            return join(message);
+        }
+        evict();
+        return null;
+    }
+
+    /**
+     * Drops all incomplete messages which exceed the timeout
+     * @param now Current time
+     */
+    private void expire(long now) {
+        Iterator<Map.Entry<Key, Pending>> iterator = pending.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Pending message = iterator.next().getValue();
+            if (message.created + timeout > now) {
+                // Messages are ordered by their creation, all following messages are younger
+                return;
+            }
+            buffered -= message.footprint;
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Drops the oldest incomplete messages until the memory limit is kept
+     */
+    private void evict() {
+        Iterator<Map.Entry<Key, Pending>> iterator = pending.entrySet().iterator();
+        while (buffered > memoryLimit && iterator.hasNext()) {
+            Map.Entry<Key, Pending> entry = iterator.next();
+            logger.warn("Reassembly memory exceeded, dropped message of " + entry.getKey().sender);
+            buffered -= entry.getValue().footprint;
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Removes a complete message from the table
+     * @param key Key of the message
+     * @param message Complete message
+     */
+    private void remove(Key key, Pending message) {
+        pending.remove(key);
+        buffered -= message.footprint;
+    }
+
+    /**
+     * Estimates the bytes which a complete message holds at least, every fragment carries at least one byte
+     * @param count Amount of fragments of the message
+     * @return Minimum footprint of the message
+     */
+    private static long minimumFootprint(int count) {
+        return ENTRY_OVERHEAD + (long) count * (REFERENCE_SIZE + ARRAY_OVERHEAD + 1);
+    }
+
+    /**
+     * Joins the parts of a complete message
+     * @param message Complete message
+     * @return Joined data
+     */
+    private static ByteBuffer join(Pending message) {
+        byte[] data = new byte[message.size];
+        int offset = 0;
+        for (byte[] part : message.parts) {
+            System.arraycopy(part, 0, data, offset, part.length);
+            offset += part.length;
+        }
+        return ByteBuffer.wrap(data);
+    }
+}
@@ -0,0 +1,145 @@
+package de.hrw.dsalab.distsys.chat.network.udp;
+
+import de.hrw.dsalab.distsys.chat.utils.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * This class sends datagrams over a single long-lived {@link DatagramChannel}.<br>
+ * Callers only append their datagrams to a lock free queue and never block, a dedicated sender thread drains the queue
+ * and sends every datagram with a single call. Datagrams keep the order in which they were submitted and all of them
+ * share the same source address, which identifies the fragments of a message at the receiver.<br>
+ * A datagram is sent to the default target unless another target is submitted with it
+ * @author Nils Milewski
+ * @version 1.1
+ * @since 3.2
+ */
+public class DatagramSender implements Closeable {
+    private static final Logger logger = Logger.getLogger(DatagramSender.class);
+
+    /**
+     * This class represents a queued datagram
+     */
+    private static class Outbound {
+        private final byte[] datagram;
+        private final SocketAddress target;
+
+        Outbound(byte[] datagram, SocketAddress target) {
+            this.datagram = datagram;
+            this.target = target;
+        }
+    }
+
+    /**
+     * Channel which is used to send, it is only used by the sender thread
+     */
+    private final DatagramChannel channel;
+
+    /**
+     * Default destination of the datagrams
+     */
+    private final SocketAddress target;
+
+    /**
+     * Datagrams which wait to be sent
+     */
+    private final Queue<Outbound> outbound = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Callback which is executed by the sender thread iff a datagram cannot be sent
+     */
+    private final Consumer<IOException> onFailure;
+
+    /**
+     * Sender thread
+     */
+    private final Thread thread;
+
+    /**
+     * States that the sender accepts datagrams
+     */
+    private volatile boolean running = true;
+
+    /**
+     * Creates a new sender and starts its thread
+     * @param channel Opened channel in blocking mode, it is owned by the sender
+     * @param target Default destination of the datagrams
+     * @param name Name of the sender thread
+     * @param onFailure Callback which is executed iff a datagram cannot be sent
+     */
+    public DatagramSender(DatagramChannel channel, SocketAddress target, String name, Consumer<IOException> onFailure) {
+        this.channel = channel;
+        this.target = target;
+        this.onFailure = onFailure;
+        this.thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queues a datagram for the default target
+     * @param datagram Datagram to send, it is not modified afterwards
+     */
+    public void submit(byte[] datagram) {
+        submit(datagram, target);
+    }
+
+    /**
+     * Queues a datagram
+     * @param datagram Datagram to send, it is not modified afterwards
+     * @param target Destination of the datagram
+     */
+    public void submit(byte[] datagram, SocketAddress target) {
+        if (!running) {
+            return;
+        }
+        outbound.add(new Outbound(datagram, target));
+        LockSupport.unpark(thread);
+    }
+
+    /**
+     * Sends queued datagrams until the sender is closed, datagrams which are queued before the close are still sent
+     */
+    private void run() {
+        try {
+            while (running || !outbound.isEmpty()) {
+                Outbound next = outbound.poll();
+                if (null == next) {
+                    LockSupport.park(this);
+                    continue;
+                }
+                try {
+                    channel.send(ByteBuffer.wrap(next.datagram), next.target);
+                } catch (IOException ex) {
+                    if (!channel.isOpen()) {
+                        return;
+                    }
+                    onFailure.accept(ex);
+                }
+            }
+        } finally {
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                logger.warn("Cannot close send channel", ex);
+            }
+        }
+    }
+
+    /**
+     * Stops accepting datagrams, the sender thread closes the channel after the queue is drained
+     */
+    @Override
+    public void close() {
+        running = false;
+        LockSupport.unpark(thread);
+    }
+}
@@ -0,0 +1,183 @@
+package de.hrw.dsalab.distsys.chat.network.udp;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class writes and checks the header which precedes an encoded message of the {@link BroadcastNetwork}.<br>
+ * The header is built as follows <code>{@link MessageHeader#MARKER marker} | sender | message id | room</code>, every
+ * field has a fixed offset. The sender is a random number of the sending network instance, the message id counts its
+ * messages and the room is the hash of the room name or 0 for a message without a room.<br>
+ * A receiver checks the header before the message is decoded and drops its own echoes, duplicates and messages of rooms
+ * which are not joined. A message without a header is always accepted, so nodes without it are still received.
+ * The duplicate windows of the {@link MessageHeader#MAX_SENDERS} most recent senders are kept, so restarted senders do not accumulate.<br>
+ * {@link MessageHeader#write} is thread safe, {@link MessageHeader#accept} must be called by one thread at a time
+ * @author Nils Milewski
+ * @version 1.1
+ * @since 3.2
+ */
+class MessageHeader {
+    /**
+     * First byte of the header
+     */
+    static final byte MARKER = 24;
+
+    /**
+     * Size of the header
+     */
+    static final int SIZE = 1 + 3 * Integer.BYTES;
+
+    /**
+     * Amount of recent message ids per sender which are checked for duplicates, it is limited by the bitmap size
+     */
+    private static final int DUPLICATE_WINDOW = Long.SIZE;
+
+    /**
+     * Maximum amount of senders whose duplicate windows are kept, the least recently heard sender is forgotten first
+     */
+    private static final int MAX_SENDERS = 1024;
+
+    /**
+     * This class represents the recently received message ids of a sender
+     */
+    private static class Window {
+        /**
+         * Highest received message id
+         */
+        private int highest;
+
+        /**
+         * Received message ids, bit i states that the id <code>highest - i</code> was received
+         */
+        private long received = 1;
+
+        Window(int highest) {
+            this.highest = highest;
+        }
+
+        /**
+         * Records a message id
+         * @param id Received message id
+         * @return True iff the id is new, ids older than the {@link MessageHeader#DUPLICATE_WINDOW} are considered duplicates
+         */
+        boolean record(int id) {
+            int ahead = id - highest;
+            if (ahead > 0) {
+                received = ahead >= DUPLICATE_WINDOW ? 1 : (received << ahead) | 1;
+                highest = id;
+                return true;
+            }
+            if (-ahead >= DUPLICATE_WINDOW || (received & (1L << -ahead)) != 0) {
+                return false;
+            }
+            received |= 1L << -ahead;
+            return true;
+        }
+    }
+
+    /**
+     * Random sender of this instance
+     */
+    private final int sender = ThreadLocalRandom.current().nextInt();
+
+    /**
+     * Id of the next sent message
+     */
+    private final AtomicInteger nextId = new AtomicInteger(0);
+
+    /**
+     * Recently received message ids by their sender in access order, it is limited to {@link MessageHeader#MAX_SENDERS} entries
+     */
+    private final Map<Integer, Window> windows = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Window> eldest) {
+            return size() > MAX_SENDERS;
+        }
+    };
+
+    /**
+     * Joined rooms, it is shared with the network
+     */
+    private final Set<String> rooms;
+
+    /**
+     * Creates a new instance
+     * @param rooms Joined rooms, a message of another room is dropped unless the set is empty
+     */
+    MessageHeader(Set<String> rooms) {
+        this.rooms = rooms;
+    }
+
+    /**
+     * Prepends the header to an encoded message
+     * @param room Room of the message, it may be null
+     * @param message Encoded message
+     * @return Header followed by the message
+     */
+    byte[] write(String room, byte[] message) {
+        return ByteBuffer.allocate(SIZE + message.length)
+                .put(MARKER).putInt(sender).putInt(nextId.getAndIncrement()).putInt(hash(room))
+                .put(message).array();
+    }
+
+    /**
+     * Checks and consumes the header of a received message
+     * @param message Received message, its position is moved behind the header
+     * @return True iff the message should be decoded
+     */
+    boolean accept(ByteBuffer message) {
+        if (!message.hasRemaining() || message.get(message.position()) != MARKER) {
+            return true;
+        }
+        if (message.remaining() < SIZE) {
+            return false;
+        }
+        message.get();
+        int messageSender = message.getInt();
+        int id = message.getInt();
+        int room = message.getInt();
+        if (messageSender == sender || !joined(room)) {
+            return false;
+        }
+        Window window = windows.get(messageSender);
+        if (null == window) {
+            windows.put(messageSender, new Window(id));
+            return true;
+        }
+        return window.record(id);
+    }
+
+    /**
+     * Checks if a room hash belongs to a joined room
+     * @param room Hash of the room
+     * @return True iff the message has no room, no room is joined or the hash matches a joined room
+     */
+    private boolean joined(int room) {
+        if (room == 0 || rooms.isEmpty()) {
+            return true;
+        }
+        for (String name : rooms) {
+            if (hash(name) == room) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Calculates the hash of a room
+     * @param room Name of the room, it may be null
+     * @return Hash of the name, 0 is reserved for a message without a room
+     */
+    private static int hash(String room) {
+        if (null == room) {
+            return 0;
+        }
+        int hash = room.hashCode();
+        return hash == 0 ? 1 : hash;
+    }
+}
@@ -1,52 +1,356 @@
 package de.hrw.dsalab.distsys.chat.network.udp;
 
-import de.hrw.dsalab.distsys.chat.data.User;
+import de.hrw.dsalab.distsys.chat.data.Configuration;
+import de.hrw.dsalab.distsys.chat.data.Connection;
+import de.hrw.dsalab.distsys.chat.data.Message;
 import de.hrw.dsalab.distsys.chat.network.AbstractNetwork;
+import de.hrw.dsalab.distsys.chat.utils.exceptions.NetworkInitializeException;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.*;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.MembershipKey;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
- * This class implements an {@link AbstractNetwork} using {@link BroadcastNetwork Multicast}
+ * This class implements an {@link AbstractNetwork} using {@link BroadcastNetwork Multicast}.<br>
+ * Rooms are mapped onto multicast groups, either explicitly by the configuration or by the hash of their name. Every
+ * group has its own port, so a node only joins the groups of its rooms and the traffic of other rooms is already dropped
+ * by the network interface and the kernel. Without rooms the configured group is used.<br>
+ * Every joined group is served by a {@link Lane} with its own {@link DatagramEndpoint}, all lanes share the {@link DatagramSender}
+ * which sends over the interface which joined the groups.<br>
+ * If reliable multicast is enabled lost datagrams are repaired by a {@link MulticastRepair} per group, datagrams of senders without it are still accepted
  * @author Nils Milewski
- * @version 1.2
+ * @version 1.7
  * @since 2.2
  */
 public class MulticastNetwork extends BroadcastNetwork {
 
+    /**
+     * This class represents a joined group with its receiver and its send pipeline
+     */
+    private class Lane {
+        /**
+         * Address and port of the group
+         */
+        private final InetSocketAddress group;
+
+        /**
+         * {@link DatagramEndpoint} which receives the datagrams of the group
+         */
+        private final DatagramEndpoint endpoint;
+
+        /**
+         * Membership of the group
+         */
+        private final MembershipKey membership;
+
+        /**
+         * {@link MulticastRepair} of the group, it is null iff reliable multicast is disabled
+         */
+        private final MulticastRepair repair;
+
+        /**
+         * {@link DatagramAggregator} of the group, it is null iff aggregation is disabled
+         */
+        private final DatagramAggregator aggregator;
+
+        /**
+         * Joins a group and starts its listener thread
+         * @param group Address and port of the group
+         * @throws IOException Thrown iff the group cannot be joined
+         */
+        Lane(InetSocketAddress group) throws IOException {
+            this.group = group;
+            DatagramChannel channel = DatagramChannel.open(family());
+            channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            channel.bind(new InetSocketAddress(group.getPort()));
+            membership = channel.join(group.getAddress(), multicastInterface());
+            endpoint = new DatagramEndpoint(channel, receiveBatch, receiveBufferSize);
+            repair = reliableMulticast
+                    ? new MulticastRepair(datagram -> sender.submit(datagram, group), MulticastNetwork.this::deliver, repairBufferSize)
+                    : null;
+            aggregator = aggregationWindow > 0 ? new DatagramAggregator(this::transmit, datagramSize, aggregationWindow) : null;
+            Thread thread = new Thread(this::listen, "Multicast " + group);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        /**
+         * Receives the datagrams of the group until the lane is closed
+         */
+        private void listen() {
+            try {
+                endpoint.listen((source, datagram) -> {
+                    if (null != repair && MulticastRepair.isRepair(datagram)) {
+                        repair.receive(source, datagram);
+                    } else {
+                        deliver(source, datagram);
+                    }
+                });
+            } catch (Exception ex) {
+                logger.warn("An exception occurred while listening", ex);
+                exceptionOccurred(ex);
+            }
+        }
+
+        /**
+         * Sends a datagram to the group directly or through the {@link Lane#aggregator}
+         * @param datagram Datagram to send, it is not modified afterwards
+         * @throws IOException Thrown iff the datagram cannot be queued
+         */
+        void send(byte[] datagram) throws IOException {
+            if (null == aggregator) {
+                transmit(datagram);
+            } else {
+                aggregator.submit(datagram);
+            }
+        }
+
+        /**
+         * Queues a datagram on the {@link DatagramSender} directly or through the {@link Lane#repair}
+         * @param datagram Datagram to send, it is not modified afterwards
+         */
+        private void transmit(byte[] datagram) {
+            if (null == repair) {
+                sender.submit(datagram, group);
+            } else {
+                repair.send(datagram);
+            }
+        }
+
+        /**
+         * Leaves the group and stops the listener thread
+         */
+        void close() {
+            membership.drop();
+            endpoint.close();
+            if (null != repair) {
+                repair.close();
+            }
+        }
+    }
+
+    /**
+     * Joined groups by their address and port
+     */
+    private final ConcurrentMap<InetSocketAddress, Lane> lanes = new ConcurrentHashMap<>();
+
+    /**
+     * Explicitly configured groups by their room
+     */
+    private final Map<String, InetSocketAddress> roomMapping = new HashMap<>();
+
+    /**
+     * Amount of groups the rooms are hashed across
+     */
+    private int roomGroups;
+
+    /**
+     * States if reliable multicast is enabled
+     */
+    private boolean reliableMulticast;
+
+    /**
+     * Amount of buffered datagrams of a {@link MulticastRepair}
+     */
+    private int repairBufferSize;
+
+    /**
+     * Length of an aggregation window in milliseconds, 0 disables the aggregation
+     */
+    private long aggregationWindow;
+
     /**
      * {@inheritDoc}
      */
     @Override
-    public void sendNetworkData(User user, byte[] data) {
-        try(MulticastSocket socket = new MulticastSocket()) {
-            super.internalSend(socket, user, data);
-        } catch (Exception ex) {
-            logger.warn("An Exception occurred during sending. ", ex);
-            connectionLost();
+    protected void init() throws NetworkInitializeException {
+        super.init();
+        Connection connection = Configuration.getConfiguration().getConnection();
+        reliableMulticast = connection.isReliableMulticast();
+        repairBufferSize = connection.getRepairBufferSize();
+        aggregationWindow = connection.getAggregationWindow();
+        roomGroups = connection.getRoomGroups();
+        roomMapping.clear();
+        try {
+            for (String entry : connection.getRoomMapping().split(",")) {
+                if (entry.isBlank()) {
+                    continue;
+                }
+                int separator = entry.indexOf('=');
+                int portSeparator = entry.lastIndexOf(':');
+                if (separator < 0 || portSeparator < separator) {
+                    throw new NetworkInitializeException(new IllegalArgumentException("Invalid room mapping " + entry));
+                }
+                roomMapping.put(entry.substring(0, separator).trim(), new InetSocketAddress(
+                        InetAddress.getByName(entry.substring(separator + 1, portSeparator).trim()),
+                        Integer.parseInt(entry.substring(portSeparator + 1).trim())));
+            }
+        } catch (UnknownHostException | NumberFormatException ex) {
+            logger.critical("A critical exception occurred during initialization", ex);
+            throw new NetworkInitializeException(ex);
         }
     }
 
     /**
-     * {@inheritDoc}
+     * Initializes the {@link DatagramSender} and joins the groups of all rooms, the configured group is joined iff no room is configured
+     * @throws IOException Thrown iff a group cannot be joined
      */
     @Override
     protected void initSocket() throws IOException {
-        serverSocket = new MulticastSocket(super.port);
-        serverSocket.setReuseAddress(true);
-        ((MulticastSocket)serverSocket).joinGroup(super.ip);
+        initSender();
+        try {
+            if (rooms.isEmpty()) {
+                lane(null);
+            }
+            for (String name : rooms) {
+                lane(name);
+            }
+        } catch (UncheckedIOException ex) {
+            closeSocket();
+            throw ex.getCause();
+        }
+    }
+
+    /**
+     * Every {@link Lane} starts its own listener thread
+     */
+    @Override
+    protected void initListener() {
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public void stop() {
+    protected DatagramChannel openSendChannel() throws IOException {
+        DatagramChannel channel = DatagramChannel.open(family());
+        channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, multicastInterface());
+        return channel;
+    }
+
+    /**
+     * Sends the datagrams to the group of the room of the message
+     * @param message Sent {@link Message message}
+     * @param datagrams Datagrams of the message
+     * @throws IOException Thrown iff the datagrams cannot be queued
+     */
+    @Override
+    protected void dispatch(Message message, List<byte[]> datagrams) throws IOException {
+        try {
+            Lane lane = lane(message.getRoom());
+            for (byte[] datagram : datagrams) {
+                lane.send(datagram);
+            }
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+    }
+
+    /**
+     * Joins a room and its group, the following messages are sent to it
+     * @param room Name of the room
+     */
+    @Override
+    public void setRoom(String room) {
+        if (alive.get()) {
+            lane(room);
+        }
+        super.setRoom(room);
+    }
+
+    /**
+     * Looks up the {@link Lane} of a room, its group is joined if necessary
+     * @param room Name of the room, null states the configured group
+     * @return {@link Lane} of the room
+     * @throws UncheckedIOException Thrown iff the group cannot be joined
+     */
+    private Lane lane(String room) {
+        return lanes.computeIfAbsent(group(room), group -> {
+            try {
+                return new Lane(group);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        });
+    }
+
+    /**
+     * Maps a room onto its group, an explicit mapping takes precedence over the hash of the name
+     * @param room Name of the room, null states the configured group
+     * @return Address and port of the group
+     */
+    private InetSocketAddress group(String room) {
+        if (null == room || (roomGroups <= 0 && !roomMapping.containsKey(room))) {
+            return new InetSocketAddress(super.ip, super.port);
+        }
+        InetSocketAddress mapped = roomMapping.get(room);
+        if (null != mapped) {
+            return mapped;
+        }
+        int index = Math.floorMod(room.hashCode(), roomGroups);
+        byte[] address = super.ip.getAddress();
+        // Adds the index to the configured address, the carry is propagated into the higher bytes
+        int carry = index;
+        for (int i = address.length - 1; i >= 0 && carry > 0; i--) {
+            int sum = (address[i] & 0xFF) + carry;
+            address[i] = (byte) sum;
+            carry = sum >>> 8;
+        }
         try {
-            ((MulticastSocket)serverSocket).leaveGroup(ip);
-            super.stop();
-        } catch (IOException ex) {
-            exceptionOccurred(ex);
+            return new InetSocketAddress(InetAddress.getByAddress(address), super.port + index);
+        } catch (UnknownHostException ex) {
+            // An address of a valid length is always accepted
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Determines the protocol family of the group
+     * @return {@link StandardProtocolFamily#INET6} iff the group is an IPv6 address, otherwise {@link StandardProtocolFamily#INET}
+     */
+    private ProtocolFamily family() {
+        return super.ip instanceof Inet6Address ? StandardProtocolFamily.INET6 : StandardProtocolFamily.INET;
+    }
+
+    /**
+     * Finds the interface which joins the group, an interface which is not the loopback interface is preferred
+     * @return {@link NetworkInterface} which supports multicast
+     * @throws IOException Thrown iff no interface supports multicast
+     */
+    private static NetworkInterface multicastInterface() throws IOException {
+        NetworkInterface fallback = null;
+        for (NetworkInterface candidate : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+            if (!candidate.isUp() || !candidate.supportsMulticast()) {
+                continue;
+            }
+            if (!candidate.isLoopback()) {
+                return candidate;
+            }
+            fallback = candidate;
+        }
+        if (null == fallback) {
+            throw new SocketException("No network interface supports multicast");
+        }
+        return fallback;
+    }
+
+    /**
+     * Leaves all groups and closes the {@link DatagramSender}
+     */
+    @Override
+    protected void closeSocket() {
+        for (Lane lane : lanes.values()) {
+            lane.close();
         }
+        lanes.clear();
+        sender.close();
     }
 }
@@ -0,0 +1,639 @@
+package de.hrw.dsalab.distsys.chat.network.udp;
+
+import de.hrw.dsalab.distsys.chat.utils.Logger;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class makes the datagrams of a {@link MulticastNetwork} reliable with negative acknowledgements.<br>
+ * Every sender numbers its datagrams and keeps the latest ones in a bounded retransmit buffer. A receiver which detects
+ * a gap waits a random back-off and multicasts a NAK for the missing sequences. Every other receiver which hears the NAK
+ * suppresses its own NAK for these sequences, so a single retransmission repairs all receivers which missed the datagram.
+ * The sender repeats its highest sequence with heartbeats while it is idle, so a lost last datagram is detected as well.<br>
+ * A data datagram is built as follows <code>{@link MulticastRepair#DATA_MARKER marker} | session | sequence | payload</code>,
+ * a control datagram as <code>{@link MulticastRepair#CONTROL_MARKER marker} | type | session | sequence*</code>.
+ * The session is a random number of the sending instance, so a restarted sender starts a new stream. A receiver joins a
+ * stream at the first datagram it receives, unless it is one of the first {@link MulticastRepair#JOIN_WINDOW} datagrams.
+ * In that case the receiver was listening before the sender started and the stream is repaired from its beginning.<br>
+ * Payloads of a sender are delivered in order. A sequence which is not repaired after {@link MulticastRepair#MAX_NAKS}
+ * NAKs is skipped, so a sender which no longer buffers it does not block its stream. A stream which neither received a
+ * datagram nor a heartbeat for {@link MulticastRepair#STREAM_TIMEOUT} is removed, a returning sender is joined again.<br>
+ * All methods are thread safe
+ * @author Nils Milewski
+ * @version 1.1
+ * @since 3.2
+ */
+class MulticastRepair {
+    private static final Logger logger = Logger.getLogger(MulticastRepair.class);
+
+    /**
+     * First byte of a data datagram
+     */
+    static final byte DATA_MARKER = 25;
+
+    /**
+     * First byte of a NAK or heartbeat datagram
+     */
+    static final byte CONTROL_MARKER = 26;
+
+    /**
+     * Type of a NAK, the sequences are missing at the receiver
+     */
+    private static final byte NAK = 0;
+
+    /**
+     * Type of a heartbeat, the sequence is the highest sent sequence
+     */
+    private static final byte HEARTBEAT = 1;
+
+    /**
+     * Size of the header of a data datagram
+     */
+    private static final int DATA_HEADER_SIZE = 1 + Long.BYTES + Long.BYTES;
+
+    /**
+     * Size of the header of a control datagram
+     */
+    private static final int CONTROL_HEADER_SIZE = 2 + Long.BYTES;
+
+    /**
+     * Amount of sequences at the beginning of a stream which are repaired by a new receiver
+     */
+    private static final long JOIN_WINDOW = 16;
+
+    /**
+     * Maximum amount of sequences inside a NAK
+     */
+    private static final int MAX_NAK_SEQUENCES = 128;
+
+    /**
+     * Maximum random delay in milliseconds before a receiver reports a new gap
+     */
+    private static final long NAK_BACKOFF = 30;
+
+    /**
+     * Time in milliseconds before a NAK is repeated or after a NAK of another receiver was heard
+     */
+    private static final long NAK_INTERVAL = 200;
+
+    /**
+     * NAKs of a single sequence until it is skipped
+     */
+    private static final int MAX_NAKS = 8;
+
+    /**
+     * Time in milliseconds a retransmitted datagram is not retransmitted again, NAKs of receivers which did not hear
+     * the first NAK are served by the same retransmission
+     */
+    private static final long REPAIR_HOLDOFF = 20;
+
+    /**
+     * Delay in milliseconds between the last datagram and the first heartbeat, it doubles with every heartbeat
+     */
+    private static final long HEARTBEAT_DELAY = 50;
+
+    /**
+     * Amount of heartbeats after the last datagram
+     */
+    private static final int MAX_HEARTBEATS = 6;
+
+    /**
+     * Time in milliseconds after which a stream without datagrams and heartbeats is removed
+     */
+    private static final long STREAM_TIMEOUT = 60_000;
+
+    /**
+     * Timer which is used for NAKs and heartbeats, it is shared by all instances
+     */
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "Multicast repair timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * This interface represents the group, sending must not block
+     */
+    interface Transport {
+        /**
+         * Sends a datagram to the group
+         * @param datagram Datagram to send, it is not modified afterwards
+         */
+        void send(byte[] datagram);
+    }
+
+    /**
+     * This interface receives the repaired payloads
+     */
+    interface Receiver {
+        /**
+         * Delivers a payload, the payloads of a sender are delivered in order
+         * @param sender Address of the sender
+         * @param payload Payload between the position and the limit of the buffer
+         */
+        void deliver(SocketAddress sender, ByteBuffer payload);
+    }
+
+    /**
+     * This class represents a missing sequence of a {@link Stream}
+     */
+    private static class Gap {
+        /**
+         * NAKs which were sent for the sequence, a NAK of another receiver only defers the next NAK
+         */
+        private int naks = 0;
+
+        /**
+         * {@link System#currentTimeMillis() Unix timestamp} when the next NAK is due
+         */
+        private long due;
+
+        Gap(long due) {
+            this.due = due;
+        }
+    }
+
+    /**
+     * This class represents the received datagrams of a sender
+     */
+    private class Stream {
+        /**
+         * Session of the sender
+         */
+        private final long session;
+
+        /**
+         * Address of the sender
+         */
+        private final SocketAddress sender;
+
+        /**
+         * Next sequence which is delivered
+         */
+        private long next;
+
+        /**
+         * Highest sequence which is known to be sent
+         */
+        private long highest;
+
+        /**
+         * Received payloads which wait for a missing sequence
+         */
+        private final Map<Long, byte[]> held = new HashMap<>();
+
+        /**
+         * Missing sequences
+         */
+        private final Map<Long, Gap> missing = new HashMap<>();
+
+        /**
+         * {@link System#currentTimeMillis() Unix timestamp} of the earliest scheduled NAK check
+         */
+        private long checkAt = Long.MAX_VALUE;
+
+        /**
+         * {@link System#currentTimeMillis() Unix timestamp} of the last datagram or heartbeat of the sender
+         */
+        private long lastActivity = System.currentTimeMillis();
+
+        /**
+         * States that the stream was removed, it no longer delivers payloads and sends NAKs
+         */
+        private boolean expired = false;
+
+        Stream(long session, SocketAddress sender, long next) {
+            this.session = session;
+            this.sender = sender;
+            this.next = next;
+            this.highest = next - 1;
+        }
+
+        /**
+         * Handles a data datagram, the payload and every payload which waited for it are delivered
+         * @param sequence Sequence of the datagram
+         * @param payload Payload of the datagram
+         */
+        synchronized void data(long sequence, ByteBuffer payload) {
+            lastActivity = System.currentTimeMillis();
+            if (expired || sequence < next || held.containsKey(sequence)) {
+                return;
+            }
+            if (sequence == next) {
+                missing.remove(sequence);
+                highest = Math.max(highest, sequence);
+                next++;
+                receiver.deliver(sender, payload);
+                advance();
+                return;
+            }
+            byte[] copy = new byte[payload.remaining()];
+            payload.get(copy);
+            discover(sequence);
+            if (sequence >= next) {
+                missing.remove(sequence);
+                held.put(sequence, copy);
+                highest = Math.max(highest, sequence);
+                advance();
+            }
+        }
+
+        /**
+         * Marks every unknown sequence in front of a sequence as missing
+         * @param sequence First sequence which is not marked
+         */
+        private void discover(long sequence) {
+            if (sequence <= highest + 1) {
+                return;
+            }
+            if (sequence - next >= capacity) {
+                // The sender no longer buffers the oldest missing sequences, they are skipped
+                skipUntil(sequence - capacity + 1);
+            }
+            long now = System.currentTimeMillis();
+            long due = now + ThreadLocalRandom.current().nextLong(NAK_BACKOFF + 1);
+            for (long missed = Math.max(next, highest + 1); missed < sequence; missed++) {
+                missing.put(missed, new Gap(due));
+            }
+            highest = Math.max(highest, sequence - 1);
+            if (!missing.isEmpty()) {
+                schedule(due, now);
+            }
+        }
+
+        /**
+         * Handles a heartbeat of the sender, every unknown sequence up to the heartbeat sequence is missing
+         * @param sequence Highest sequence of the sender
+         */
+        synchronized void heartbeat(long sequence) {
+            lastActivity = System.currentTimeMillis();
+            if (!expired) {
+                discover(sequence + 1);
+            }
+        }
+
+        /**
+         * Suppresses the NAKs of sequences which were requested by another receiver
+         * @param sequences Requested sequences
+         */
+        synchronized void heard(List<Long> sequences) {
+            long due = System.currentTimeMillis() + NAK_INTERVAL;
+            for (Long sequence : sequences) {
+                Gap gap = missing.get(sequence);
+                if (null != gap) {
+                    gap.due = Math.max(gap.due, due);
+                }
+            }
+        }
+
+        /**
+         * Sends a NAK for every due sequence, a sequence which reached {@link MulticastRepair#MAX_NAKS} is skipped
+         */
+        synchronized void check() {
+            checkAt = Long.MAX_VALUE;
+            if (closed || expired) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            List<Long> requested = new ArrayList<>();
+            List<Long> abandoned = new ArrayList<>();
+            long nextDue = Long.MAX_VALUE;
+            for (Map.Entry<Long, Gap> entry : missing.entrySet()) {
+                Gap gap = entry.getValue();
+                if (gap.due > now) {
+                    nextDue = Math.min(nextDue, gap.due);
+                } else if (gap.naks >= MAX_NAKS) {
+                    abandoned.add(entry.getKey());
+                } else if (requested.size() < MAX_NAK_SEQUENCES) {
+                    requested.add(entry.getKey());
+                    gap.naks++;
+                    gap.due = now + NAK_INTERVAL;
+                    nextDue = Math.min(nextDue, gap.due);
+                } else {
+                    nextDue = now;
+                }
+            }
+            if (!requested.isEmpty()) {
+                transport.send(control(NAK, session, requested));
+            }
+            if (!abandoned.isEmpty()) {
+                logger.warn("Skipped " + abandoned.size() + " unrecoverable datagrams of " + sender);
+                abandoned.forEach(missing::remove);
+                advance();
+            }
+            if (nextDue != Long.MAX_VALUE) {
+                schedule(nextDue, now);
+            }
+        }
+
+        /**
+         * Schedules a {@link Stream#check} unless an earlier check is already scheduled
+         * @param at {@link System#currentTimeMillis() Unix timestamp} of the check
+         * @param now Current {@link System#currentTimeMillis() Unix timestamp}
+         */
+        private void schedule(long at, long now) {
+            if (closed || expired || at >= checkAt) {
+                return;
+            }
+            checkAt = at;
+            timer.schedule(this::check, Math.max(0, at - now), TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Marks the stream as expired iff the sender was idle for {@link MulticastRepair#STREAM_TIMEOUT}, its held payloads and gaps are dropped
+         * @param now Current {@link System#currentTimeMillis() Unix timestamp}
+         * @return True iff the stream expired
+         */
+        synchronized boolean expire(long now) {
+            if (now - lastActivity < STREAM_TIMEOUT) {
+                return false;
+            }
+            expired = true;
+            held.clear();
+            missing.clear();
+            return true;
+        }
+
+        /**
+         * Delivers all held payloads in front of the next missing sequence
+         */
+        private void advance() {
+            while (next <= highest && !missing.containsKey(next)) {
+                byte[] payload = held.remove(next++);
+                if (null != payload) {
+                    receiver.deliver(sender, ByteBuffer.wrap(payload));
+                }
+            }
+        }
+
+        /**
+         * Skips every sequence in front of a sequence, the held payloads are delivered
+         * @param sequence First sequence which is not skipped
+         */
+        private void skipUntil(long sequence) {
+            while (next < sequence) {
+                missing.remove(next);
+                byte[] payload = held.remove(next++);
+                if (null != payload) {
+                    receiver.deliver(sender, ByteBuffer.wrap(payload));
+                }
+            }
+            highest = Math.max(highest, next - 1);
+            advance();
+        }
+    }
+
+    /**
+     * Transport of the sent datagrams
+     */
+    private final Transport transport;
+
+    /**
+     * Receiver of the repaired payloads
+     */
+    private final Receiver receiver;
+
+    /**
+     * Amount of buffered datagrams of the sender
+     */
+    private final int capacity;
+
+    /**
+     * Random session of this sender
+     */
+    private final long session = ThreadLocalRandom.current().nextLong();
+
+    /**
+     * Sent datagrams by their sequence modulo the capacity
+     */
+    private final byte[][] sent;
+
+    /**
+     * {@link System#currentTimeMillis() Unix timestamps} of the last retransmissions of the {@link MulticastRepair#sent} datagrams
+     */
+    private final long[] repaired;
+
+    /**
+     * Next sequence of this sender
+     */
+    private long nextSequence = 0;
+
+    /**
+     * {@link System#currentTimeMillis() Unix timestamp} of the last sent datagram
+     */
+    private long lastSent;
+
+    /**
+     * Amount of heartbeats which were sent since the last datagram
+     */
+    private int heartbeats = 0;
+
+    /**
+     * States that a heartbeat is scheduled
+     */
+    private boolean heartbeatScheduled = false;
+
+    /**
+     * States that the instance was closed
+     */
+    private volatile boolean closed = false;
+
+    /**
+     * Streams of the senders by their session
+     */
+    private final ConcurrentMap<Long, Stream> streams = new ConcurrentHashMap<>();
+
+    /**
+     * Periodic removal of the idle streams, it is cancelled by {@link MulticastRepair#close}
+     */
+    private final ScheduledFuture<?> sweeper;
+
+    /**
+     * Creates a new instance
+     * @param transport Transport of the sent datagrams
+     * @param receiver Receiver of the repaired payloads
+     * @param capacity Amount of buffered datagrams, a receiver skips a gap which is larger
+     */
+    MulticastRepair(Transport transport, Receiver receiver, int capacity) {
+        this.transport = transport;
+        this.receiver = receiver;
+        this.capacity = Math.max(1, capacity);
+        this.sent = new byte[this.capacity][];
+        this.repaired = new long[this.capacity];
+        this.sweeper = timer.scheduleWithFixedDelay(this::sweep, STREAM_TIMEOUT, STREAM_TIMEOUT / 2, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Checks if a datagram belongs to the repair protocol, the buffer is not modified
+     * @param datagram Received datagram
+     * @return True iff the datagram is a data or control datagram
+     */
+    static boolean isRepair(ByteBuffer datagram) {
+        if (!datagram.hasRemaining()) {
+            return false;
+        }
+        byte marker = datagram.get(datagram.position());
+        return marker == DATA_MARKER || marker == CONTROL_MARKER;
+    }
+
+    /**
+     * Numbers a datagram, buffers it for retransmissions and sends it
+     * @param payload Datagram to send, it is not modified afterwards
+     */
+    synchronized void send(byte[] payload) {
+        long sequence = nextSequence++;
+        byte[] datagram = ByteBuffer.allocate(DATA_HEADER_SIZE + payload.length)
+                .put(DATA_MARKER).putLong(session).putLong(sequence).put(payload).array();
+        int slot = (int) (sequence % capacity);
+        sent[slot] = datagram;
+        repaired[slot] = 0;
+        lastSent = System.currentTimeMillis();
+        heartbeats = 0;
+        if (!heartbeatScheduled) {
+            heartbeatScheduled = true;
+            timer.schedule(this::heartbeat, HEARTBEAT_DELAY, TimeUnit.MILLISECONDS);
+        }
+        transport.send(datagram);
+    }
+
+    /**
+     * Handles a received datagram of the repair protocol, malformed datagrams are dropped
+     * @param sender Address of the sender
+     * @param datagram Received datagram, it is consumed
+     */
+    void receive(SocketAddress sender, ByteBuffer datagram) {
+        if (closed) {
+            return;
+        }
+        byte marker = datagram.get();
+        if (marker == DATA_MARKER && datagram.remaining() >= DATA_HEADER_SIZE - 1) {
+            long streamSession = datagram.getLong();
+            long sequence = datagram.getLong();
+            Stream stream = streams.computeIfAbsent(streamSession, key -> new Stream(key, sender, join(sequence)));
+            stream.data(sequence, datagram);
+        } else if (marker == CONTROL_MARKER && datagram.remaining() >= CONTROL_HEADER_SIZE - 1) {
+            byte type = datagram.get();
+            long streamSession = datagram.getLong();
+            List<Long> sequences = new ArrayList<>(datagram.remaining() / Long.BYTES);
+            while (datagram.remaining() >= Long.BYTES) {
+                sequences.add(datagram.getLong());
+            }
+            if (type == NAK && streamSession == session) {
+                repair(sequences);
+            }
+            Stream stream = type == HEARTBEAT && !sequences.isEmpty() && sequences.get(0) < JOIN_WINDOW
+                    ? streams.computeIfAbsent(streamSession, key -> new Stream(key, sender, 0))
+                    : streams.get(streamSession);
+            if (null == stream) {
+                return;
+            }
+            if (type == NAK) {
+                stream.heard(sequences);
+            } else if (type == HEARTBEAT && !sequences.isEmpty()) {
+                stream.heartbeat(sequences.get(0));
+            }
+        } else {
+            logger.warn("Dropped malformed repair datagram of " + sender);
+        }
+    }
+
+    /**
+     * Determines the first sequence of a new stream
+     * @param sequence First received sequence
+     * @return Zero iff the sequence is inside the {@link MulticastRepair#JOIN_WINDOW}, otherwise the sequence
+     */
+    private static long join(long sequence) {
+        return sequence < JOIN_WINDOW ? 0 : sequence;
+    }
+
+    /**
+     * Retransmits the requested datagrams which are still buffered
+     * @param sequences Requested sequences
+     */
+    private synchronized void repair(List<Long> sequences) {
+        long now = System.currentTimeMillis();
+        for (long sequence : sequences) {
+            if (sequence < 0 || sequence >= nextSequence || nextSequence - sequence > capacity) {
+                continue;
+            }
+            int slot = (int) (sequence % capacity);
+            if (now - repaired[slot] >= REPAIR_HOLDOFF) {
+                repaired[slot] = now;
+                transport.send(sent[slot]);
+            }
+        }
+    }
+
+    /**
+     * Sends a heartbeat with the highest sequence iff the sender was idle since the last heartbeat
+     */
+    private synchronized void heartbeat() {
+        if (closed) {
+            heartbeatScheduled = false;
+            return;
+        }
+        long delay = HEARTBEAT_DELAY << heartbeats;
+        long idle = System.currentTimeMillis() - lastSent;
+        if (idle < delay) {
+            timer.schedule(this::heartbeat, delay - idle, TimeUnit.MILLISECONDS);
+            return;
+        }
+        transport.send(control(HEARTBEAT, session, List.of(nextSequence - 1)));
+        if (++heartbeats < MAX_HEARTBEATS) {
+            timer.schedule(this::heartbeat, HEARTBEAT_DELAY << heartbeats, TimeUnit.MILLISECONDS);
+        } else {
+            heartbeatScheduled = false;
+        }
+    }
+
+    /**
+     * Removes every stream whose sender was idle for {@link MulticastRepair#STREAM_TIMEOUT}
+     */
+    private void sweep() {
+        long now = System.currentTimeMillis();
+        streams.values().removeIf(stream -> {
+            if (!stream.expire(now)) {
+                return false;
+            }
+            logger.info("Stream of " + stream.sender + " expired");
+            return true;
+        });
+    }
+
+    /**
+     * Builds a control datagram
+     * @param type Type of the datagram
+     * @param session Session of the stream
+     * @param sequences Sequences of the datagram
+     * @return Control datagram
+     */
+    private static byte[] control(byte type, long session, List<Long> sequences) {
+        ByteBuffer datagram = ByteBuffer.allocate(CONTROL_HEADER_SIZE + sequences.size() * Long.BYTES)
+                .put(CONTROL_MARKER).put(type).putLong(session);
+        for (long sequence : sequences) {
+            datagram.putLong(sequence);
+        }
+        return datagram.array();
+    }
+
+    /**
+     * Stops the heartbeats, the NAKs and the removal of idle streams, received datagrams are dropped afterwards
+     */
+    void close() {
+        closed = true;
+        sweeper.cancel(false);
+        streams.clear();
+    }
+}
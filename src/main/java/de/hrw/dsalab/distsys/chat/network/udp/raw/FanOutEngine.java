@@ -0,0 +1,282 @@
+package de.hrw.dsalab.distsys.chat.network.udp.raw;
+
+import de.hrw.dsalab.distsys.chat.enumerations.OverflowPolicy;
+import de.hrw.dsalab.distsys.chat.network.udp.DatagramAggregator;
+import de.hrw.dsalab.distsys.chat.utils.ClientTimestampContainer;
+import de.hrw.dsalab.distsys.chat.utils.Logger;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * This class relays the data received by the {@link UdpServerModule} to all connected clients.<br>
+ * The clients are partitioned by their address across a pool of sender threads, every thread owns its own
+ * {@link DatagramChannel} and only sends to its partition. Therefore the listener thread only hands the data over and
+ * the time to deliver to all clients drops with the amount of threads.<br>
+ * A client always belongs to the same thread, so its datagrams keep the order in which they were submitted.<br>
+ * If aggregation is enabled a thread drains all queued data and packs it into batches with the {@link DatagramAggregator}
+ * before it is sent to the clients without a {@link ReliableSession}.<br>
+ * Every datagram is handed to the {@link SendPacer}, which defers it without blocking the worker, so a throttled
+ * client does not delay the other clients of its partition
+ * @author Nils Milewski
+ * @version 1.3
+ * @since 3.2
+ */
+class FanOutEngine {
+    private static final Logger logger = Logger.getLogger(FanOutEngine.class);
+
+    /**
+     * Maximum amount of queued data which is packed at once
+     */
+    private static final int MAX_DRAIN = 64;
+
+    /**
+     * This class represents data which should be relayed
+     */
+    private static class Job {
+        private final byte[] data;
+        private final int sender;
+
+        Job(byte[] data, int sender) {
+            this.data = data;
+            this.sender = sender;
+        }
+    }
+
+    /**
+     * This class represents a sender thread with its partition of the clients
+     */
+    private class Worker implements Runnable {
+        /**
+         * Index of the partition
+         */
+        private final int index;
+
+        /**
+         * Channel which is used to send, it is only used by this worker
+         */
+        private final DatagramChannel channel;
+
+        /**
+         * Data which waits to be relayed
+         */
+        private final BlockingQueue<Job> queue;
+
+        /**
+         * Data which is relayed at once, it is reused for every iteration
+         */
+        private final List<Job> drained = new ArrayList<>();
+
+        Worker(int index, int capacity) throws IOException {
+            this.index = index;
+            this.channel = DatagramChannel.open();
+            this.queue = new ArrayBlockingQueue<>(Math.max(1, capacity));
+        }
+
+        /**
+         * Relays queued data until the engine is stopped
+         */
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    drained.add(queue.take());
+                    if (aggregationSize > 0) {
+                        queue.drainTo(drained, MAX_DRAIN - 1);
+                    }
+                    if (running) {
+                        relay(drained);
+                    }
+                    drained.clear();
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Sends the data to every client of the partition, clients with a {@link ReliableSession} receive it reliably.
+         * The data is packed once for all other clients
+         * @param jobs Data to relay in order
+         */
+        private void relay(List<Job> jobs) {
+            List<byte[]> datagrams = null;
+            for (ClientTimestampContainer client : clients) {
+                SocketAddress address = client.getAddress();
+                if (partition(address) != index) {
+                    continue;
+                }
+                ReliableSession session = sessions.get(address);
+                if (null != session) {
+                    // Reliable data is not packed, because every sender is its own stream
+                    // The session sends and retransmits its datagrams through the pacer
+                    for (Job job : jobs) {
+                        session.send(job.data, job.sender);
+                    }
+                    continue;
+                }
+                if (null == datagrams) {
+                    datagrams = new ArrayList<>(jobs.size());
+                    for (Job job : jobs) {
+                        datagrams.add(job.data);
+                    }
+                    if (aggregationSize > 0) {
+                        datagrams = DatagramAggregator.pack(datagrams, aggregationSize);
+                    }
+                }
+                for (byte[] datagram : datagrams) {
+                    pacer.send(address, datagram, this::transmit);
+                }
+            }
+        }
+
+        /**
+         * Sends a datagram over the channel of the worker
+         * @param datagram Datagram to send
+         * @param address Address of the client
+         * @throws IOException Thrown if the datagram cannot be sent
+         */
+        private void transmit(byte[] datagram, SocketAddress address) throws IOException {
+            channel.send(ByteBuffer.wrap(datagram), address);
+        }
+
+        /**
+         * Queues data, a full queue is handled according to the {@link OverflowPolicy}
+         * @param job Data to relay
+         */
+        private void offer(Job job) {
+            while (!queue.offer(job)) {
+                if (overflowPolicy != OverflowPolicy.DROP_OLDEST) {
+                    logger.warn("Fan-out queue " + index + " is full, dropped data");
+                    return;
+                }
+                queue.poll();
+            }
+        }
+
+        /**
+         * Closes the channel of the worker
+         */
+        private void close() {
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                logger.warn("Cannot close fan-out channel", ex);
+            }
+        }
+    }
+
+    /**
+     * Connected clients, the view is weakly consistent and shared with the {@link UdpServerModule}
+     */
+    private final Collection<? extends ClientTimestampContainer> clients;
+
+    /**
+     * Reliable sessions of the clients by their address
+     */
+    private final Map<SocketAddress, ReliableSession> sessions;
+
+    /**
+     * {@link SendPacer} of the sent datagrams
+     */
+    private final SendPacer pacer;
+
+    /**
+     * Behaviour of a full queue, {@link OverflowPolicy#DISCONNECT} behaves like {@link OverflowPolicy#DROP_NEWEST}
+     * because a queue is shared by many clients
+     */
+    private final OverflowPolicy overflowPolicy;
+
+    /**
+     * Sender threads, one per partition
+     */
+    private final Worker[] workers;
+
+    /**
+     * Maximum size of a packed datagram, 0 disables the aggregation
+     */
+    private final int aggregationSize;
+
+    /**
+     * States that the sender threads are active
+     */
+    private volatile boolean running = false;
+
+    /**
+     * Creates a new engine
+     * @param clients Connected clients
+     * @param sessions Reliable sessions of the clients by their address
+     * @param pacer {@link SendPacer} of the sent datagrams
+     * @param threads Amount of sender threads
+     * @param capacity Maximum amount of queued data per sender thread
+     * @param overflowPolicy Behaviour of a full queue
+     * @param aggregationSize Maximum size of a packed datagram, 0 disables the aggregation
+     * @throws IOException Thrown if a channel cannot be opened
+     */
+    FanOutEngine(Collection<? extends ClientTimestampContainer> clients, Map<SocketAddress, ReliableSession> sessions, SendPacer pacer,
+                 int threads, int capacity, OverflowPolicy overflowPolicy, int aggregationSize) throws IOException {
+        this.clients = clients;
+        this.aggregationSize = aggregationSize;
+        this.sessions = sessions;
+        this.pacer = pacer;
+        this.overflowPolicy = overflowPolicy;
+        this.workers = new Worker[Math.max(1, threads)];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Worker(i, capacity);
+        }
+    }
+
+    /**
+     * Starts the sender threads
+     */
+    void start() {
+        running = true;
+        for (Worker worker : workers) {
+            Thread thread = new Thread(worker, "UDP fan-out " + worker.index);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Stops the sender threads, queued data is dropped
+     */
+    void stop() {
+        running = false;
+        for (Worker worker : workers) {
+            worker.queue.clear();
+            worker.close();
+            // Wakes up a worker which waits for data
+            worker.queue.offer(new Job(new byte[0], UdpServerModule.UNKNOWN_SENDER));
+        }
+    }
+
+    /**
+     * Hands data over to every sender thread
+     * @param data Data to relay, it is shared by the threads and must not be modified afterwards
+     * @param sender Unique id of the sender, it is the stream of reliable sessions
+     */
+    void submit(byte[] data, int sender) {
+        Job job = new Job(data, sender);
+        for (Worker worker : workers) {
+            worker.offer(job);
+        }
+    }
+
+    /**
+     * Calculates the partition of a client
+     * @param address Address of the client
+     * @return Index of the responsible worker
+     */
+    private int partition(SocketAddress address) {
+        return Math.floorMod(address.hashCode(), workers.length);
+    }
+}
@@ -0,0 +1,573 @@
+package de.hrw.dsalab.distsys.chat.network.udp.raw;
+
+import de.hrw.dsalab.distsys.chat.enumerations.OverflowPolicy;
+import de.hrw.dsalab.distsys.chat.utils.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class represents a reliable session between two peers of the {@link UdpNetwork}.<br>
+ * Every datagram gets a sequence number and is kept until it is acknowledged. The receiver answers with the cumulative
+ * sequence and a bitmap of the following {@link ReliableSession#MAX_WINDOW} sequences, lost datagrams are retransmitted
+ * after an RTT based timeout or after {@link ReliableSession#FAST_RETRANSMIT_THRESHOLD} later datagrams were acknowledged.<br>
+ * A datagram is built as follows <code>{@link ReliableSession#DATA_MARKER marker} | epoch | sequence | base | previous | payload</code>,
+ * previous is the sequence of the last datagram of the same stream. Datagrams are only ordered within their stream,
+ * so a lost datagram of one sender does not block the datagrams of other senders.<br>
+ * The epoch identifies an incarnation of the sending peer, the base is its oldest unacknowledged sequence.
+ * Therefore a receiver which starts later or was restarted can join the session.<br>
+ * Payloads which do not fit into the window wait in a bounded queue without a sequence, a full queue is handled according
+ * to the {@link OverflowPolicy}.<br>
+ * Losses and acknowledgements are reported to the {@link Transport}, so it can adapt its send rate.<br>
+ * All methods are thread safe
+ * @author Nils Milewski
+ * @version 1.2
+ * @since 3.2
+ */
+class ReliableSession {
+    private static final Logger logger = Logger.getLogger(ReliableSession.class);
+
+    /**
+     * First byte of a data datagram
+     */
+    static final byte DATA_MARKER = 28;
+
+    /**
+     * First byte of an acknowledgement datagram
+     */
+    static final byte ACK_MARKER = 29;
+
+    /**
+     * Size of the header of a data datagram
+     */
+    static final int DATA_HEADER_SIZE = 17;
+
+    /**
+     * Size of an acknowledgement datagram
+     */
+    static final int ACK_SIZE = 17;
+
+    /**
+     * Maximum amount of unacknowledged datagrams, it is limited by the size of the acknowledgement bitmap
+     */
+    static final int MAX_WINDOW = 64;
+
+    /**
+     * Amount of later acknowledged datagrams which triggers a retransmission before the timeout
+     */
+    private static final int FAST_RETRANSMIT_THRESHOLD = 3;
+
+    /**
+     * Retransmissions of a single datagram until the session is reset
+     */
+    private static final int MAX_RETRANSMISSIONS = 10;
+
+    /**
+     * Retransmission timeout before the first RTT sample
+     */
+    private static final long INITIAL_RTO = TimeUnit.MILLISECONDS.toNanos(500);
+
+    /**
+     * Lower bound of the retransmission timeout
+     */
+    private static final long MIN_RTO = TimeUnit.MILLISECONDS.toNanos(50);
+
+    /**
+     * Upper bound of the retransmission timeout
+     */
+    private static final long MAX_RTO = TimeUnit.SECONDS.toNanos(10);
+
+    /**
+     * Scheduler which checks the retransmission timeouts, it is shared by all sessions
+     */
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "Reliable UDP timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * This interface represents the target of the datagrams of a session
+     */
+    interface Transport {
+        /**
+         * Sends a datagram to the remote peer
+         * @param datagram Datagram to send
+         * @throws IOException Thrown if the datagram cannot be sent
+         */
+        void send(byte[] datagram) throws IOException;
+
+        /**
+         * Is called when a datagram was lost, the target may slow down
+         */
+        default void congested() {}
+
+        /**
+         * Is called when a datagram was acknowledged the first time
+         */
+        default void acknowledged() {}
+    }
+
+    /**
+     * This class represents a datagram which is not acknowledged yet
+     */
+    private static class Outstanding {
+        private final int sequence;
+        private final byte[] datagram;
+        private long sentAt;
+        private int retransmissions = 0;
+        private boolean acknowledged = false;
+        private boolean fastRetransmitted = false;
+
+        Outstanding(int sequence, byte[] datagram) {
+            this.sequence = sequence;
+            this.datagram = datagram;
+        }
+    }
+
+    /**
+     * This class represents a payload which waits for space inside the window, it gets its sequence when it is transmitted
+     */
+    private static class Waiting {
+        private final byte[] payload;
+        private final int stream;
+
+        Waiting(byte[] payload, int stream) {
+            this.payload = payload;
+            this.stream = stream;
+        }
+    }
+
+    /**
+     * This class represents a received datagram which waits for the previous datagram of its stream
+     */
+    private static class Held {
+        private final int sequence;
+        private final byte[] payload;
+
+        Held(int sequence, byte[] payload) {
+            this.sequence = sequence;
+            this.payload = payload;
+        }
+    }
+
+    /**
+     * Target of the datagrams
+     */
+    private final Transport transport;
+
+    /**
+     * Maximum amount of unacknowledged datagrams
+     */
+    private final int window;
+
+    /**
+     * Maximum amount of waiting payloads
+     */
+    private final int capacity;
+
+    /**
+     * Behaviour of a full queue of waiting payloads
+     */
+    private final OverflowPolicy overflowPolicy;
+
+    /**
+     * Amount of payloads which were dropped since the queue was drained the last time
+     */
+    private long dropped = 0;
+
+    /**
+     * Epoch of the sending side
+     */
+    private int epoch = newEpoch();
+
+    /**
+     * Sequence of the next datagram
+     */
+    private int nextSequence = 1;
+
+    /**
+     * Sequence of the last datagram of every stream
+     */
+    private final Map<Integer, Integer> lastSequences = new HashMap<>();
+
+    /**
+     * Transmitted datagrams which are not acknowledged yet, ordered by their sequence
+     */
+    private final ArrayDeque<Outstanding> inFlight = new ArrayDeque<>();
+
+    /**
+     * Payloads which wait for space inside the window
+     */
+    private final ArrayDeque<Waiting> waiting = new ArrayDeque<>();
+
+    /**
+     * Smoothed round trip time in nanoseconds, 0 iff no sample was taken
+     */
+    private long smoothedRtt = 0;
+
+    /**
+     * Round trip time variation in nanoseconds
+     */
+    private long rttVariation = 0;
+
+    /**
+     * Current retransmission timeout in nanoseconds
+     */
+    private long rto = INITIAL_RTO;
+
+    /**
+     * Pending retransmission check
+     */
+    private ScheduledFuture<?> retransmission;
+
+    /**
+     * Epoch of the remote sending side, 0 iff nothing was received yet
+     */
+    private int remoteEpoch = 0;
+
+    /**
+     * Highest sequence up to which every datagram was received
+     */
+    private int cumulative = 0;
+
+    /**
+     * Received datagrams after the {@link ReliableSession#cumulative} sequence, bit 0 represents the sequence after it
+     */
+    private long received = 0;
+
+    /**
+     * Received datagrams which wait for the previous datagram of their stream, associated by the awaited sequence
+     */
+    private final Map<Integer, Held> heldByPrevious = new HashMap<>();
+
+    /**
+     * Sequences of all {@link ReliableSession#heldByPrevious held} datagrams
+     */
+    private final Set<Integer> held = new HashSet<>();
+
+    /**
+     * Constructs a new session
+     * @param transport Target of the datagrams
+     * @param window Maximum amount of unacknowledged datagrams, it is capped by {@link ReliableSession#MAX_WINDOW}
+     * @param capacity Maximum amount of payloads which wait for space inside the window
+     * @param overflowPolicy Behaviour of a full queue, {@link OverflowPolicy#DISCONNECT} resets the sending side
+     */
+    ReliableSession(Transport transport, int window, int capacity, OverflowPolicy overflowPolicy) {
+        this.transport = transport;
+        this.window = Math.max(1, Math.min(MAX_WINDOW, window));
+        this.capacity = Math.max(1, capacity);
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Checks if a datagram belongs to a reliable session, the buffer is not modified
+     * @param datagram Received datagram
+     * @return True iff the datagram is a data or an acknowledgement datagram
+     */
+    static boolean isReliable(ByteBuffer datagram) {
+        int length = datagram.remaining();
+        byte marker = length > 0 ? datagram.get(datagram.position()) : 0;
+        return (length >= DATA_HEADER_SIZE && marker == DATA_MARKER) || (length == ACK_SIZE && marker == ACK_MARKER);
+    }
+
+    /**
+     * Sends a payload reliably, it waits in a bounded queue iff the window is full
+     * @param payload Payload which should be sent
+     * @param stream Stream of the payload, payloads of the same stream are delivered in order
+     */
+    synchronized void send(byte[] payload, int stream) {
+        if (waiting.size() >= capacity) {
+            if (overflowPolicy == OverflowPolicy.DISCONNECT) {
+                reset("Send queue is full");
+            } else {
+                dropped++;
+                if (overflowPolicy == OverflowPolicy.DROP_NEWEST) {
+                    return;
+                }
+                waiting.pollFirst();
+            }
+        }
+        waiting.add(new Waiting(payload, stream));
+        pump();
+    }
+
+    /**
+     * Forgets a stream whose sender is gone, its next payload does not wait for a previous one
+     * @param stream Stream to forget
+     */
+    synchronized void closeStream(int stream) {
+        lastSequences.remove(stream);
+    }
+
+    /**
+     * Handles a received datagram of the remote peer
+     * @param buffer Buffer which contains the datagram, it is consumed and not referenced after the call
+     * @return Payloads which can be delivered, in order
+     */
+    synchronized List<byte[]> receive(ByteBuffer buffer) {
+        if (buffer.get() == ACK_MARKER) {
+            acknowledge(buffer.getInt(), buffer.getInt(), buffer.getLong());
+            return Collections.emptyList();
+        }
+        int remote = buffer.getInt();
+        int sequence = buffer.getInt();
+        int base = buffer.getInt();
+        int previous = buffer.getInt();
+        if (remote != remoteEpoch) {
+            // The remote peer was restarted or is seen the first time, the session starts at its oldest unacknowledged datagram
+            remoteEpoch = remote;
+            cumulative = base - 1;
+            received = 0;
+            heldByPrevious.clear();
+            held.clear();
+        }
+        List<byte[]> deliverable = Collections.emptyList();
+        int offset = sequence - cumulative;
+        if (offset > 0 && offset <= MAX_WINDOW && (received & (1L << (offset - 1))) == 0) {
+            received |= 1L << (offset - 1);
+            byte[] payload = new byte[buffer.remaining()];
+            buffer.get(payload);
+            deliverable = order(sequence, previous, payload);
+            while ((received & 1) != 0) {
+                received >>>= 1;
+                cumulative++;
+            }
+        }
+        // Duplicates are acknowledged as well, the previous acknowledgement could be lost
+        transmit(ByteBuffer.allocate(ACK_SIZE).put(ACK_MARKER).putInt(remote).putInt(cumulative).putLong(received).array());
+        return deliverable;
+    }
+
+    /**
+     * Orders a received payload within its stream
+     * @param sequence Sequence of the payload
+     * @param previous Sequence of the previous payload of the stream, 0 iff there is none
+     * @param payload Received payload
+     * @return Payloads which can be delivered, in order
+     */
+    private List<byte[]> order(int sequence, int previous, byte[] payload) {
+        if (previous != 0 && (!isReceived(previous) || held.contains(previous))) {
+            heldByPrevious.put(previous, new Held(sequence, payload));
+            held.add(sequence);
+            return Collections.emptyList();
+        }
+        List<byte[]> deliverable = new ArrayList<>();
+        deliverable.add(payload);
+        Held next;
+        while ((next = heldByPrevious.remove(sequence)) != null) {
+            held.remove(next.sequence);
+            deliverable.add(next.payload);
+            sequence = next.sequence;
+        }
+        return deliverable;
+    }
+
+    /**
+     * Checks if a sequence was received, sequences before the start of the session count as received
+     * @param sequence Sequence to check
+     * @return True iff the sequence was received
+     */
+    private boolean isReceived(int sequence) {
+        int offset = sequence - cumulative;
+        return offset <= 0 || (offset <= MAX_WINDOW && (received & (1L << (offset - 1))) != 0);
+    }
+
+    /**
+     * Handles an acknowledgement of the remote peer
+     * @param acknowledgedEpoch Epoch which is acknowledged
+     * @param acknowledged Highest sequence up to which every datagram was received
+     * @param bitmap Received datagrams after the acknowledged sequence
+     */
+    private void acknowledge(int acknowledgedEpoch, int acknowledged, long bitmap) {
+        if (acknowledgedEpoch != epoch) {
+            return;
+        }
+        long now = System.nanoTime();
+        while (!inFlight.isEmpty() && inFlight.peekFirst().sequence - acknowledged <= 0) {
+            markAcknowledged(inFlight.pollFirst(), now);
+        }
+        int later = 0;
+        // Iterates from the newest datagram, so every datagram knows how many later ones were acknowledged
+        for (var iterator = inFlight.descendingIterator(); iterator.hasNext(); ) {
+            Outstanding outstanding = iterator.next();
+            int offset = outstanding.sequence - acknowledged;
+            if (offset <= MAX_WINDOW && (bitmap & (1L << (offset - 1))) != 0) {
+                markAcknowledged(outstanding, now);
+                later++;
+            } else if (later >= FAST_RETRANSMIT_THRESHOLD && !outstanding.fastRetransmitted) {
+                outstanding.fastRetransmitted = true;
+                transport.congested();
+                retransmit(outstanding, now);
+            }
+        }
+        pump();
+    }
+
+    /**
+     * Marks a datagram as acknowledged, only the first acknowledgement is taken into account
+     * @param outstanding Acknowledged datagram
+     * @param now Current time in nanoseconds
+     */
+    private void markAcknowledged(Outstanding outstanding, long now) {
+        if (outstanding.acknowledged) {
+            return;
+        }
+        outstanding.acknowledged = true;
+        sample(outstanding, now);
+        transport.acknowledged();
+    }
+
+    /**
+     * Updates the round trip time with an acknowledged datagram, retransmitted datagrams are ignored
+     * @param outstanding Acknowledged datagram
+     * @param now Current time in nanoseconds
+     */
+    private void sample(Outstanding outstanding, long now) {
+        if (outstanding.retransmissions > 0) {
+            return;
+        }
+        long rtt = now - outstanding.sentAt;
+        if (smoothedRtt == 0) {
+            smoothedRtt = rtt;
+            rttVariation = rtt / 2;
+        } else {
+            rttVariation = (3 * rttVariation + Math.abs(smoothedRtt - rtt)) / 4;
+            smoothedRtt = (7 * smoothedRtt + rtt) / 8;
+        }
+        rto = Math.max(MIN_RTO, Math.min(MAX_RTO, smoothedRtt + 4 * rttVariation));
+    }
+
+    /**
+     * Transmits waiting payloads as long as the window has space, a payload gets its sequence when it is transmitted
+     */
+    private void pump() {
+        int base = inFlight.isEmpty() ? nextSequence : inFlight.peekFirst().sequence;
+        long now = System.nanoTime();
+        while (!waiting.isEmpty() && nextSequence - base < window) {
+            Waiting next = waiting.pollFirst();
+            int sequence = nextSequence++;
+            Integer previous = lastSequences.put(next.stream, sequence);
+            ByteBuffer datagram = ByteBuffer.allocate(DATA_HEADER_SIZE + next.payload.length);
+            datagram.put(DATA_MARKER).putInt(epoch).putInt(sequence).putInt(base).putInt(null == previous ? 0 : previous).put(next.payload);
+            Outstanding outstanding = new Outstanding(sequence, datagram.array());
+            inFlight.addLast(outstanding);
+            outstanding.sentAt = now;
+            transmit(outstanding.datagram);
+        }
+        if (waiting.isEmpty() && dropped > 0) {
+            logger.warn("Send queue was full, dropped " + dropped + " payloads");
+            dropped = 0;
+        }
+        schedule();
+    }
+
+    /**
+     * Retransmits a datagram
+     * @param outstanding Datagram to retransmit
+     * @param now Current time in nanoseconds
+     */
+    private void retransmit(Outstanding outstanding, long now) {
+        outstanding.retransmissions++;
+        outstanding.sentAt = now;
+        transmit(stamp(outstanding, inFlight.peekFirst().sequence));
+    }
+
+    /**
+     * Writes the current base into a datagram
+     * @param outstanding Datagram to send
+     * @param base Oldest unacknowledged sequence
+     * @return Datagram
+     */
+    private static byte[] stamp(Outstanding outstanding, int base) {
+        ByteBuffer.wrap(outstanding.datagram).putInt(9, base);
+        return outstanding.datagram;
+    }
+
+    /**
+     * Schedules the next retransmission check iff datagrams are in flight
+     */
+    private void schedule() {
+        if (inFlight.isEmpty() || (null != retransmission && !retransmission.isDone())) {
+            return;
+        }
+        retransmission = timer.schedule(this::checkTimeout, rto, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Retransmits the oldest unacknowledged datagram iff its timeout expired, the timeout is doubled afterwards.<br>
+     * If a datagram exceeds {@link ReliableSession#MAX_RETRANSMISSIONS} the sending side is reset
+     */
+    private synchronized void checkTimeout() {
+        retransmission = null;
+        long now = System.nanoTime();
+        for (Outstanding outstanding : inFlight) {
+            if (outstanding.acknowledged) {
+                continue;
+            }
+            if (now - outstanding.sentAt >= rto) {
+                if (outstanding.retransmissions >= MAX_RETRANSMISSIONS) {
+                    reset("Remote peer does not acknowledge");
+                    return;
+                }
+                transport.congested();
+                retransmit(outstanding, now);
+                rto = Math.min(MAX_RTO, rto * 2);
+            }
+            break;
+        }
+        schedule();
+    }
+
+    /**
+     * Drops all unacknowledged datagrams and starts a new epoch, the remote peer joins it with the next datagram
+     * @param reason Reason which is logged
+     */
+    private void reset(String reason) {
+        logger.warn(reason + ", dropped " + (inFlight.size() + waiting.size()) + " datagrams");
+        inFlight.clear();
+        waiting.clear();
+        lastSequences.clear();
+        epoch = newEpoch();
+        nextSequence = 1;
+        rto = INITIAL_RTO;
+        smoothedRtt = 0;
+    }
+
+    /**
+     * Sends a datagram and logs a failure, the datagram is handled like a lost one
+     * @param datagram Datagram to send
+     */
+    private void transmit(byte[] datagram) {
+        try {
+            transport.send(datagram);
+        } catch (IOException ex) {
+            logger.warn("Cannot send datagram: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Creates a random epoch which is never 0
+     * @return New epoch
+     */
+    private static int newEpoch() {
+        int value;
+        do {
+            value = ThreadLocalRandom.current().nextInt();
+        } while (value == 0);
+        return value;
+    }
+}
@@ -0,0 +1,387 @@
+package de.hrw.dsalab.distsys.chat.network.udp.raw;
+
+import de.hrw.dsalab.distsys.chat.enumerations.OverflowPolicy;
+import de.hrw.dsalab.distsys.chat.utils.Logger;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class paces the datagrams which are relayed by the {@link UdpServerModule}.<br>
+ * Every destination has its own token bucket and all destinations share a global bucket. A datagram is sent at once iff
+ * both buckets allow it, bursts up to the bucket size are sent without delay. Otherwise the datagram is deferred into the
+ * bounded queue of its destination and released by a timer when the buckets allow it, so the sender never waits and a
+ * throttled destination does not delay any other destination. Datagrams of a destination keep their order.<br>
+ * Destinations with a {@link ReliableSession} report their losses and acknowledgements. The rate of such a destination
+ * is halved on a loss and increases again with every acknowledgement until it reaches the configured rate.<br>
+ * All methods are thread safe
+ * @author Nils Milewski
+ * @version 1.1
+ * @since 3.2
+ */
+class SendPacer {
+    private static final Logger logger = Logger.getLogger(SendPacer.class);
+    /**
+     * Lowest rate of a destination as a fraction of the configured rate
+     */
+    private static final int MIN_RATE_DIVISOR = 16;
+
+    /**
+     * Amount of acknowledgements which restore the configured rate of a destination
+     */
+    private static final int RECOVERY_ACKNOWLEDGEMENTS = 32;
+
+    /**
+     * Minimum time between two rate reductions of a destination, so a burst of losses halves the rate only once
+     */
+    private static final long REDUCTION_INTERVAL = TimeUnit.MILLISECONDS.toNanos(50);
+
+    /**
+     * Scheduler which releases deferred datagrams, it is shared by all pacers
+     */
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "UDP pacer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * This interface represents the channel which sends a paced datagram
+     */
+    interface Output {
+        /**
+         * Sends a datagram
+         * @param datagram Datagram to send
+         * @param destination Address of the destination
+         * @throws IOException Thrown if the datagram cannot be sent
+         */
+        void send(byte[] datagram, SocketAddress destination) throws IOException;
+    }
+
+    /**
+     * This class represents a datagram which waits for its buckets
+     */
+    private static class Deferred {
+        private final byte[] datagram;
+        private final Output output;
+
+        Deferred(byte[] datagram, Output output) {
+            this.datagram = datagram;
+            this.output = output;
+        }
+    }
+
+    /**
+     * This class represents a destination with its bucket and its deferred datagrams, it is guarded by its own monitor
+     */
+    private static class Destination {
+        /**
+         * Bucket of the destination, it is null iff the pacing per destination is disabled
+         */
+        private final TokenBucket bucket;
+
+        /**
+         * Datagrams which wait for the buckets, in order
+         */
+        private final Queue<Deferred> deferred = new ArrayDeque<>();
+
+        /**
+         * States that a release of the deferred datagrams is scheduled
+         */
+        private boolean releaseScheduled = false;
+
+        /**
+         * Amount of datagrams which were dropped since the queue was drained the last time
+         */
+        private long dropped = 0;
+
+        Destination(TokenBucket bucket) {
+            this.bucket = bucket;
+        }
+    }
+
+    /**
+     * This class represents a token bucket, tokens are bytes which may be sent
+     */
+    private static class TokenBucket {
+        /**
+         * Current rate in bytes per second
+         */
+        private long rate;
+
+        /**
+         * Maximum amount of tokens
+         */
+        private final long capacity;
+
+        /**
+         * Available tokens, it is negative iff the bucket is in debt
+         */
+        private double tokens;
+
+        /**
+         * {@link System#nanoTime() Timestamp} of the last refill
+         */
+        private long refilled = System.nanoTime();
+
+        /**
+         * {@link System#nanoTime() Timestamp} of the last rate reduction
+         */
+        private long reduced = refilled - REDUCTION_INTERVAL;
+
+        TokenBucket(long rate, long capacity) {
+            this.rate = rate;
+            this.capacity = capacity;
+            this.tokens = capacity;
+        }
+
+        /**
+         * Calculates how long a datagram has to wait
+         * @return Time in nanoseconds until the debt of the bucket is paid, 0 iff a datagram may be sent
+         */
+        synchronized long delay() {
+            long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (now - refilled) * rate / 1e9);
+            refilled = now;
+            return tokens >= 0 ? 0 : (long) Math.ceil(-tokens * 1e9 / rate);
+        }
+
+        /**
+         * Takes tokens for a sent datagram, the bucket goes into debt if there are not enough tokens
+         * @param bytes Size of the datagram
+         */
+        synchronized void take(int bytes) {
+            tokens -= bytes;
+        }
+
+        /**
+         * Halves the rate, it never drops below the minimum rate
+         * @param minRate Minimum rate
+         */
+        synchronized void reduce(long minRate) {
+            long now = System.nanoTime();
+            if (now - reduced >= REDUCTION_INTERVAL) {
+                reduced = now;
+                rate = Math.max(minRate, rate / 2);
+            }
+        }
+
+        /**
+         * Increases the rate, it never exceeds the maximum rate
+         * @param step Increase of the rate
+         * @param maxRate Maximum rate
+         */
+        synchronized void increase(long step, long maxRate) {
+            rate = Math.min(maxRate, rate + step);
+        }
+    }
+
+    /**
+     * Configured rate of a destination in bytes per second, 0 disables the pacing per destination
+     */
+    private final long rate;
+
+    /**
+     * Size of a bucket in bytes
+     */
+    private final long burst;
+
+    /**
+     * Bucket which is shared by all destinations, it is null iff there is no global limit
+     */
+    private final TokenBucket global;
+
+    /**
+     * Maximum amount of deferred datagrams per destination
+     */
+    private final int capacity;
+
+    /**
+     * Behaviour of a full queue, {@link OverflowPolicy#DISCONNECT} behaves like {@link OverflowPolicy#DROP_NEWEST}
+     * because the pacer cannot disconnect a client
+     */
+    private final OverflowPolicy overflowPolicy;
+
+    /**
+     * Destinations by their address
+     */
+    private final ConcurrentMap<SocketAddress, Destination> destinations = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a new pacer
+     * @param rate Rate of a destination in bytes per second, 0 disables the pacing per destination
+     * @param globalRate Rate of all destinations in bytes per second, 0 disables the global limit
+     * @param burst Size of a bucket in bytes
+     * @param capacity Maximum amount of deferred datagrams per destination
+     * @param overflowPolicy Behaviour of a full queue
+     */
+    SendPacer(long rate, long globalRate, long burst, int capacity, OverflowPolicy overflowPolicy) {
+        this.rate = Math.max(0, rate);
+        this.burst = Math.max(1, burst);
+        this.global = globalRate > 0 ? new TokenBucket(globalRate, this.burst) : null;
+        this.capacity = Math.max(1, capacity);
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Sends a datagram as soon as the buckets allow it, the method never waits.<br>
+     * The datagram is sent by the calling thread iff no datagram of the destination is deferred and the buckets allow it,
+     * otherwise it is deferred and sent by the timer thread
+     * @param destination Address of the destination
+     * @param datagram Datagram to send, it is not modified afterwards
+     * @param output Channel which sends the datagram
+     */
+    void send(SocketAddress destination, byte[] datagram, Output output) {
+        if (rate == 0 && null == global) {
+            transmit(destination, datagram, output);
+            return;
+        }
+        Destination target = destination(destination);
+        synchronized (target) {
+            long delay = target.deferred.isEmpty() ? acquire(target, datagram.length) : 0;
+            if (target.deferred.isEmpty() && delay == 0) {
+                transmit(destination, datagram, output);
+                return;
+            }
+            if (target.deferred.size() >= capacity) {
+                target.dropped++;
+                if (overflowPolicy != OverflowPolicy.DROP_OLDEST) {
+                    return;
+                }
+                target.deferred.poll();
+            }
+            target.deferred.add(new Deferred(datagram, output));
+            if (!target.releaseScheduled) {
+                schedule(destination, target, delay);
+            }
+        }
+    }
+
+    /**
+     * Sends the deferred datagrams of a destination until its buckets are in debt again
+     * @param destination Address of the destination
+     * @param target Destination
+     */
+    private void release(SocketAddress destination, Destination target) {
+        synchronized (target) {
+            target.releaseScheduled = false;
+            Deferred next;
+            while (null != (next = target.deferred.peek())) {
+                long delay = acquire(target, next.datagram.length);
+                if (delay > 0) {
+                    schedule(destination, target, delay);
+                    return;
+                }
+                target.deferred.poll();
+                transmit(destination, next.datagram, next.output);
+            }
+            if (target.dropped > 0) {
+                logger.warn("Pacing queue of " + destination + " was full, dropped " + target.dropped + " datagrams");
+                target.dropped = 0;
+            }
+        }
+    }
+
+    /**
+     * Schedules the release of the deferred datagrams of a destination, the caller holds the monitor of the destination
+     * @param destination Address of the destination
+     * @param target Destination
+     * @param delay Time in nanoseconds until the buckets allow the next datagram
+     */
+    private void schedule(SocketAddress destination, Destination target, long delay) {
+        target.releaseScheduled = true;
+        timer.schedule(() -> release(destination, target), Math.max(1, delay), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Takes the tokens for a datagram iff both buckets allow it
+     * @param target Destination of the datagram
+     * @param bytes Size of the datagram
+     * @return Time in nanoseconds until the buckets allow the datagram, 0 iff the tokens were taken
+     */
+    private long acquire(Destination target, int bytes) {
+        long delay = Math.max(null == global ? 0 : global.delay(), null == target.bucket ? 0 : target.bucket.delay());
+        if (delay == 0) {
+            if (null != global) {
+                global.take(bytes);
+            }
+            if (null != target.bucket) {
+                target.bucket.take(bytes);
+            }
+        }
+        return delay;
+    }
+
+    /**
+     * Sends a datagram and logs a failure
+     * @param destination Address of the destination
+     * @param datagram Datagram to send
+     * @param output Channel which sends the datagram
+     */
+    private static void transmit(SocketAddress destination, byte[] datagram, Output output) {
+        try {
+            output.send(datagram, destination);
+        } catch (IOException ex) {
+            logger.warn("Cannot relay to " + destination + ": " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Reports a loss of a destination, its rate is halved
+     * @param destination Address of the destination
+     */
+    void congested(SocketAddress destination) {
+        if (rate > 0) {
+            destination(destination).bucket.reduce(Math.max(1, rate / MIN_RATE_DIVISOR));
+        }
+    }
+
+    /**
+     * Reports an acknowledgement of a destination, its rate increases
+     * @param destination Address of the destination
+     */
+    void acknowledged(SocketAddress destination) {
+        Destination target = destinations.get(destination);
+        if (null != target && null != target.bucket) {
+            target.bucket.increase(Math.max(1, rate / RECOVERY_ACKNOWLEDGEMENTS), rate);
+        }
+    }
+
+    /**
+     * Removes a disconnected destination, its deferred datagrams are dropped
+     * @param destination Address of the destination
+     */
+    void remove(SocketAddress destination) {
+        Destination removed = destinations.remove(destination);
+        if (null != removed) {
+            synchronized (removed) {
+                removed.deferred.clear();
+            }
+        }
+    }
+
+    /**
+     * Removes all destinations, their deferred datagrams are dropped
+     */
+    void clear() {
+        for (SocketAddress destination : destinations.keySet()) {
+            remove(destination);
+        }
+    }
+
+    /**
+     * Looks up a destination, it is created if necessary
+     * @param destination Address of the destination
+     * @return {@link Destination} of the address
+     */
+    private Destination destination(SocketAddress destination) {
+        return destinations.computeIfAbsent(destination, key -> new Destination(rate > 0 ? new TokenBucket(rate, burst) : null));
+    }
+}
@@ -2,20 +2,28 @@ package de.hrw.dsalab.distsys.chat.network.udp.raw;
 
 import de.hrw.dsalab.distsys.chat.data.Connection;
 import de.hrw.dsalab.distsys.chat.data.Message;
+import de.hrw.dsalab.distsys.chat.network.udp.DatagramAggregator;
+import de.hrw.dsalab.distsys.chat.network.udp.DatagramEndpoint;
+import de.hrw.dsalab.distsys.chat.network.udp.DatagramFragmenter;
+import de.hrw.dsalab.distsys.chat.network.udp.DatagramReassembler;
 import de.hrw.dsalab.distsys.chat.utils.GeneralUtils;
 import de.hrw.dsalab.distsys.chat.utils.Logger;
 import de.hrw.dsalab.distsys.chat.utils.exceptions.ClientException;
 
 import java.io.IOException;
 import java.net.*;
-import java.util.Arrays;
-
-import static de.hrw.dsalab.distsys.chat.network.udp.raw.UdpNetwork.BUFFER_SIZE;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 
 /**
- * This class is used by {@link UdpNetwork network} as a client module to handle traffic to a {@link UdpServerModule server} on a machine
+ * This class is used by {@link UdpNetwork network} as a client module to handle traffic to a {@link UdpServerModule server} on a machine.<br>
+ * Messages which exceed the configured datagram size are fragmented, received fragments are joined by a {@link DatagramReassembler}.<br>
+ * If reliable delivery is enabled all datagrams are exchanged through a {@link ReliableSession}.<br>
+ * Datagrams are received by a {@link DatagramEndpoint} and decoded straight out of its pooled buffers.<br>
+ * If aggregation is enabled small datagrams are packed into batches by a {@link DatagramAggregator}.<br>
+ * Relayed data is decoded by the decode lane of its original sender, which is read from the relay header of the {@link UdpServerModule}
  * @author Nils Milewski
- * @version 1.3
+ * @version 1.10
  * @since 2.5
  */
 class UdpClientModule {
@@ -27,9 +35,9 @@ class UdpClientModule {
     private final InetAddress serverAddress;
 
     /**
-     * Port where the {@link UdpServerModule} listens
+     * Socket address of the {@link UdpServerModule}
      */
-    private final int port;
+    private final InetSocketAddress server;
 
     /**
      * The underlying {@link UdpNetwork}
@@ -37,28 +45,50 @@ class UdpClientModule {
     private final UdpNetwork network;
 
     /**
-     * Used {@link DatagramSocket} to communicate with an {@link UdpServerModule}
+     * Used {@link DatagramEndpoint} to communicate with an {@link UdpServerModule}
+     */
+    private final DatagramEndpoint endpoint;
+
+    /**
+     * Maximum size of a sent datagram
+     */
+    private final int datagramSize;
+
+    /**
+     * {@link DatagramReassembler} for received fragments
+     */
+    private final DatagramReassembler reassembler;
+
+    /**
+     * {@link ReliableSession Session} with the {@link UdpServerModule}, it is null iff reliable delivery is disabled
      */
-    private final DatagramSocket socket;
+    private final ReliableSession session;
 
     /**
-     * Buffer for {@link DatagramPacket}
+     * {@link DatagramAggregator} of the sent datagrams, it is null iff aggregation is disabled
      */
-    private final byte[] buffer;
+    private final DatagramAggregator aggregator;
 
     /**
      * Construct a new client module based on {@link UdpNetwork} with a given {@link Connection}
      * @param network Underlying {@link UdpNetwork network}
      * @param connection Used {@link Connection connection}
-     * @throws SocketException Can be thrown if the socket cannot be created
-     * @throws UnknownHostException Is thrown if the configured address is unknown
+     * @throws IOException Can be thrown if the channel cannot be created or if the configured address is unknown
      */
-    UdpClientModule(UdpNetwork network, Connection connection) throws SocketException, UnknownHostException {
+    UdpClientModule(UdpNetwork network, Connection connection) throws IOException {
         this.network = network;
-        this.socket = new DatagramSocket();
-        this.buffer = new byte[BUFFER_SIZE];
         this.serverAddress = InetAddress.getByName(connection.getIp());
-        this.port = connection.getServerPort();
+        this.server = new InetSocketAddress(serverAddress, connection.getServerPort());
+        this.endpoint = new DatagramEndpoint(DatagramChannel.open().bind(null), connection.getReceiveBatch(), connection.getReceiveBufferSize());
+        this.datagramSize = connection.getDatagramSize();
+        this.reassembler = new DatagramReassembler(connection.getReassemblyTimeout(), connection.getReassemblyMemory());
+        this.session = connection.isReliableDelivery()
+                ? new ReliableSession(datagram -> endpoint.send(ByteBuffer.wrap(datagram), server), connection.getReliableWindow(),
+                        connection.getOutboundQueueCapacity(), connection.getOverflowPolicy())
+                : null;
+        this.aggregator = connection.getAggregationWindow() > 0
+                ? new DatagramAggregator(this::transmit, datagramSize, connection.getAggregationWindow())
+                : null;
     }
 
     /**
@@ -72,60 +102,127 @@ class UdpClientModule {
     }
 
     /**
-     * Stops the client module
+     * Stops the client module and its listener thread
      */
-    public void stop(){}
+    public void stop(){
+        endpoint.close();
+    }
 
     /**
-     * Sends a message to the remote {@link UdpServerModule server module}
+     * Sends a message to the remote {@link UdpServerModule server module}, the message is fragmented if necessary
      * @param message Message which should be sent
      * @throws ClientException Thrown if the network is not active or if the message cannot be delivered
      */
     public void send(Message message) throws ClientException {
         byte[] data = network.getDecoder().encode(message);
-        internalSend(data);
+        for (byte[] datagram : DatagramFragmenter.fragment(data, datagramSize)) {
+            internalSend(datagram, null != aggregator);
+        }
     }
 
     /**
      * Sends a byte array to the targeted {@link UdpServerModule}
      * @param data Data which should be sent
+     * @param aggregate States that the data may be packed with other datagrams,
+     *                  otherwise all buffered datagrams are sent before the data to keep the order
      * @throws ClientException Thrown if send failed or the network is not active
      */
-    private void internalSend(byte[] data) throws ClientException {
+    private void internalSend(byte[] data, boolean aggregate) throws ClientException {
         try {
-            if (network.isAlive().get()) {
-                socket.send(new DatagramPacket(data, data.length, serverAddress, port));
-            } else {
+            if (!network.isAlive().get()) {
                 throw new ClientException("Network is offline");
+            } else if (aggregate) {
+                aggregator.submit(data);
+            } else {
+                if (null != aggregator) {
+                    aggregator.flush();
+                }
+                transmit(data);
             }
         } catch (Exception ex) {
             throw new ClientException(ex);
         }
     }
 
+    /**
+     * Sends a datagram to the targeted {@link UdpServerModule}, a reliable datagram is retransmitted until it is acknowledged
+     * @param datagram Datagram which should be sent
+     * @throws IOException Thrown if the datagram cannot be sent
+     */
+    private void transmit(byte[] datagram) throws IOException {
+        if (null != session) {
+            session.send(datagram, 0);
+        } else {
+            endpoint.send(ByteBuffer.wrap(datagram), server);
+        }
+    }
+
     /**
      * Listener thread
      */
     public void run() {
         try {
-            while (network.isAlive().get()) {
-                DatagramPacket received = new DatagramPacket(buffer, buffer.length);
-                socket.receive(received);
-                byte[] data = Arrays.copyOf(received.getData(), received.getLength());
-                network.messageReceived(network.getDecoder().decode(data));
-            }
-        } catch (IOException ex) {
+            endpoint.listen(this::received);
+        } catch (Exception ex) {
             network.exceptionOccurred(ex);
             logger.critical(ex.getMessage(), ex);
         }
     }
 
+    /**
+     * Handles a received datagram, reliable datagrams are dropped iff reliable delivery is disabled
+     * @param sender Address of the sender
+     * @param datagram Pooled buffer which contains the datagram
+     */
+    private void received(SocketAddress sender, ByteBuffer datagram) {
+        if (!ReliableSession.isReliable(datagram)) {
+            deliver(sender, datagram);
+        } else if (null != session) {
+            for (byte[] payload : session.receive(datagram)) {
+                deliver(sender, ByteBuffer.wrap(payload));
+            }
+        }
+    }
+
+    /**
+     * Unpacks, strips the relay header, reassembles and decodes a payload
+     * @param sender Address of the sender
+     * @param payload Payload of a datagram
+     */
+    private void deliver(SocketAddress sender, ByteBuffer payload) {
+        for (ByteBuffer datagram : DatagramAggregator.unpack(payload)) {
+            if (!UdpServerModule.isRelayed(datagram)) {
+                decode(sender, sender.hashCode(), datagram);
+                continue;
+            }
+            datagram.get();
+            int source = datagram.getInt();
+            // A batch of the original sender is relayed as a whole
+            for (ByteBuffer relayed : DatagramAggregator.unpack(datagram)) {
+                decode(sender, source, relayed);
+            }
+        }
+    }
+
+    /**
+     * Reassembles a datagram and decodes the completed data
+     * @param sender Address of the sender
+     * @param source Id of the original sender, data of the same source is decoded in order
+     * @param datagram Unpacked datagram
+     */
+    private void decode(SocketAddress sender, int source, ByteBuffer datagram) {
+        ByteBuffer data = reassembler.accept(sender, datagram);
+        if (null != data) {
+            network.decodeReceived(source, data);
+        }
+    }
+
     /**
      * Sends a connect sequence to the {@link UdpServerModule}
      * @throws ClientException Thrown by {@link UdpClientModule#internalSend internalSend}
      */
     public void connect() throws ClientException {
-        internalSend(GeneralUtils.CONNECT_SEQUENCE);
+        internalSend(GeneralUtils.CONNECT_SEQUENCE, false);
         network.connectionEstablished(serverAddress.getCanonicalHostName());
     }
 
@@ -134,7 +231,7 @@ class UdpClientModule {
      * @throws ClientException Thrown by {@link UdpClientModule#internalSend internalSend}
      */
     public void disconnect() throws ClientException {
-        internalSend(GeneralUtils.DISCONNECT_SEQUENCE);
+        internalSend(GeneralUtils.DISCONNECT_SEQUENCE, false);
         network.connectionLost();
     }
 }
\ No newline at end of file
@@ -5,24 +5,26 @@ import de.hrw.dsalab.distsys.chat.data.Connection;
 import de.hrw.dsalab.distsys.chat.data.Message;
 import de.hrw.dsalab.distsys.chat.data.User;
 import de.hrw.dsalab.distsys.chat.network.AbstractNetwork;
+import de.hrw.dsalab.distsys.chat.network.udp.DatagramFragmenter;
 import de.hrw.dsalab.distsys.chat.utils.exceptions.ClientException;
 import de.hrw.dsalab.distsys.chat.utils.exceptions.NetworkInitializeException;
 
+import java.io.IOException;
 import java.net.*;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * This class implements an {@link AbstractNetwork} using {@link DatagramSocket UDP}
  * @author Nils Milewski
- * @version 1.3
+ * @version 1.5
  * @since 2.5
  */
 public class UdpNetwork extends AbstractNetwork {
 
     /**
-     * Default buffer size for {@link DatagramPacket}
+     * Default buffer size for {@link DatagramPacket}, it is large enough for any datagram so nothing is truncated
      */
-    public static final int BUFFER_SIZE = 1024;
+    public static final int BUFFER_SIZE = DatagramFragmenter.MAX_DATAGRAM_SIZE;
 
     /**
      * Describes the server module
@@ -82,7 +84,7 @@ public class UdpNetwork extends AbstractNetwork {
                 serverModule = new UdpServerModule(this, connection);
             }
             clientModule = new UdpClientModule(this, connection);
-        } catch (SocketException | UnknownHostException ex) {
+        } catch (IOException ex) {
             logger.critical("Cannot start server module", ex);
         }
     }
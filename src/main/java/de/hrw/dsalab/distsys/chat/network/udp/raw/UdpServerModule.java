@@ -2,145 +2,250 @@ package de.hrw.dsalab.distsys.chat.network.udp.raw;
 
 import de.hrw.dsalab.distsys.chat.data.Connection;
 import de.hrw.dsalab.distsys.chat.enumerations.CommandSequence;
+import de.hrw.dsalab.distsys.chat.enumerations.OverflowPolicy;
+import de.hrw.dsalab.distsys.chat.network.udp.DatagramEndpoint;
 import de.hrw.dsalab.distsys.chat.utils.ClientTimestampContainer;
 import de.hrw.dsalab.distsys.chat.utils.GeneralUtils;
+import de.hrw.dsalab.distsys.chat.utils.LivenessService;
 import de.hrw.dsalab.distsys.chat.utils.Logger;
 
 import java.io.IOException;
 import java.net.*;
-import java.util.Arrays;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.atomic.AtomicLong;
-
-import static de.hrw.dsalab.distsys.chat.network.udp.raw.UdpNetwork.BUFFER_SIZE;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This class is used by {@link UdpNetwork network} as a server module to handle incoming connection.<br>
+ * The connected clients are stored in a session table which is indexed by their {@link SocketAddress address},
+ * so a received datagram finds its client without iterating over all clients.<br>
+ * If reliable delivery is enabled every client which sends reliable datagrams gets a {@link ReliableSession}. An address
+ * which is not connected keeps its session only for {@link UdpServerModule#HANDSHAKE_TIMEOUT} until its connect arrives,
+ * and at most {@link UdpServerModule#MAX_HANDSHAKES} such sessions exist at once. Relayed data
+ * is ordered by its sender, so a lost datagram of one sender does not delay the data of other senders. Every connected client
+ * gets a unique sender id from a counter, senders which are not connected share the id {@link UdpServerModule#UNKNOWN_SENDER}.
+ * Relayed data is preceded by a relay header <code>{@link UdpServerModule#RELAY_MARKER marker} | sender id (4 bytes)</code>,
+ * so a {@link UdpClientModule} keeps the data of the original senders apart although all of it comes from the server.<br>
+ * Datagrams are received by a {@link DatagramEndpoint}, relayed data is handed over to a {@link FanOutEngine}
+ * so the listener thread is never blocked by the fan-out. The fan-out and all datagrams of the reliable sessions are paced
+ * by a {@link SendPacer}, reliable sessions report their losses to it.<br>
+ * Inactive clients are removed by the shared {@link LivenessService} as soon as they expire.<br>
  * This module is disabled if the configuration states that the server should be disabled
  * @author Nils Milewski
- * @version 1.3
+ * @version 1.12
  * @since 2.5
  */
 class UdpServerModule {
     private static final Logger logger = Logger.getLogger(UdpServerModule.class);
 
+    /**
+     * Sender id of data whose sender is not connected
+     */
+    static final int UNKNOWN_SENDER = 0;
+
+    /**
+     * First byte of the relay header, neither an encoded message, a command sequence nor another datagram header starts with it
+     */
+    static final byte RELAY_MARKER = 23;
+
+    /**
+     * Size of the relay header
+     */
+    static final int RELAY_HEADER_SIZE = 1 + Integer.BYTES;
+
+    /**
+     * Time in milliseconds an address which is not connected keeps its {@link ReliableSession}
+     */
+    private static final long HANDSHAKE_TIMEOUT = 10_000;
+
+    /**
+     * Maximum amount of {@link ReliableSession sessions} of addresses which are not connected
+     */
+    private static final int MAX_HANDSHAKES = 256;
+
+    /**
+     * This class represents a client of the session table with its sender id
+     */
+    private static class Peer extends ClientTimestampContainer {
+        /**
+         * Unique id of the client, it is the stream of its relayed data
+         */
+        private final int id;
+
+        Peer(SocketAddress address, int id) {
+            super(address);
+            this.id = id;
+        }
+    }
+
+    /**
+     * This class represents an address which opened a {@link ReliableSession} but is not connected yet.<br>
+     * It expires after {@link UdpServerModule#HANDSHAKE_TIMEOUT} regardless of its activity
+     */
+    private static class Handshake extends ClientTimestampContainer {
+        Handshake(SocketAddress address) {
+            super(address);
+        }
+
+        @Override
+        public long getExpiry() {
+            return getLastActivity() + HANDSHAKE_TIMEOUT;
+        }
+    }
+
     /**
      * This is the underlying {@link UdpNetwork network}, which is communicated with
      */
     private final UdpNetwork network;
 
     /**
-     * This is the {@link DatagramSocket socket} which is used to communicate over
+     * This is the {@link DatagramEndpoint endpoint} which is used to communicate over
      */
-    private final DatagramSocket socket;
+    private final DatagramEndpoint endpoint;
 
     /**
-     * This is the timer which cleans dead clients
+     * This {@link ConcurrentHashMap session table} is used to store all connected connections by their address.<br>
+     * Its iteration is weakly consistent, therefore a fan-out does not copy the table
      */
-    private final Timer disconnectedClientCleaner = new Timer();
+    private final ConcurrentMap<SocketAddress, Peer> clients = new ConcurrentHashMap<>();
 
     /**
-     * This is the interval when the next clean should occur
+     * Last assigned sender id
      */
-    private final AtomicLong cleanerInterval = new AtomicLong(5);
+    private final AtomicInteger lastSenderId = new AtomicInteger(UNKNOWN_SENDER);
 
     /**
-     * This {@link CopyOnWriteArrayList array list} is used to store all connected connections.
+     * This table stores the {@link ReliableSession reliable sessions} of the clients by their address
      */
-    private final CopyOnWriteArrayList<ClientTimestampContainer> clients = new CopyOnWriteArrayList<>();
+    private final ConcurrentMap<SocketAddress, ReliableSession> sessions = new ConcurrentHashMap<>();
 
     /**
-     * This {@link DatagramPacket packet} is used to store incoming packets
+     * Addresses which own a {@link ReliableSession} but are not connected, the set is only grown by the listener thread
      */
-    private final DatagramPacket receivedPacket;
+    private final Set<SocketAddress> handshakes = ConcurrentHashMap.newKeySet();
 
+    /**
+     * States if reliable datagrams are accepted
+     */
+    private final boolean reliableDelivery;
+
+    /**
+     * Maximum amount of unacknowledged datagrams per {@link ReliableSession}
+     */
+    private final int reliableWindow;
+
+    /**
+     * Maximum amount of payloads which wait inside a {@link ReliableSession}
+     */
+    private final int outboundQueueCapacity;
+
+    /**
+     * Behaviour of a full {@link ReliableSession} queue
+     */
+    private final OverflowPolicy overflowPolicy;
+
+    /**
+     * {@link FanOutEngine} which relays data to the clients
+     */
+    private final FanOutEngine fanOut;
+
+    /**
+     * {@link SendPacer} of the relayed datagrams
+     */
+    private final SendPacer pacer;
 
     /**
      * Initiates a new server module
      * @param network {@link UdpServerModule} which uses this module
      * @param connection {@link Connection connection configuration} provided by {@link UdpServerModule}
-     * @throws SocketException Is thrown iff the socket cannot be created
+     * @throws IOException Is thrown iff the channel cannot be created
      */
-    UdpServerModule(UdpNetwork network, Connection connection) throws SocketException {
+    UdpServerModule(UdpNetwork network, Connection connection) throws IOException {
         this.network = network;
-        byte[] buffer = new byte[BUFFER_SIZE];
-        this.socket = new DatagramSocket(connection.getServerPort());
-        this.receivedPacket = new DatagramPacket(buffer, buffer.length);
-        cleanerInterval.set(connection.getCleanerInterval());
+        DatagramChannel channel = DatagramChannel.open().bind(new InetSocketAddress(connection.getServerPort()));
+        this.endpoint = new DatagramEndpoint(channel, connection.getReceiveBatch(), connection.getReceiveBufferSize());
+        this.reliableDelivery = connection.isReliableDelivery();
+        this.reliableWindow = connection.getReliableWindow();
+        this.outboundQueueCapacity = connection.getOutboundQueueCapacity();
+        this.overflowPolicy = connection.getOverflowPolicy();
+        this.pacer = new SendPacer(connection.getPacingRate(), connection.getGlobalPacingRate(), connection.getPacingBurst(),
+                connection.getOutboundQueueCapacity(), connection.getOverflowPolicy());
+        this.fanOut = new FanOutEngine(clients.values(), sessions, pacer, connection.getFanOutThreads(),
+                connection.getOutboundQueueCapacity(), connection.getOverflowPolicy(),
+                connection.getAggregationWindow() > 0 ? connection.getDatagramSize() : 0);
     }
 
     /**
      * Starts the module, if an exception occurs or the server is active this method will abort<br>
      * The listener is initialized to run {@link UdpServerModule#listen listen} and started<br>
-     * The dead client cleaner is initialized with a 5 minute and started<br>
      */
     public void start(){
+        fanOut.start();
         Thread t = new Thread(this::listen, getClass().getSimpleName());
         t.setDaemon(true);
         t.start();
-        disconnectedClientCleaner.scheduleAtFixedRate(new TimerTask() {
-            @Override
-            public void run() {
-                Thread.currentThread().setName("Client Cleaner");
-                cleanDeadClients();
-            }
-        }, 5 * GeneralUtils.MINUTES, cleanerInterval.get());
         logger.info("Started module");
     }
 
     /**
-     * Stops the module and cleans and forced to run the dead client cleaner
+     * Stops the module
      */
     public void stop(){
-        socket.close();
-        disconnectedClientCleaner.purge();
+        endpoint.close();
+        fanOut.stop();
+        pacer.clear();
         logger.info("Stopped module");
     }
 
     /**
-     * Iterates over the {@link UdpServerModule#clients clients} to possible disconnect them.
+     * Removes an expired client, it is called by the {@link LivenessService}.<br>
+     * The client is only removed iff it was not replaced by a reconnect in the meantime
+     * @param client Expired client
      */
-    void cleanDeadClients() {
-        int cleaned = 0;
-        logger.info("Disconnect dead clients");
-        for (ClientTimestampContainer client : clients) {
-            if (client.isDead()) {
-                synchronized (clients) {
-                    clients.remove(client);
-                }
-                cleaned++;
-            }
+    private void expire(Peer client) {
+        if (clients.remove(client.getAddress(), client)) {
+            remove(client);
+            logger.info("Client " + client.getAddress() + " expired");
         }
-        logger.info("Disconnected " + cleaned + " clients");
     }
 
     /**
-     * Broadcast the received data to all {@link UdpServerModule#clients connected clients}
-     * @param data Data to be handled
+     * Removes the session, the pacing and the stream of a removed client
+     * @param client Removed client
      */
-    private void handleDataIn(byte[] data){
+    private void remove(Peer client) {
+        sessions.remove(client.getAddress());
+        pacer.remove(client.getAddress());
+        for (ReliableSession session : sessions.values()) {
+            session.closeStream(client.id);
+        }
+    }
+
+    /**
+     * Broadcast the received data to all {@link UdpServerModule#clients connected clients}.<br>
+     * The data is copied out of the pooled buffer behind the relay header and handed over to the {@link FanOutEngine}
+     * @param data Buffer which contains the data to be handled
+     * @param sender Id of the sender
+     */
+    private void handleDataIn(ByteBuffer data, int sender){
         if(!network.isAlive().get()){
             return;
         }
-        clients.forEach(client -> {
-            try{
-                DatagramPacket packet = new DatagramPacket(data, data.length, client.getAddress());
-                socket.send(packet);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        });
+        ByteBuffer relayed = ByteBuffer.allocate(RELAY_HEADER_SIZE + data.remaining());
+        relayed.put(RELAY_MARKER).putInt(sender).put(data);
+        fanOut.submit(relayed.array(), sender);
     }
 
     /**
      * Listen for incoming packets.<br>
      * <ul>
-     *     <li>1. Listen for incoming packets</li>
-     *     <li>2. Construct a new {@link ClientTimestampContainer} container</li>
-     *     <li>2.1 If {@link UdpServerModule#clients} contains the container update the activity</li>
-     *     <li>3. Copy incoming data into a new byte array</li>
+     *     <li>1. Listen for incoming packets, all pending packets are drained by the {@link DatagramEndpoint}</li>
+     *     <li>2. Look up the {@link ClientTimestampContainer} container of the sender</li>
+     *     <li>2.1 If {@link UdpServerModule#clients} contains the container update the activity, otherwise construct a new one</li>
+     *     <li>3. A reliable datagram is passed to the {@link ReliableSession} of the sender, other data is handled in place</li>
      *     <li>4. Validate the data</li>
      *     <li>5. Branch into handleData or handleCommand</li>
      *     <li>5.1 If data is two bytes and a contains the {@link GeneralUtils#CONTROL_CHARACTER} branch into {@link UdpServerModule#handleCommand}</li>
@@ -149,25 +254,112 @@ class UdpServerModule {
      */
     private void listen() {
         logger.info("Start listening");
-        while(network.isAlive().get()){
-            try {
-                socket.receive(receivedPacket);
-                SocketAddress address = new InetSocketAddress(receivedPacket.getAddress(), receivedPacket.getPort());
-                var  connection  = new ClientTimestampContainer(address);
-                if(clients.contains(connection)){
-                    clients.stream().filter(connection::equals).findFirst().orElse(new ClientTimestampContainer()).updateActivity();
-                }
-                byte[] data = Arrays.copyOf(receivedPacket.getData(), receivedPacket.getLength());
-                var commandValidation = network.checkCommand(data);
-                if(commandValidation == CommandSequence.REGULAR) {
-                    handleDataIn(data);
-                }else{
-                    handleCommand(commandValidation, data, connection);
+        try {
+            endpoint.listen(this::received);
+        } catch (Exception ex) {
+            logger.critical(ex.getMessage(), ex);
+            network.exceptionOccurred(ex);
+        }
+    }
+
+    /**
+     * Handles a received datagram, an invalid datagram does not stop the listener
+     * @param address Address of the sender
+     * @param datagram Pooled buffer which contains the datagram
+     */
+    private void received(SocketAddress address, ByteBuffer datagram) {
+        try {
+            Peer connection = clients.get(address);
+            if(null != connection){
+                connection.updateActivity();
+            }else{
+                connection = new Peer(address, UNKNOWN_SENDER);
+            }
+            if (!ReliableSession.isReliable(datagram)) {
+                handle(datagram, connection);
+            } else if (reliableDelivery) {
+                // Only a data datagram opens a session, a late acknowledgement of a removed session is dropped
+                ReliableSession session = datagram.get(datagram.position()) == ReliableSession.DATA_MARKER
+                        ? sessions.computeIfAbsent(address, this::openSession)
+                        : sessions.get(address);
+                if (null != session) {
+                    for (byte[] payload : session.receive(datagram)) {
+                        handle(ByteBuffer.wrap(payload), connection);
+                    }
                 }
-            }catch (Exception ex){
-                logger.critical(ex.getMessage(), ex);
-                network.exceptionOccurred(ex);
             }
+        } catch (Exception ex) {
+            logger.critical(ex.getMessage(), ex);
+            network.exceptionOccurred(ex);
+        }
+    }
+
+    /**
+     * Opens the {@link ReliableSession} of an address, the session of an address which is not connected is dropped
+     * unless a connect arrives within {@link UdpServerModule#HANDSHAKE_TIMEOUT}
+     * @param address Address of the sender
+     * @return New session or null iff too many addresses which are not connected own a session
+     */
+    private ReliableSession openSession(SocketAddress address) {
+        if (!clients.containsKey(address) && !handshakes.contains(address)) {
+            if (handshakes.size() >= MAX_HANDSHAKES) {
+                // The datagram is dropped silently, a flood of unknown senders would flood the log as well
+                return null;
+            }
+            handshakes.add(address);
+            LivenessService.getLivenessService().track(new Handshake(address), () -> abandon(address));
+        }
+        return createSession(address);
+    }
+
+    /**
+     * Drops the session of an address which did not connect in time, it is called by the {@link LivenessService}
+     * @param address Address of the sender
+     */
+    private void abandon(SocketAddress address) {
+        if (handshakes.remove(address) && !clients.containsKey(address)) {
+            sessions.remove(address);
+            pacer.remove(address);
+            logger.info("Dropped session of " + address + ", it did not connect in time");
+        }
+    }
+
+    /**
+     * Creates the {@link ReliableSession} of a client, its datagrams including the retransmissions are paced by the same
+     * {@link SendPacer} bucket as the fan-out. Its losses and acknowledgements adapt the {@link SendPacer pacing}
+     * @param address Address of the client
+     * @return New session
+     */
+    private ReliableSession createSession(SocketAddress address) {
+        return new ReliableSession(new ReliableSession.Transport() {
+            @Override
+            public void send(byte[] datagram) {
+                pacer.send(address, datagram, (paced, destination) -> endpoint.send(ByteBuffer.wrap(paced), destination));
+            }
+
+            @Override
+            public void congested() {
+                pacer.congested(address);
+            }
+
+            @Override
+            public void acknowledged() {
+                pacer.acknowledged(address);
+            }
+        }, reliableWindow, outboundQueueCapacity, overflowPolicy);
+    }
+
+    /**
+     * Branches into {@link UdpServerModule#handleDataIn} or {@link UdpServerModule#handleCommand}
+     * @param data Buffer which contains the data
+     * @param connection The {@link ClientTimestampContainer} of the sender
+     */
+    private void handle(ByteBuffer data, Peer connection) {
+        var commandValidation = network.checkCommand(data);
+        if(commandValidation == CommandSequence.REGULAR) {
+            handleDataIn(data, connection.id);
+        }else{
+            handleCommand(commandValidation, data, connection);
         }
     }
 
@@ -178,20 +370,46 @@ class UdpServerModule {
      * @param data Received data
      * @param client The {@link ClientTimestampContainer} contains information about the client
      */
-    private void handleCommand(CommandSequence commandValidation, byte[] data, ClientTimestampContainer client) {
+    private void handleCommand(CommandSequence commandValidation, ByteBuffer data, Peer client) {
         switch (commandValidation){
             case CONNECT:
                 logger.info("Client " + client.getAddress() + " connected");
-                synchronized (clients) {
-                    clients.add(client);
+                Peer connected = new Peer(client.getAddress(), nextSenderId());
+                if (null == clients.putIfAbsent(client.getAddress(), connected)) {
+                    // A disconnect does not cancel the registration, its expiry finds the client replaced or removed
+                    LivenessService.getLivenessService().track(connected, () -> expire(connected));
                 }
+                // The session of the client is no longer subject to the handshake timeout
+                handshakes.remove(client.getAddress());
                 break;
             case DISCONNECT:
                 logger.info("Client " + client.getAddress() + " disconnected");
-                synchronized (clients) {
-                    clients.remove(client);
+                Peer removed = clients.remove(client.getAddress());
+                if (null != removed) {
+                    remove(removed);
                 }
                 break;
         }
     }
+
+    /**
+     * Checks if the remaining bytes of a buffer are relayed data, the buffer is not modified
+     * @param datagram Received datagram
+     * @return True iff the datagram starts with a relay header
+     */
+    static boolean isRelayed(ByteBuffer datagram) {
+        return datagram.remaining() >= RELAY_HEADER_SIZE && datagram.get(datagram.position()) == RELAY_MARKER;
+    }
+
+    /**
+     * Assigns the id of a connected client, {@link UdpServerModule#UNKNOWN_SENDER} is skipped when the counter wraps around
+     * @return New sender id
+     */
+    private int nextSenderId() {
+        int id;
+        do {
+            id = lastSenderId.incrementAndGet();
+        } while (id == UNKNOWN_SENDER);
+        return id;
+    }
 }
\ No newline at end of file
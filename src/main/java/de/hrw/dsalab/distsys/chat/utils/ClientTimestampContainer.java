@@ -6,9 +6,9 @@ import java.util.Objects;
 
 /**
  * Represents a container for a client<br>
- * The client is associated with a timestamp
+ * The client is associated with a timestamp, the timestamp can be updated by one thread and read by others
  * @author Nils Milewski
- * @version 1.0
+ * @version 1.2
  * @since 2.3
  */
 public class ClientTimestampContainer {
@@ -22,7 +22,7 @@ public class ClientTimestampContainer {
     /**
      * Automatically created during constructing
      */
-    private long lastActivity;
+    private volatile long lastActivity;
 
     /**
      * Constructor for an empty container
@@ -61,7 +61,15 @@ public class ClientTimestampContainer {
      * @return true iff the {@link ClientTimestampContainer#INACTIVITY_TIME inactivity time} is exceeded
      */
     public boolean isDead(){
-        return (lastActivity  + INACTIVITY_TIME) < System.currentTimeMillis();
+        return getExpiry() < System.currentTimeMillis();
+    }
+
+    /**
+     * Calculates when the client is considered dead without further activity
+     * @return {@link System#currentTimeMillis() Unix timestamp} when the {@link ClientTimestampContainer#INACTIVITY_TIME inactivity time} is exceeded
+     */
+    public long getExpiry(){
+        return lastActivity + INACTIVITY_TIME;
     }
 
     /**
@@ -79,11 +87,12 @@ public class ClientTimestampContainer {
     }
 
     /**
-     * Calls {@link Objects#hash}
-     * @return {@link Objects#hash}
+     * Calls {@link Objects#hashCode} of the {@link SocketAddress}, the mutable activity is not part of the hash
+     * so the container can be used as key of a hash based collection
+     * @return {@link Objects#hashCode}
      */
     @Override
     public int hashCode() {
-        return Objects.hash(address, lastActivity);
+        return Objects.hashCode(address);
     }
 }
@@ -2,13 +2,14 @@ package de.hrw.dsalab.distsys.chat.utils;
 
 import de.hrw.dsalab.distsys.chat.enumerations.CommandSequence;
 
+import java.nio.ByteBuffer;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 
 /**
  * This is a static class which provides utility methods
  * @author Nils Milewski
- * @version 1.1
+ * @version 1.2
  * @since 0.1
  */
 public class GeneralUtils {
@@ -131,12 +132,22 @@ public class GeneralUtils {
      * @return True iff the array is a command
      */
     public static CommandSequence checkCommand(byte[] data) {
+        return checkCommand(ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Checks if the remaining bytes of a buffer are a command, the buffer is not modified.<br>
+     * A command is specified by 2 bytes, first one must be {@link GeneralUtils#CONTROL_CHARACTER CONTROL_CHARACTER}
+     * @param data buffer to validate
+     * @return True iff the buffer contains a command
+     */
+    public static CommandSequence checkCommand(ByteBuffer data) {
         CommandSequence result;
-        if (data.length < 2) {
+        if (data.remaining() < 2) {
             result = CommandSequence.UNKNOWN;
         } else {
-            if (data[0] == GeneralUtils.CONTROL_CHARACTER) {
-                switch (data[1]) {
+            if (data.get(data.position()) == GeneralUtils.CONTROL_CHARACTER) {
+                switch (data.get(data.position() + 1)) {
                     case GeneralUtils.CONNECT_CHARACTER:
                         result = CommandSequence.CONNECT;
                         break;
@@ -0,0 +1,188 @@
+package de.hrw.dsalab.distsys.chat.utils;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class expires inactive clients with a hashed timing wheel, it is shared by all server modules.<br>
+ * Every tracked {@link ClientTimestampContainer} sits in the slot of the tick in which it expires. An activity update
+ * only writes the timestamp of the container, when the slot is reached the container is moved into the slot of its new
+ * expiry in O(1). Therefore a client is visited at most once per inactivity time instead of once per scan, and it expires
+ * within about one tick after it is due.<br>
+ * The wheel is only touched by its own daemon thread, new registrations are handed over by a lock free queue
+ * @author Nils Milewski
+ * @version 1.0
+ * @since 3.2
+ */
+public class LivenessService {
+    private static final Logger logger = Logger.getLogger(LivenessService.class);
+
+    /**
+     * Length of a tick in milliseconds
+     */
+    private static final long TICK = 100;
+
+    /**
+     * Amount of slots, it must be a power of two
+     */
+    private static final int WHEEL_SIZE = 1024;
+
+    private static LivenessService livenessService;
+
+    /**
+     * This class represents a tracked client
+     */
+    public static final class Registration {
+        /**
+         * Container of the client
+         */
+        private final ClientTimestampContainer container;
+
+        /**
+         * Callback which is executed when the client expires
+         */
+        private final Runnable onExpiry;
+
+        /**
+         * States that the client is no longer tracked
+         */
+        private volatile boolean cancelled = false;
+
+        /**
+         * Amount of full rotations before the slot of the registration is due, it is only used by the wheel thread
+         */
+        private long rounds;
+
+        private Registration(ClientTimestampContainer container, Runnable onExpiry) {
+            this.container = container;
+            this.onExpiry = onExpiry;
+        }
+
+        /**
+         * Stops the tracking, the registration is dropped when its slot is reached
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+    }
+
+    /**
+     * Slots of the wheel, a slot contains every registration which is due in one of its ticks
+     */
+    private final Queue<Registration>[] wheel;
+
+    /**
+     * Registrations which are not yet inserted into the wheel
+     */
+    private final Queue<Registration> pending = new ConcurrentLinkedQueue<>();
+
+    /**
+     * {@link System#currentTimeMillis() Unix timestamp} of the first tick
+     */
+    private final long startTime;
+
+    /**
+     * Amount of processed ticks, it is only used by the wheel thread
+     */
+    private long tick = 0;
+
+    /**
+     * Creates a new service and starts its wheel thread
+     */
+    @SuppressWarnings("unchecked")
+    private LivenessService() {
+        wheel = new Queue[WHEEL_SIZE];
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            wheel[i] = new ArrayDeque<>();
+        }
+        startTime = System.currentTimeMillis();
+        Thread thread = new Thread(this::run, "Liveness wheel");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Access the shared service, it is created on the first call
+     * @return Shared {@link LivenessService}
+     */
+    public static synchronized LivenessService getLivenessService() {
+        if (null == livenessService) {
+            livenessService = new LivenessService();
+        }
+        return livenessService;
+    }
+
+    /**
+     * Tracks a client until it expires or the returned registration is cancelled
+     * @param container Container of the client, its activity updates defer the expiry
+     * @param onExpiry Callback which is executed once by the wheel thread when the client expires, it must not block
+     * @return {@link Registration} of the client
+     */
+    public Registration track(ClientTimestampContainer container, Runnable onExpiry) {
+        Registration registration = new Registration(container, onExpiry);
+        pending.add(registration);
+        return registration;
+    }
+
+    /**
+     * Advances the wheel tick by tick
+     */
+    private void run() {
+        while (true) {
+            long deadline = startTime + (tick + 1) * TICK;
+            long sleep;
+            while ((sleep = deadline - System.currentTimeMillis()) > 0) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(sleep));
+            }
+            long now = System.currentTimeMillis();
+            Registration registration;
+            while (null != (registration = pending.poll())) {
+                schedule(registration, now);
+            }
+            Queue<Registration> slot = wheel[(int) (tick & (WHEEL_SIZE - 1))];
+            // Registrations which are moved into the same slot are appended and not visited twice
+            for (int i = slot.size(); i > 0; i--) {
+                registration = slot.poll();
+                if (registration.cancelled) {
+                    continue;
+                }
+                if (registration.rounds > 0) {
+                    registration.rounds--;
+                    slot.add(registration);
+                } else if (registration.container.getExpiry() <= now) {
+                    expire(registration);
+                } else {
+                    schedule(registration, now);
+                }
+            }
+            tick++;
+        }
+    }
+
+    /**
+     * Inserts a registration into the slot of its expiry
+     * @param registration Registration to insert
+     * @param now Current {@link System#currentTimeMillis() Unix timestamp}
+     */
+    private void schedule(Registration registration, long now) {
+        long ticks = Math.max(1, (registration.container.getExpiry() - now + TICK - 1) / TICK);
+        registration.rounds = (ticks - 1) / WHEEL_SIZE;
+        wheel[(int) ((tick + ticks) & (WHEEL_SIZE - 1))].add(registration);
+    }
+
+    /**
+     * Executes the callback of an expired client, an exception does not stop the wheel
+     * @param registration Expired registration
+     */
+    private void expire(Registration registration) {
+        registration.cancelled = true;
+        try {
+            registration.onExpiry.run();
+        } catch (RuntimeException ex) {
+            logger.warn("Cannot expire client " + registration.container.getAddress(), ex);
+        }
+    }
+}
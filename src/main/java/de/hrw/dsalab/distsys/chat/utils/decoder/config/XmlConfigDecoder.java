@@ -24,11 +24,16 @@ import java.nio.charset.Charset;
  * Represents a concrete implementation of the {@link IConfigDecoder}
  *
  * @author Nils Milewski
- * @version 1.0
+ * @version 1.1
  * @since 1.0
  */
 public class XmlConfigDecoder implements IConfigDecoder {
     private static final Logger logger = Logger.getLogger(XmlConfigDecoder.class);
+
+    /**
+     * XML declaration and DOCTYPE of an exported configuration, the marshaller omits both for a fragment
+     */
+    private static final String HEADER = "<?xml version=\"1.0\" encoding=\"UTF-8\" ?>\n<!DOCTYPE configuration SYSTEM \"config.dtd\">\n";
     /**
      * {@inheritDoc}
      */
@@ -59,11 +64,11 @@ public class XmlConfigDecoder implements IConfigDecoder {
         try {
             JAXBContext jc = JAXBContext.newInstance(Configuration.class);
             Marshaller marshaller = jc.createMarshaller();
-            marshaller.setProperty("com.sun.xml.bind.xmlHeaders", "<?xml version=\"1.0\" encoding=\"UTF-8\" ?>\n<!DOCTYPE configuration SYSTEM \"config.dtd\">");
             marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
             marshaller.setProperty(Marshaller.JAXB_FRAGMENT, Boolean.TRUE);
 
             StringWriter writer = new StringWriter();
+            writer.write(HEADER);
             marshaller.marshal(configuration, writer);
             return writer.toString();
         } catch (Exception ex) {
@@ -4,11 +4,13 @@ import de.hrw.dsalab.distsys.chat.network.AbstractNetwork;
 import de.hrw.dsalab.distsys.chat.data.Message;
 import de.hrw.dsalab.distsys.chat.data.User;
 
+import java.nio.ByteBuffer;
+
 /**
  * Represents an abstract definition for a new message decoder
  *
  * @author Nils Milewski
- * @version 1.0
+ * @version 1.1
  * @since 1.0
  */
 public interface IMessageDecoder {
@@ -20,6 +22,18 @@ public interface IMessageDecoder {
      */
     Message decode(byte[] rawInput);
 
+    /**
+     * This method is used to decode the remaining bytes of a buffer into a {@link Message} object.<br>
+     * The buffer is consumed, by default its content is copied into an array and decoded by {@link IMessageDecoder#decode(byte[])}
+     * @param rawInput Received network data
+     * @return {@link Message}
+     */
+    default Message decode(ByteBuffer rawInput) {
+        byte[] data = new byte[rawInput.remaining()];
+        rawInput.get(data);
+        return decode(data);
+    }
+
     /**
      * Converts a {@link Message} object into a {@link Byte} array<br>
      * This array can be used to send using {@link AbstractNetwork#sendNetworkData(User, byte[])}
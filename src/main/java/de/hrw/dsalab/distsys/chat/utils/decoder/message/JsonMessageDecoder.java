@@ -3,13 +3,14 @@ package de.hrw.dsalab.distsys.chat.utils.decoder.message;
 import com.google.gson.Gson;
 import de.hrw.dsalab.distsys.chat.data.Message;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 
 /**
  * Represents a concrete implementation of the {@link IMessageDecoder}
  *
  * @author Nils Milewski
- * @version 1.0
+ * @version 1.1
  * @since 1.0
  */
 public class JsonMessageDecoder implements IMessageDecoder {
@@ -22,6 +23,17 @@ public class JsonMessageDecoder implements IMessageDecoder {
         return gson.fromJson(new String(rawInput), Message.class);
     }
 
+    /**
+     * Decodes the buffer without copying it into an intermediate array, the buffer is consumed
+     * @param rawInput Received network data
+     * @return {@link Message}
+     */
+    @Override
+    public Message decode(ByteBuffer rawInput) {
+        Gson gson = new Gson();
+        return gson.fromJson(StandardCharsets.UTF_8.decode(rawInput).toString(), Message.class);
+    }
+
     /**
      * {@inheritDoc}
      */
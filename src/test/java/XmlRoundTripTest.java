@@ -0,0 +1,62 @@
+import de.hrw.dsalab.distsys.chat.data.Configuration;
+import de.hrw.dsalab.distsys.chat.data.Connection;
+import de.hrw.dsalab.distsys.chat.enumerations.NetworkTypes;
+import de.hrw.dsalab.distsys.chat.utils.decoder.config.XmlConfigDecoder;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+/**
+ * Exports a configuration next to every shipped DTD, validates and imports it again
+ */
+public class XmlRoundTripTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    public void exportedConfigurationIsValid() throws Exception {
+        List<Path> dtds;
+        try (Stream<Path> files = Files.walk(Paths.get("./data"))) {
+            dtds = files.filter(file -> file.getFileName().toString().equals("config.dtd")).collect(Collectors.toList());
+        }
+        assertFalse(dtds.isEmpty());
+
+        XmlConfigDecoder decoder = new XmlConfigDecoder();
+        Configuration configuration = Configuration.getConfiguration();
+        Connection original = configuration.getConnection();
+        Connection connection = new Connection();
+        connection.setNetworkTypes(NetworkTypes.UDP);
+        connection.setServer(true);
+        connection.setIp("10.0.0.1");
+        connection.setServerPort(4711);
+        connection.setDecodeLanes(3);
+        connection.setRmiBatchWindow(7);
+        connection.setRmiBatchSize(11);
+        connection.setRoomMapping("lobby=239.1.1.1:5000");
+        configuration.setConnection(connection);
+        try {
+            for (Path dtd : dtds) {
+                Path target = Files.createDirectories(directory.resolve(dtd.getParent().toString().replaceAll("[^A-Za-z0-9]", "_")));
+                Files.copy(dtd, target.resolve("config.dtd"));
+                File file = target.resolve("config.xml").toFile();
+
+                decoder.exportConfiguration(configuration, file);
+                Configuration imported = decoder.importConfiguration(file);
+
+                assertEquals(connection, imported.getConnection(), dtd.toString());
+            }
+        } finally {
+            configuration.setConnection(original);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package de.hrw.dsalab.distsys.chat.network.rmi;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Queues messages into a {@link MessageBatcher} and records the delivered batches
+ */
+public class MessageBatcherTest {
+    /**
+     * Sizes of the delivered batches
+     */
+    private final List<Integer> batches = Collections.synchronizedList(new ArrayList<>());
+
+    /**
+     * First byte of every delivered message
+     */
+    private final List<Byte> delivered = Collections.synchronizedList(new ArrayList<>());
+
+    private boolean record(List<byte[]> batch) {
+        batches.add(batch.size());
+        for (byte[] message : batch) {
+            delivered.add(message[0]);
+        }
+        return true;
+    }
+
+    private static byte[] message(int index) {
+        return new byte[]{(byte) index};
+    }
+
+    @Test
+    public void coalescesMessagesOfAWindow() throws Exception {
+        MessageBatcher batcher = new MessageBatcher("test", 100, 50, 64, this::record);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(batcher.offer(message(i)));
+        }
+        assertTrue(batcher.close(2000));
+        assertEquals(List.of(10), batches);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i, delivered.get(i).intValue());
+        }
+    }
+
+    @Test
+    public void limitsTheBatchSize() throws Exception {
+        MessageBatcher batcher = new MessageBatcher("test", 100, 50, 4, this::record);
+        for (int i = 0; i < 10; i++) {
+            batcher.offer(message(i));
+        }
+        assertTrue(batcher.close(2000));
+        assertEquals(10, delivered.size());
+        for (int size : batches) {
+            assertTrue(size <= 4);
+        }
+    }
+
+    @Test
+    public void rejectsMessagesOfAFullQueue() throws Exception {
+        CountDownLatch blocked = new CountDownLatch(1);
+        MessageBatcher batcher = new MessageBatcher("test", 2, 0, 1, batch -> {
+            try {
+                blocked.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            return record(batch);
+        });
+        batcher.offer(message(0));
+        Thread.sleep(100);
+        assertTrue(batcher.offer(message(1)));
+        assertTrue(batcher.offer(message(2)));
+        assertFalse(batcher.offer(message(3)));
+        batcher.dropOldest();
+        assertTrue(batcher.offer(message(3)));
+        blocked.countDown();
+        assertTrue(batcher.close(2000));
+        assertEquals(List.of((byte) 0, (byte) 2, (byte) 3), delivered);
+    }
+
+    @Test
+    public void stoppedSinkEndsTheDelivery() throws Exception {
+        MessageBatcher batcher = new MessageBatcher("test", 100, 20, 1, batch -> {
+            record(batch);
+            return false;
+        });
+        for (int i = 0; i < 5; i++) {
+            batcher.offer(message(i));
+        }
+        assertTrue(batcher.close(2000));
+        assertEquals(1, delivered.size());
+    }
+
+    @Test
+    public void closeWaitsForQueuedMessages() throws Exception {
+        MessageBatcher batcher = new MessageBatcher("test", 1000, 10, 8, batch -> {
+            try {
+                TimeUnit.MILLISECONDS.sleep(5);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            return record(batch);
+        });
+        for (int i = 0; i < 200; i++) {
+            batcher.offer(message(i));
+        }
+        assertTrue(batcher.close(5000));
+        assertEquals(200, delivered.size());
+    }
+
+    @Test
+    public void closeOfAnIdleBatcherReturnsImmediately() throws Exception {
+        assertTrue(new MessageBatcher("test", 10, 10, 8, this::record).close(100));
+    }
+}
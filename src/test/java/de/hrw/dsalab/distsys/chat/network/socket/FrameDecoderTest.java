@@ -0,0 +1,118 @@
+package de.hrw.dsalab.distsys.chat.network.socket;
+
+import de.hrw.dsalab.distsys.chat.enumerations.FrameType;
+import de.hrw.dsalab.distsys.chat.utils.exceptions.NetworkException;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Decodes frames of the {@link FrameEncoder} with the {@link FrameDecoder}
+ */
+public class FrameDecoderTest {
+    /**
+     * Collects the decoded frames
+     */
+    private final List<FrameType> types = new ArrayList<>();
+    private final List<byte[]> payloads = new ArrayList<>();
+
+    private void collect(FrameType type, ByteBuffer payload, ByteBuffer frame) {
+        byte[] copy = new byte[payload.remaining()];
+        payload.get(copy);
+        types.add(type);
+        payloads.add(copy);
+    }
+
+    private static byte[] payload(int size) {
+        byte[] payload = new byte[size];
+        for (int i = 0; i < size; i++) {
+            payload[i] = (byte) i;
+        }
+        return payload;
+    }
+
+    @Test
+    public void decodesSeveralFramesOfOneRead() throws Exception {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.write(FrameEncoder.encode(FrameType.CONNECT));
+        stream.write(FrameEncoder.encode(FrameType.MESSAGE, payload(300)));
+        stream.write(FrameEncoder.encode(FrameType.DISCONNECT));
+
+        new FrameDecoder(16).decode(stream.toByteArray(), this::collect);
+
+        assertEquals(List.of(FrameType.CONNECT, FrameType.MESSAGE, FrameType.DISCONNECT), types);
+        assertEquals(0, payloads.get(0).length);
+        assertArrayEquals(payload(300), payloads.get(1));
+    }
+
+    @Test
+    public void waitsForTheRemainingBytesOfAFrame() throws Exception {
+        byte[] frame = FrameEncoder.encode(FrameType.MESSAGE, payload(200));
+        FrameDecoder decoder = new FrameDecoder(8);
+        for (byte b : frame) {
+            decoder.decode(new byte[]{b}, this::collect);
+        }
+        assertEquals(1, types.size());
+        assertArrayEquals(payload(200), payloads.get(0));
+    }
+
+    @Test
+    public void rejectsUnknownOpcode() {
+        FrameDecoder decoder = new FrameDecoder(16);
+        assertThrows(NetworkException.class, () -> decoder.decode(new byte[]{1, 99}, this::collect));
+    }
+
+    @Test
+    public void rejectsOversizedFrame() {
+        ByteBuffer header = ByteBuffer.allocate(FrameEncoder.MAX_VARINT_SIZE);
+        FrameEncoder.writeVarint(header, FrameEncoder.MAX_FRAME_SIZE + 1);
+        FrameDecoder decoder = new FrameDecoder(16);
+        assertThrows(NetworkException.class, () -> decoder.decode(header.array(), this::collect));
+    }
+
+    @Test
+    public void varintRoundTrip() throws Exception {
+        for (int value : new int[]{0, 1, 127, 128, 16383, 16384, FrameEncoder.MAX_FRAME_SIZE, Integer.MAX_VALUE}) {
+            ByteBuffer buffer = ByteBuffer.allocate(FrameEncoder.MAX_VARINT_SIZE);
+            FrameEncoder.writeVarint(buffer, value);
+            assertEquals(FrameEncoder.varintSize(value), buffer.position());
+            buffer.flip();
+            assertEquals(value, FrameDecoder.readVarint(buffer));
+            assertFalse(buffer.hasRemaining());
+        }
+    }
+
+    @Test
+    public void incompleteVarintIsNotConsumedAsValue() throws Exception {
+        assertEquals(-1, FrameDecoder.readVarint(ByteBuffer.wrap(new byte[]{(byte) 0x80})));
+        assertThrows(NetworkException.class, () -> FrameDecoder.readVarint(ByteBuffer.wrap(new byte[]{-1, -1, -1, -1, -1})));
+    }
+
+    @Test
+    public void sharedFrameEqualsEncodedFrame() {
+        byte[] data = FrameEncoder.messagePayload(UUID.randomUUID(), payload(50));
+        ByteBuffer shared = FrameEncoder.encodeShared(FrameType.MESSAGE, data);
+        byte[] copy = new byte[shared.remaining()];
+        shared.duplicate().get(copy);
+        assertArrayEquals(FrameEncoder.encode(FrameType.MESSAGE, data), copy);
+        assertTrue(shared.isReadOnly());
+    }
+
+    @Test
+    public void messagePayloadKeepsTheSender() {
+        UUID sender = UUID.randomUUID();
+        assertEquals(sender, FrameEncoder.readSender(ByteBuffer.wrap(FrameEncoder.messagePayload(sender, payload(3)))));
+        assertEquals(new UUID(0, 0), FrameEncoder.readSender(ByteBuffer.wrap(FrameEncoder.messagePayload(null, payload(3)))));
+    }
+
+    @Test
+    public void rejectsOversizedPayload() {
+        assertThrows(IllegalArgumentException.class, () -> FrameEncoder.encode(FrameType.MESSAGE, new byte[FrameEncoder.MAX_FRAME_SIZE]));
+    }
+}
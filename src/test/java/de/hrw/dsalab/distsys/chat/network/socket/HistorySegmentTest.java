@@ -0,0 +1,182 @@
+package de.hrw.dsalab.distsys.chat.network.socket;
+
+import de.hrw.dsalab.distsys.chat.enumerations.FrameType;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Appends, recovers and compacts a {@link HistorySegment} inside a temporary directory
+ */
+public class HistorySegmentTest {
+    @TempDir
+    Path directory;
+
+    private static ByteBuffer frame(int index, int size) {
+        byte[] payload = new byte[size];
+        payload[0] = (byte) index;
+        return ByteBuffer.wrap(FrameEncoder.encode(FrameType.MESSAGE, payload));
+    }
+
+    /**
+     * Reads the region of a snapshot and closes its channel
+     */
+    private static byte[] read(HistorySegment.Snapshot snapshot) throws Exception {
+        if (null == snapshot.channel) {
+            return new byte[0];
+        }
+        try (FileChannel channel = snapshot.channel) {
+            ByteBuffer buffer = ByteBuffer.allocate((int) (snapshot.end - snapshot.position));
+            while (buffer.hasRemaining()) {
+                channel.read(buffer, snapshot.position + buffer.position());
+            }
+            return buffer.array();
+        }
+    }
+
+    /**
+     * Waits until the background compaction of a segment is finished
+     */
+    private static void awaitCompaction(HistorySegment segment) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (segment.isCompacting()) {
+            assertTrue(System.currentTimeMillis() < deadline, "Compaction did not finish");
+            Thread.sleep(10);
+        }
+    }
+
+    private static byte[] concat(ByteBuffer... frames) {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (ByteBuffer frame : frames) {
+            stream.write(frame.array(), 0, frame.remaining());
+        }
+        return stream.toByteArray();
+    }
+
+    @Test
+    public void recoversFramesAfterRestart() throws Exception {
+        String file = directory.resolve("history.seg").toString();
+        HistorySegment segment = new HistorySegment(file, 10, 0);
+        ByteBuffer first = frame(1, 10), second = frame(2, 20);
+        segment.append(first);
+        assertEquals(2, segment.append(second));
+        segment.close();
+
+        HistorySegment recovered = new HistorySegment(file, 10, 0);
+        HistorySegment.Snapshot snapshot = recovered.snapshot();
+        assertEquals(2, snapshot.sequence);
+        assertArrayEquals(concat(first, second), read(snapshot));
+        recovered.close();
+    }
+
+    @Test
+    public void discardsTornFrameOnRecovery() throws Exception {
+        String file = directory.resolve("history.seg").toString();
+        HistorySegment segment = new HistorySegment(file, 10, 0);
+        ByteBuffer first = frame(1, 10);
+        segment.append(first);
+        segment.close();
+
+        // Simulates a crash after the index entry was written but before the frame was complete
+        Path data = directory.resolve("history.seg");
+        Path index = directory.resolve("history.seg.idx");
+        long size = Files.size(data);
+        byte[] torn = frame(2, 100).array();
+        Files.write(data, Arrays.copyOf(torn, 20), StandardOpenOption.APPEND);
+        Files.write(index, ByteBuffer.allocate(16).putLong(size).putLong(System.currentTimeMillis()).array(), StandardOpenOption.APPEND);
+
+        HistorySegment recovered = new HistorySegment(file, 10, 0);
+        HistorySegment.Snapshot snapshot = recovered.snapshot();
+        assertEquals(1, snapshot.sequence);
+        assertArrayEquals(concat(first), read(snapshot));
+        assertEquals(size, Files.size(data));
+        assertEquals(16, Files.size(index));
+        recovered.close();
+    }
+
+    @Test
+    public void retainsOnlyTheNewestFrames() throws Exception {
+        HistorySegment segment = new HistorySegment(directory.resolve("history.seg").toString(), 2, 0);
+        ByteBuffer second = frame(2, 10), third = frame(3, 10);
+        segment.append(frame(1, 10));
+        segment.append(second);
+        segment.append(third);
+        assertArrayEquals(concat(second, third), read(segment.snapshot()));
+        segment.close();
+    }
+
+    @Test
+    public void compactsTheDeadStartOfTheSegment() throws Exception {
+        Path data = directory.resolve("history.seg");
+        HistorySegment segment = new HistorySegment(data.toString(), 1, 0);
+        int size = FrameEncoder.MAX_FRAME_SIZE - 1;
+        ByteBuffer last = null;
+        // The fifth frame starts behind the compaction threshold, only this frame is retained
+        for (int i = 0; i < 5; i++) {
+            last = frame(i, size);
+            segment.append(last);
+        }
+        awaitCompaction(segment);
+        assertEquals(last.remaining(), Files.size(data));
+        HistorySegment.Snapshot snapshot = segment.snapshot();
+        assertEquals(5, snapshot.sequence);
+        assertArrayEquals(concat(last), read(snapshot));
+        segment.close();
+
+        HistorySegment recovered = new HistorySegment(data.toString(), 1, 0);
+        assertArrayEquals(concat(last), read(recovered.snapshot()));
+        recovered.close();
+    }
+
+    @Test
+    public void keepsFramesAppendedDuringCompaction() throws Exception {
+        Path data = directory.resolve("history.seg");
+        HistorySegment segment = new HistorySegment(data.toString(), 2, 0);
+        int size = FrameEncoder.MAX_FRAME_SIZE - 1;
+        // The sixth frame starts behind the compaction threshold, the following frames are appended while it is copied
+        for (int i = 0; i < 6; i++) {
+            segment.append(frame(i, size));
+        }
+        ByteBuffer first = frame(10, 10), second = frame(11, 10);
+        segment.append(first);
+        segment.append(second);
+        awaitCompaction(segment);
+        assertArrayEquals(concat(first, second), read(segment.snapshot()));
+        segment.close();
+
+        HistorySegment recovered = new HistorySegment(data.toString(), 2, 0);
+        assertArrayEquals(concat(first, second), read(recovered.snapshot()));
+        recovered.close();
+    }
+
+    @Test
+    public void ageLimitedSegmentRetainsAnyAmount() throws Exception {
+        HistorySegment segment = new HistorySegment(directory.resolve("history.seg").toString(), 0, 60_000);
+        ByteBuffer[] frames = new ByteBuffer[50];
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] = frame(i, 10);
+            segment.append(frames[i]);
+        }
+        assertArrayEquals(concat(frames), read(segment.snapshot()));
+        segment.close();
+    }
+
+    @Test
+    public void closedSegmentRetainsNothing() throws Exception {
+        HistorySegment segment = new HistorySegment(directory.resolve("history.seg").toString(), 10, 0);
+        segment.close();
+        assertEquals(1, segment.append(frame(1, 10)));
+        HistorySegment.Snapshot snapshot = segment.snapshot();
+        assertNull(snapshot.channel);
+        assertEquals(1, snapshot.sequence);
+    }
+}
@@ -0,0 +1,135 @@
+package de.hrw.dsalab.distsys.chat.network.udp;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Packs datagrams with a {@link DatagramAggregator} and unpacks the sent batches again
+ */
+public class DatagramAggregatorTest {
+    /**
+     * Datagrams which were handed to the sink
+     */
+    private final List<byte[]> sent = Collections.synchronizedList(new ArrayList<>());
+
+    private static byte[] datagram(int index, int size) {
+        byte[] datagram = new byte[size];
+        datagram[0] = (byte) ('a' + index);
+        return datagram;
+    }
+
+    /**
+     * Unpacks all sent datagrams
+     */
+    private List<byte[]> unpacked() {
+        List<byte[]> unpacked = new ArrayList<>();
+        synchronized (sent) {
+            for (byte[] datagram : sent) {
+                for (ByteBuffer entry : DatagramAggregator.unpack(ByteBuffer.wrap(datagram))) {
+                    byte[] bytes = new byte[entry.remaining()];
+                    entry.get(bytes);
+                    unpacked.add(bytes);
+                }
+            }
+        }
+        return unpacked;
+    }
+
+    @Test
+    public void sendsFirstDatagramOfAnIdleSenderImmediately() throws Exception {
+        DatagramAggregator aggregator = new DatagramAggregator(sent::add, 1400, 50);
+        byte[] datagram = datagram(0, 10);
+        aggregator.submit(datagram);
+        assertEquals(1, sent.size());
+        assertSame(datagram, sent.get(0));
+    }
+
+    @Test
+    public void packsDatagramsOfAWindow() throws Exception {
+        DatagramAggregator aggregator = new DatagramAggregator(sent::add, 1400, 50);
+        List<byte[]> submitted = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            submitted.add(datagram(i, 10));
+            aggregator.submit(submitted.get(i));
+        }
+        assertEquals(1, sent.size());
+        Thread.sleep(200);
+        assertEquals(2, sent.size());
+        assertEquals(DatagramAggregator.BATCH_MARKER, sent.get(1)[0]);
+        List<byte[]> unpacked = unpacked();
+        assertEquals(submitted.size(), unpacked.size());
+        for (int i = 0; i < submitted.size(); i++) {
+            assertArrayEquals(submitted.get(i), unpacked.get(i));
+        }
+    }
+
+    @Test
+    public void flushesFullBatchAndKeepsTheOrder() throws Exception {
+        DatagramAggregator aggregator = new DatagramAggregator(sent::add, 100, 10_000);
+        List<byte[]> submitted = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            submitted.add(datagram(i, 30));
+            aggregator.submit(submitted.get(i));
+        }
+        // A datagram which does not fit into a batch is sent behind the buffered ones
+        submitted.add(datagram(10, 200));
+        aggregator.submit(submitted.get(10));
+        for (byte[] datagram : sent) {
+            assertTrue(datagram.length <= 100 || datagram.length == 200);
+        }
+        List<byte[]> unpacked = unpacked();
+        assertEquals(submitted.size(), unpacked.size());
+        for (int i = 0; i < submitted.size(); i++) {
+            assertArrayEquals(submitted.get(i), unpacked.get(i));
+        }
+    }
+
+    @Test
+    public void sendsSingleBufferedDatagramUnpacked() throws Exception {
+        DatagramAggregator aggregator = new DatagramAggregator(sent::add, 1400, 10_000);
+        aggregator.submit(datagram(0, 10));
+        byte[] second = datagram(1, 10);
+        aggregator.submit(second);
+        aggregator.flush();
+        assertEquals(2, sent.size());
+        assertArrayEquals(second, sent.get(1));
+    }
+
+    @Test
+    public void packFlattensBatches() {
+        byte[] first = datagram(0, 10), second = datagram(1, 10), third = datagram(2, 10);
+        List<byte[]> inner = DatagramAggregator.pack(List.of(first, second), 1400);
+        assertEquals(1, inner.size());
+        List<byte[]> packed = DatagramAggregator.pack(List.of(inner.get(0), third), 1400);
+        assertEquals(1, packed.size());
+        sent.addAll(packed);
+        List<byte[]> unpacked = unpacked();
+        assertEquals(3, unpacked.size());
+        assertArrayEquals(first, unpacked.get(0));
+        assertArrayEquals(second, unpacked.get(1));
+        assertArrayEquals(third, unpacked.get(2));
+    }
+
+    @Test
+    public void unpackTruncatesMalformedBatch() {
+        ByteBuffer batch = ByteBuffer.allocate(8);
+        batch.put(DatagramAggregator.BATCH_MARKER).putShort((short) 1).put((byte) 7).putShort((short) 50).flip();
+        List<ByteBuffer> unpacked = DatagramAggregator.unpack(batch);
+        assertEquals(1, unpacked.size());
+        assertEquals(7, unpacked.get(0).get());
+    }
+
+    @Test
+    public void unpackReturnsPlainDatagramUnchanged() {
+        ByteBuffer datagram = ByteBuffer.wrap(datagram(0, 10));
+        List<ByteBuffer> unpacked = DatagramAggregator.unpack(datagram);
+        assertEquals(1, unpacked.size());
+        assertSame(datagram, unpacked.get(0));
+    }
+}
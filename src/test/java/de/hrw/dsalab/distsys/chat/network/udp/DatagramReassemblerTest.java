@@ -0,0 +1,165 @@
+package de.hrw.dsalab.distsys.chat.network.udp;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Splits data with the {@link DatagramFragmenter} and joins it with the {@link DatagramReassembler}
+ */
+public class DatagramReassemblerTest {
+    private static final SocketAddress SENDER = new InetSocketAddress("127.0.0.1", 4000);
+    private static final SocketAddress OTHER = new InetSocketAddress("127.0.0.1", 4001);
+
+    private static byte[] data(int size) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (i * 31);
+        }
+        return data;
+    }
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void smallDataIsNotFragmented() {
+        byte[] data = data(100);
+        List<byte[]> datagrams = DatagramFragmenter.fragment(data, 1400);
+        assertEquals(1, datagrams.size());
+        assertSame(data, datagrams.get(0));
+    }
+
+    @Test
+    public void dataStartingWithTheMarkerIsFragmented() {
+        byte[] data = {DatagramFragmenter.FRAGMENT_MARKER, 1, 2};
+        List<byte[]> datagrams = DatagramFragmenter.fragment(data, 1400);
+        assertTrue(DatagramFragmenter.isFragment(datagrams.get(0), datagrams.get(0).length));
+        ByteBuffer joined = new DatagramReassembler(1000, 1 << 20).accept(SENDER, ByteBuffer.wrap(datagrams.get(0)));
+        assertArrayEquals(data, bytes(joined));
+    }
+
+    @Test
+    public void joinsFragmentsInAnyOrder() {
+        byte[] data = data(10_000);
+        List<byte[]> datagrams = new ArrayList<>(DatagramFragmenter.fragment(data, 1000));
+        assertTrue(datagrams.size() > 1);
+        for (byte[] datagram : datagrams) {
+            assertTrue(datagram.length <= 1000);
+        }
+        Collections.reverse(datagrams);
+        DatagramReassembler reassembler = new DatagramReassembler(1000, 1 << 20);
+        ByteBuffer joined = null;
+        for (int i = 0; i < datagrams.size(); i++) {
+            joined = reassembler.accept(SENDER, ByteBuffer.wrap(datagrams.get(i)));
+            assertEquals(i == datagrams.size() - 1, null != joined);
+        }
+        assertArrayEquals(data, bytes(joined));
+    }
+
+    @Test
+    public void ignoresDuplicateFragments() {
+        byte[] data = data(3000);
+        List<byte[]> datagrams = DatagramFragmenter.fragment(data, 1000);
+        DatagramReassembler reassembler = new DatagramReassembler(1000, 1 << 20);
+        assertNull(reassembler.accept(SENDER, ByteBuffer.wrap(datagrams.get(0))));
+        assertNull(reassembler.accept(SENDER, ByteBuffer.wrap(datagrams.get(0))));
+        ByteBuffer joined = null;
+        for (int i = 1; i < datagrams.size(); i++) {
+            joined = reassembler.accept(SENDER, ByteBuffer.wrap(datagrams.get(i)));
+        }
+        assertArrayEquals(data, bytes(joined));
+    }
+
+    @Test
+    public void keepsSendersApart() {
+        List<byte[]> datagrams = DatagramFragmenter.fragment(data(3000), 1000);
+        DatagramReassembler reassembler = new DatagramReassembler(1000, 1 << 20);
+        for (int i = 0; i < datagrams.size() - 1; i++) {
+            assertNull(reassembler.accept(SENDER, ByteBuffer.wrap(datagrams.get(i))));
+        }
+        assertNull(reassembler.accept(OTHER, ByteBuffer.wrap(datagrams.get(datagrams.size() - 1))));
+        assertNotNull(reassembler.accept(SENDER, ByteBuffer.wrap(datagrams.get(datagrams.size() - 1))));
+    }
+
+    @Test
+    public void dropsIncompleteMessageAfterTimeout() throws Exception {
+        List<byte[]> datagrams = DatagramFragmenter.fragment(data(3000), 1000);
+        DatagramReassembler reassembler = new DatagramReassembler(10, 1 << 20);
+        for (int i = 0; i < datagrams.size() - 1; i++) {
+            reassembler.accept(SENDER, ByteBuffer.wrap(datagrams.get(i)));
+        }
+        Thread.sleep(30);
+        assertNull(reassembler.accept(SENDER, ByteBuffer.wrap(datagrams.get(datagrams.size() - 1))));
+    }
+
+    @Test
+    public void evictsOldestMessageWhenMemoryIsExceeded() {
+        List<byte[]> first = DatagramFragmenter.fragment(data(3000), 1000);
+        List<byte[]> second = DatagramFragmenter.fragment(data(3000), 1000);
+        DatagramReassembler reassembler = new DatagramReassembler(10_000, 1500);
+        reassembler.accept(SENDER, ByteBuffer.wrap(first.get(0)));
+        reassembler.accept(SENDER, ByteBuffer.wrap(second.get(0)));
+        for (int i = 1; i < first.size(); i++) {
+            assertNull(reassembler.accept(SENDER, ByteBuffer.wrap(first.get(i))));
+        }
+    }
+
+    @Test
+    public void countsBookkeepingAgainstTheMemoryLimit() {
+        List<byte[]> datagrams = DatagramFragmenter.fragment(data(3000), 1000);
+        DatagramReassembler reassembler = new DatagramReassembler(10_000, 100_000);
+        reassembler.accept(SENDER, ByteBuffer.wrap(datagrams.get(0)));
+        // Every fragment carries a single byte but announces 1000 parts
+        for (int id = 0; id < 20; id++) {
+            assertNull(reassembler.accept(OTHER, fragment(id, 1000)));
+        }
+        for (int i = 1; i < datagrams.size(); i++) {
+            assertNull(reassembler.accept(SENDER, ByteBuffer.wrap(datagrams.get(i))));
+        }
+    }
+
+    @Test
+    public void rejectsMessagesWhichCannotFitTheMemoryLimit() {
+        List<byte[]> datagrams = DatagramFragmenter.fragment(data(3000), 1000);
+        DatagramReassembler reassembler = new DatagramReassembler(10_000, 100_000);
+        reassembler.accept(SENDER, ByteBuffer.wrap(datagrams.get(0)));
+        for (int id = 0; id < 20; id++) {
+            assertNull(reassembler.accept(OTHER, fragment(id, DatagramFragmenter.MAX_FRAGMENTS)));
+        }
+        ByteBuffer joined = null;
+        for (int i = 1; i < datagrams.size(); i++) {
+            joined = reassembler.accept(SENDER, ByteBuffer.wrap(datagrams.get(i)));
+        }
+        assertArrayEquals(data(3000), bytes(joined));
+    }
+
+    private static ByteBuffer fragment(long id, int count) {
+        ByteBuffer fragment = ByteBuffer.allocate(DatagramFragmenter.HEADER_SIZE + 1);
+        fragment.put(DatagramFragmenter.FRAGMENT_MARKER).putLong(id).putShort((short) 0).putShort((short) count).put((byte) 0).flip();
+        return fragment;
+    }
+
+    @Test
+    public void rejectsInvalidFragment() {
+        ByteBuffer fragment = ByteBuffer.allocate(DatagramFragmenter.HEADER_SIZE + 1);
+        fragment.put(DatagramFragmenter.FRAGMENT_MARKER).putLong(1).putShort((short) 2).putShort((short) 2).put((byte) 0).flip();
+        assertNull(new DatagramReassembler(1000, 1 << 20).accept(SENDER, fragment));
+    }
+
+    @Test
+    public void rejectsTooManyFragments() {
+        assertThrows(IllegalArgumentException.class,
+                () -> DatagramFragmenter.fragment(new byte[DatagramFragmenter.MAX_FRAGMENTS + 1], DatagramFragmenter.HEADER_SIZE + 1));
+    }
+}
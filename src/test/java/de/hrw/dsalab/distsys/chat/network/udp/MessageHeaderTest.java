@@ -0,0 +1,101 @@
+package de.hrw.dsalab.distsys.chat.network.udp;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Writes headers with one {@link MessageHeader} and checks them with another one
+ */
+public class MessageHeaderTest {
+    private static final byte[] MESSAGE = "{}".getBytes();
+
+    private final Set<String> rooms = new HashSet<>();
+    private final MessageHeader sender = new MessageHeader(new HashSet<>());
+    private final MessageHeader receiver = new MessageHeader(rooms);
+
+    @Test
+    public void acceptsMessageAndSkipsTheHeader() {
+        ByteBuffer message = ByteBuffer.wrap(sender.write(null, MESSAGE));
+        assertTrue(receiver.accept(message));
+        assertEquals(MessageHeader.SIZE, message.position());
+        assertEquals(MESSAGE.length, message.remaining());
+    }
+
+    @Test
+    public void dropsOwnEcho() {
+        assertFalse(sender.accept(ByteBuffer.wrap(sender.write(null, MESSAGE))));
+    }
+
+    @Test
+    public void instancesOfTheSameUserAreDistinct() {
+        // Every instance draws its own random sender, two clients of the same user do not drop each other
+        MessageHeader another = new MessageHeader(new HashSet<>());
+        assertTrue(another.accept(ByteBuffer.wrap(sender.write(null, MESSAGE))));
+        assertTrue(sender.accept(ByteBuffer.wrap(another.write(null, MESSAGE))));
+    }
+
+    @Test
+    public void dropsDuplicates() {
+        byte[] message = sender.write(null, MESSAGE);
+        assertTrue(receiver.accept(ByteBuffer.wrap(message)));
+        assertFalse(receiver.accept(ByteBuffer.wrap(message)));
+    }
+
+    @Test
+    public void acceptsReorderedMessagesOnce() {
+        byte[] first = sender.write(null, MESSAGE);
+        byte[] second = sender.write(null, MESSAGE);
+        byte[] third = sender.write(null, MESSAGE);
+        assertTrue(receiver.accept(ByteBuffer.wrap(third)));
+        assertTrue(receiver.accept(ByteBuffer.wrap(first)));
+        assertTrue(receiver.accept(ByteBuffer.wrap(second)));
+        assertFalse(receiver.accept(ByteBuffer.wrap(first)));
+    }
+
+    @Test
+    public void dropsMessagesOutsideTheDuplicateWindow() {
+        byte[] old = sender.write(null, MESSAGE);
+        byte[] latest = null;
+        for (int i = 0; i < Long.SIZE; i++) {
+            latest = sender.write(null, MESSAGE);
+        }
+        assertTrue(receiver.accept(ByteBuffer.wrap(latest)));
+        assertFalse(receiver.accept(ByteBuffer.wrap(old)));
+    }
+
+    @Test
+    public void filtersRooms() {
+        rooms.add("lobby");
+        assertTrue(receiver.accept(ByteBuffer.wrap(sender.write("lobby", MESSAGE))));
+        assertFalse(receiver.accept(ByteBuffer.wrap(sender.write("other", MESSAGE))));
+        assertTrue(receiver.accept(ByteBuffer.wrap(sender.write(null, MESSAGE))));
+    }
+
+    @Test
+    public void acceptsMessagesWithoutHeader() {
+        ByteBuffer message = ByteBuffer.wrap(MESSAGE);
+        assertTrue(receiver.accept(message));
+        assertEquals(0, message.position());
+    }
+
+    @Test
+    public void dropsTruncatedHeader() {
+        assertFalse(receiver.accept(ByteBuffer.wrap(new byte[]{MessageHeader.MARKER, 1, 2})));
+    }
+
+    @Test
+    public void forgetsTheLeastRecentlyHeardSender() {
+        byte[] first = sender.write(null, MESSAGE);
+        assertTrue(receiver.accept(ByteBuffer.wrap(first)));
+        for (int i = 0; i < 1024; i++) {
+            assertTrue(receiver.accept(ByteBuffer.wrap(new MessageHeader(new HashSet<>()).write(null, MESSAGE))));
+        }
+        // The window of the first sender was evicted, its duplicate is accepted again
+        assertTrue(receiver.accept(ByteBuffer.wrap(first)));
+    }
+}
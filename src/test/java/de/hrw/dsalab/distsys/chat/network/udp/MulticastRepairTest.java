@@ -0,0 +1,155 @@
+package de.hrw.dsalab.distsys.chat.network.udp;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Connects a sender and receivers of the {@link MulticastRepair} through an in-memory group which drops selected datagrams
+ */
+public class MulticastRepairTest {
+    /**
+     * This class represents a member of the group with its delivered payloads
+     */
+    private class Member {
+        private final SocketAddress address;
+        private final List<String> delivered = Collections.synchronizedList(new ArrayList<>());
+        private final MulticastRepair repair;
+
+        Member(int port) {
+            address = new InetSocketAddress("127.0.0.1", port);
+            repair = new MulticastRepair(datagram -> send(this, datagram), (sender, payload) -> {
+                byte[] bytes = new byte[payload.remaining()];
+                payload.get(bytes);
+                delivered.add(new String(bytes));
+            }, 64);
+            members.add(this);
+        }
+    }
+
+    /**
+     * Delivers the datagrams of the group in the order in which they were sent
+     */
+    private final ExecutorService network = Executors.newSingleThreadExecutor();
+    private final List<Member> members = new ArrayList<>();
+
+    /**
+     * Data datagrams which are dropped once, the entry is the receiving port and the sequence
+     */
+    private final Set<String> drops = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Amount of sent data datagrams by their sequence
+     */
+    private final ConcurrentHashMap<Long, AtomicInteger> transmissions = new ConcurrentHashMap<>();
+
+    private final Member sender = new Member(6000);
+
+    @AfterEach
+    public void close() {
+        members.forEach(member -> member.repair.close());
+        network.shutdownNow();
+    }
+
+    private void send(Member from, byte[] datagram) {
+        boolean data = datagram[0] == MulticastRepair.DATA_MARKER;
+        long sequence = data ? ByteBuffer.wrap(datagram).getLong(1 + Long.BYTES) : -1;
+        if (data) {
+            transmissions.computeIfAbsent(sequence, key -> new AtomicInteger()).incrementAndGet();
+        }
+        for (Member member : members) {
+            if (member == from || (data && drops.remove(((InetSocketAddress) member.address).getPort() + ":" + sequence))) {
+                continue;
+            }
+            network.execute(() -> member.repair.receive(from.address, ByteBuffer.wrap(datagram)));
+        }
+    }
+
+    private void broadcast(String... payloads) {
+        for (String payload : payloads) {
+            sender.repair.send(payload.getBytes());
+        }
+    }
+
+    private static void await(List<String> delivered, int size) throws InterruptedException {
+        for (int i = 0; i < 100 && delivered.size() < size; i++) {
+            Thread.sleep(20);
+        }
+    }
+
+    @Test
+    public void deliversInOrder() throws Exception {
+        Member receiver = new Member(6001);
+        broadcast("a", "b", "c");
+        await(receiver.delivered, 3);
+        assertEquals(List.of("a", "b", "c"), receiver.delivered);
+        assertTrue(sender.delivered.isEmpty());
+    }
+
+    @Test
+    public void repairsLostDatagram() throws Exception {
+        Member receiver = new Member(6001);
+        drops.add("6001:1");
+        broadcast("a", "b", "c");
+        await(receiver.delivered, 3);
+        assertEquals(List.of("a", "b", "c"), receiver.delivered);
+        assertEquals(2, transmissions.get(1L).get());
+    }
+
+    @Test
+    public void heartbeatRevealsLostLastDatagram() throws Exception {
+        Member receiver = new Member(6001);
+        drops.add("6001:2");
+        broadcast("a", "b", "c");
+        await(receiver.delivered, 3);
+        assertEquals(List.of("a", "b", "c"), receiver.delivered);
+    }
+
+    @Test
+    public void singleRetransmissionRepairsAllReceivers() throws Exception {
+        Member first = new Member(6001);
+        Member second = new Member(6002);
+        drops.add("6001:1");
+        drops.add("6002:1");
+        broadcast("a", "b", "c");
+        await(first.delivered, 3);
+        await(second.delivered, 3);
+        assertEquals(List.of("a", "b", "c"), first.delivered);
+        assertEquals(List.of("a", "b", "c"), second.delivered);
+        assertEquals(2, transmissions.get(1L).get());
+    }
+
+    @Test
+    public void lateReceiverJoinsAtTheFirstReceivedDatagram() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            broadcast("early" + i);
+        }
+        Member receiver = new Member(6001);
+        broadcast("late");
+        await(receiver.delivered, 1);
+        Thread.sleep(300);
+        assertEquals(List.of("late"), receiver.delivered);
+    }
+
+    @Test
+    public void closedReceiverDropsDatagrams() throws Exception {
+        Member receiver = new Member(6001);
+        receiver.repair.close();
+        broadcast("a");
+        Thread.sleep(200);
+        assertTrue(receiver.delivered.isEmpty());
+    }
+}
@@ -0,0 +1,161 @@
+package de.hrw.dsalab.distsys.chat.network.udp.raw;
+
+import de.hrw.dsalab.distsys.chat.enumerations.OverflowPolicy;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Connects two {@link ReliableSession sessions} through in-memory outboxes, the test decides which datagrams arrive
+ */
+public class ReliableSessionTest {
+    /**
+     * This class represents a peer whose sent datagrams wait in an outbox
+     */
+    private static class Peer {
+        private final List<byte[]> outbox = Collections.synchronizedList(new ArrayList<>());
+        private final AtomicInteger congested = new AtomicInteger();
+        private final ReliableSession session;
+
+        Peer(int window, int capacity, OverflowPolicy overflowPolicy) {
+            session = new ReliableSession(new ReliableSession.Transport() {
+                @Override
+                public void send(byte[] datagram) {
+                    outbox.add(datagram);
+                }
+
+                @Override
+                public void congested() {
+                    congested.incrementAndGet();
+                }
+            }, window, capacity, overflowPolicy);
+        }
+
+        /**
+         * Takes all sent datagrams out of the outbox
+         */
+        List<byte[]> take() {
+            synchronized (outbox) {
+                List<byte[]> taken = new ArrayList<>(outbox);
+                outbox.clear();
+                return taken;
+            }
+        }
+    }
+
+    private final Peer sender = new Peer(16, 64, OverflowPolicy.DROP_NEWEST);
+    private final Peer receiver = new Peer(16, 64, OverflowPolicy.DROP_NEWEST);
+
+    /**
+     * Delivers datagrams to a peer and collects the payloads as strings
+     */
+    private static List<String> deliver(List<byte[]> datagrams, Peer peer) {
+        List<String> payloads = new ArrayList<>();
+        for (byte[] datagram : datagrams) {
+            ByteBuffer buffer = ByteBuffer.wrap(datagram);
+            assertTrue(ReliableSession.isReliable(buffer));
+            for (byte[] payload : peer.session.receive(buffer)) {
+                payloads.add(new String(payload));
+            }
+        }
+        return payloads;
+    }
+
+    private void send(int stream, String... payloads) {
+        for (String payload : payloads) {
+            sender.session.send(payload.getBytes(), stream);
+        }
+    }
+
+    @Test
+    public void deliversInOrder() {
+        send(1, "a", "b", "c");
+        assertEquals(List.of("a", "b", "c"), deliver(sender.take(), receiver));
+        assertEquals(3, receiver.take().size());
+    }
+
+    @Test
+    public void holdsPayloadsUntilTheGapIsFilled() {
+        send(1, "a", "b", "c");
+        List<byte[]> datagrams = sender.take();
+        assertEquals(List.of(), deliver(datagrams.subList(1, 3), receiver));
+        assertEquals(List.of("a", "b", "c"), deliver(datagrams.subList(0, 1), receiver));
+    }
+
+    @Test
+    public void streamsDoNotBlockEachOther() {
+        send(1, "a");
+        send(2, "x");
+        send(1, "b");
+        List<byte[]> datagrams = sender.take();
+        assertEquals(List.of("x"), deliver(datagrams.subList(1, 2), receiver));
+        assertEquals(List.of(), deliver(datagrams.subList(2, 3), receiver));
+        assertEquals(List.of("a", "b"), deliver(datagrams.subList(0, 1), receiver));
+    }
+
+    @Test
+    public void ignoresDuplicates() {
+        send(1, "a");
+        byte[] datagram = sender.take().get(0);
+        assertEquals(List.of("a"), deliver(List.of(datagram), receiver));
+        assertEquals(List.of(), deliver(List.of(datagram.clone()), receiver));
+        // Duplicates are acknowledged as well
+        assertEquals(2, receiver.take().size());
+    }
+
+    @Test
+    public void fastRetransmitsLostDatagram() {
+        send(1, "a", "b", "c", "d", "e");
+        List<byte[]> datagrams = sender.take();
+        assertEquals(List.of(), deliver(datagrams.subList(1, 5), receiver));
+        deliver(receiver.take(), sender);
+        assertEquals(1, sender.congested.get());
+        assertEquals(List.of("a", "b", "c", "d", "e"), deliver(sender.take(), receiver));
+    }
+
+    @Test
+    public void retransmitsAfterTimeout() throws Exception {
+        send(1, "a");
+        sender.take();
+        Thread.sleep(800);
+        assertEquals(List.of("a"), deliver(sender.take(), receiver));
+    }
+
+    @Test
+    public void queuesPayloadsBeyondTheWindow() {
+        Peer narrow = new Peer(2, 2, OverflowPolicy.DROP_NEWEST);
+        for (String payload : new String[]{"a", "b", "c", "d", "e"}) {
+            narrow.session.send(payload.getBytes(), 1);
+        }
+        List<byte[]> datagrams = narrow.take();
+        assertEquals(2, datagrams.size());
+        assertEquals(List.of("a", "b"), deliver(datagrams, receiver));
+        deliver(receiver.take(), narrow);
+        // The newest payload was dropped, because the queue was full
+        assertEquals(List.of("c", "d"), deliver(narrow.take(), receiver));
+    }
+
+    @Test
+    public void closedStreamDoesNotWaitForItsLostPayload() {
+        send(1, "a");
+        sender.take();
+        sender.session.closeStream(1);
+        send(1, "b");
+        assertEquals(List.of("b"), deliver(sender.take(), receiver));
+    }
+
+    @Test
+    public void receiverJoinsARestartedSender() {
+        send(1, "a");
+        deliver(sender.take(), receiver);
+        Peer restarted = new Peer(16, 64, OverflowPolicy.DROP_NEWEST);
+        restarted.session.send("b".getBytes(), 1);
+        assertEquals(List.of("b"), deliver(restarted.take(), receiver));
+    }
+}
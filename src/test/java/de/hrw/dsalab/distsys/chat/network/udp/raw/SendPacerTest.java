@@ -0,0 +1,120 @@
+package de.hrw.dsalab.distsys.chat.network.udp.raw;
+
+import de.hrw.dsalab.distsys.chat.enumerations.OverflowPolicy;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Sends datagrams through a {@link SendPacer} into a recording output
+ */
+public class SendPacerTest {
+    private static final SocketAddress FIRST = new InetSocketAddress("127.0.0.1", 5000);
+    private static final SocketAddress SECOND = new InetSocketAddress("127.0.0.1", 5001);
+
+    /**
+     * First byte of every sent datagram with its destination
+     */
+    private final List<String> sent = Collections.synchronizedList(new ArrayList<>());
+
+    private void record(byte[] datagram, SocketAddress destination) {
+        sent.add((destination.equals(FIRST) ? "A" : "B") + datagram[0]);
+    }
+
+    private static byte[] datagram(int index, int size) {
+        byte[] datagram = new byte[size];
+        datagram[0] = (byte) index;
+        return datagram;
+    }
+
+    @Test
+    public void unpacedDatagramsAreSentImmediately() {
+        SendPacer pacer = new SendPacer(0, 0, 1000, 16, OverflowPolicy.DROP_NEWEST);
+        for (int i = 0; i < 100; i++) {
+            pacer.send(FIRST, datagram(i, 1000), this::record);
+        }
+        assertEquals(100, sent.size());
+    }
+
+    @Test
+    public void defersDatagramsBeyondTheBurstInOrder() throws Exception {
+        SendPacer pacer = new SendPacer(10_000, 0, 1000, 16, OverflowPolicy.DROP_NEWEST);
+        for (int i = 0; i < 5; i++) {
+            pacer.send(FIRST, datagram(i, 500), this::record);
+        }
+        // The bucket may go into debt once, the following datagrams wait for the refill
+        assertEquals(List.of("A0", "A1", "A2"), new ArrayList<>(sent));
+        Thread.sleep(500);
+        assertEquals(List.of("A0", "A1", "A2", "A3", "A4"), new ArrayList<>(sent));
+        pacer.clear();
+    }
+
+    @Test
+    public void destinationsArePacedIndependently() {
+        SendPacer pacer = new SendPacer(1000, 0, 100, 16, OverflowPolicy.DROP_NEWEST);
+        pacer.send(FIRST, datagram(0, 500), this::record);
+        pacer.send(FIRST, datagram(1, 500), this::record);
+        pacer.send(SECOND, datagram(2, 500), this::record);
+        assertEquals(List.of("A0", "B2"), new ArrayList<>(sent));
+        pacer.clear();
+    }
+
+    @Test
+    public void globalRateIsShared() {
+        SendPacer pacer = new SendPacer(0, 1000, 100, 16, OverflowPolicy.DROP_NEWEST);
+        pacer.send(FIRST, datagram(0, 500), this::record);
+        pacer.send(SECOND, datagram(1, 500), this::record);
+        assertEquals(List.of("A0"), new ArrayList<>(sent));
+        pacer.clear();
+    }
+
+    @Test
+    public void fullQueueDropsNewest() throws Exception {
+        SendPacer pacer = new SendPacer(100_000, 0, 100, 2, OverflowPolicy.DROP_NEWEST);
+        for (int i = 0; i < 6; i++) {
+            pacer.send(FIRST, datagram(i, 1000), this::record);
+        }
+        Thread.sleep(300);
+        assertEquals(List.of("A0", "A1", "A2"), new ArrayList<>(sent));
+    }
+
+    @Test
+    public void fullQueueDropsOldest() throws Exception {
+        SendPacer pacer = new SendPacer(100_000, 0, 100, 2, OverflowPolicy.DROP_OLDEST);
+        for (int i = 0; i < 6; i++) {
+            pacer.send(FIRST, datagram(i, 1000), this::record);
+        }
+        Thread.sleep(300);
+        assertEquals(List.of("A0", "A4", "A5"), new ArrayList<>(sent));
+    }
+
+    @Test
+    public void removedDestinationDropsDeferredDatagrams() throws Exception {
+        SendPacer pacer = new SendPacer(10_000, 0, 100, 16, OverflowPolicy.DROP_NEWEST);
+        pacer.send(FIRST, datagram(0, 1000), this::record);
+        pacer.send(FIRST, datagram(1, 1000), this::record);
+        pacer.remove(FIRST);
+        Thread.sleep(300);
+        assertEquals(List.of("A0"), new ArrayList<>(sent));
+    }
+
+    @Test
+    public void congestionSlowsTheDestinationDown() throws Exception {
+        SendPacer pacer = new SendPacer(20_000, 0, 100, 64, OverflowPolicy.DROP_NEWEST);
+        pacer.congested(FIRST);
+        for (int i = 0; i < 4; i++) {
+            pacer.send(FIRST, datagram(i, 1000), this::record);
+        }
+        // The full rate would send the three deferred datagrams within 150 ms, half the rate needs about 300 ms
+        Thread.sleep(200);
+        assertTrue(sent.size() < 4);
+        Thread.sleep(300);
+        assertEquals(4, sent.size());
+    }
+}
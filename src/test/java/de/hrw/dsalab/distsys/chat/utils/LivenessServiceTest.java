@@ -0,0 +1,77 @@
+package de.hrw.dsalab.distsys.chat.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tracks clients with short expiries on the shared {@link LivenessService}
+ */
+public class LivenessServiceTest {
+    /**
+     * This class represents a client whose expiry is set by the test
+     */
+    private static class Client extends ClientTimestampContainer {
+        private volatile long expiry;
+
+        Client(long inactivity) {
+            expiry = System.currentTimeMillis() + inactivity;
+        }
+
+        void touch(long inactivity) {
+            expiry = System.currentTimeMillis() + inactivity;
+        }
+
+        @Override
+        public long getExpiry() {
+            return expiry;
+        }
+    }
+
+    private final LivenessService service = LivenessService.getLivenessService();
+
+    @Test
+    public void expiresInactiveClient() throws Exception {
+        CountDownLatch expired = new CountDownLatch(1);
+        long start = System.currentTimeMillis();
+        service.track(new Client(200), expired::countDown);
+        assertTrue(expired.await(2, TimeUnit.SECONDS));
+        assertTrue(System.currentTimeMillis() - start >= 200);
+    }
+
+    @Test
+    public void activityDefersTheExpiry() throws Exception {
+        AtomicInteger expired = new AtomicInteger();
+        Client client = new Client(300);
+        service.track(client, expired::incrementAndGet);
+        for (int i = 0; i < 6; i++) {
+            Thread.sleep(150);
+            client.touch(300);
+        }
+        assertEquals(0, expired.get());
+        Thread.sleep(700);
+        assertEquals(1, expired.get());
+    }
+
+    @Test
+    public void cancelledClientDoesNotExpire() throws Exception {
+        AtomicInteger expired = new AtomicInteger();
+        service.track(new Client(100), expired::incrementAndGet).cancel();
+        Thread.sleep(500);
+        assertEquals(0, expired.get());
+    }
+
+    @Test
+    public void failingCallbackDoesNotStopTheWheel() throws Exception {
+        CountDownLatch expired = new CountDownLatch(1);
+        service.track(new Client(100), () -> {
+            throw new IllegalStateException("Expected");
+        });
+        service.track(new Client(300), expired::countDown);
+        assertTrue(expired.await(2, TimeUnit.SECONDS));
+    }
+}